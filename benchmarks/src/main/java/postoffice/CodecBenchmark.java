@@ -0,0 +1,122 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a message column, the Gson JSON of
+ * MessageUtil against the binary MessageCodec. Supersedes the hand
+ * rolled MessageCodecBenchmark that used to live with the tests. The
+ * binary encode benchmark also reports both column sizes and the bytes
+ * the codec saves per message.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+	/** Body length in characters, the large one is deflated by the codec */
+	@Param({ "100", "5000" })
+	public int m_iBodyLength;
+
+	protected Message m_msg;
+	protected byte[] m_json;
+	protected byte[] m_binary;
+
+	@Setup
+	public void setup()
+	{
+		StringBuilder sb = new StringBuilder(m_iBodyLength);
+
+		while (sb.length() < m_iBodyLength)
+		{
+			sb.append("Hi 1501572, I just wanted to tell you about Postoffice! ");
+		}
+
+		sb.setLength(m_iBodyLength);
+		m_msg = new Message(MessageUtil.genId(), "1501571", "Postoffice project!", sb.toString());
+		m_json = StoreUtil.toBytes(MessageUtil.toJson(m_msg));
+		m_binary = MessageCodec.encode(m_msg);
+	}
+
+	/**
+	 * Column sizes of the message, reported next to the binary encode
+	 * time. JMH zeroes them before each iteration, so every invocation
+	 * sets them to the size of one message.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Sizes
+	{
+		public long jsonBytes;
+		public long binaryBytes;
+		public long savedBytes;
+	}
+
+	@Benchmark
+	public byte[] jsonEncode()
+	{
+		return StoreUtil.toBytes(MessageUtil.toJson(m_msg));
+	}
+
+	/** Legacy JSON columns go through the codec's fallback, as on the read path */
+	@Benchmark
+	public Message jsonDecode()
+	{
+		return MessageCodec.decode(m_json);
+	}
+
+	@Benchmark
+	public byte[] binaryEncode(Sizes sizes)
+	{
+		byte[] binary = MessageCodec.encode(m_msg);
+		sizes.jsonBytes = m_json.length;
+		sizes.binaryBytes = binary.length;
+		sizes.savedBytes = m_json.length - binary.length;
+		return binary;
+	}
+
+	@Benchmark
+	public Message binaryDecode()
+	{
+		return MessageCodec.decode(m_binary);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Building a folder page out of store columns: the Conversation and
+ * Message TreeSets of FolderUtil._toConversations and the summaries of
+ * FolderUtil.getSummaries, against the in-process store so only the
+ * assembly and decoding are measured, and the same pages served from
+ * the folder and conversation caches.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FolderAssemblyBenchmark
+{
+	/** Conversations on the page */
+	@Param({ "10", "100" })
+	public int m_iPageSize;
+
+	/** Messages in each conversation */
+	@Param({ "1", "10" })
+	public int m_iThreadLength;
+
+	protected Folder m_folder;
+	protected List<StoreColumn> m_listPage;
+	protected ConversationCache m_uncached = new ConversationCache(0, ConversationCache.SLAB_BYTES, 0);
+	protected ConversationCache m_cached = new ConversationCache(ConversationCache.MAX_BYTES, ConversationCache.SLAB_BYTES, ConversationCache.TTL_MS);
+
+	@Setup
+	public void setup()
+	{
+		StoreUtil.setStore(new MemoryMessageStore());
+		m_folder = new Folder("1501572", "inbox");
+
+		for (int i = 0; i < m_iPageSize; i++)
+		{
+			String strId = ConversationUtil.genId();
+
+			for (int j = 0; j < m_iThreadLength; j++)
+			{
+				PostofficeUtil.sendMessage("1501571", "1501572", "Postoffice project! " + i, "Hi 1501572, I just wanted to tell you about Postoffice, a messaging system using Cassandra!", strId);
+			}
+		}
+
+		m_listPage = FolderBuckets.getSliceAfter(m_folder, null, m_iPageSize * m_iThreadLength);
+	}
+
+	@Benchmark
+	public Set<Conversation> conversations()
+	{
+		ConversationUtil.cache = m_uncached;
+		return FolderUtil._toConversations(m_listPage);
+	}
+
+	/**
+	 * The same page with the conversations decoded from the off-heap cache.
+	 */
+	@Benchmark
+	public Set<Conversation> cachedConversations()
+	{
+		ConversationUtil.cache = m_cached;
+		return FolderUtil._toConversations(m_listPage);
+	}
+
+	@Benchmark
+	public List<ConversationSummary> summaries()
+	{
+		return FolderUtil._getSummaries(m_folder, (UUID) null, m_iPageSize);
+	}
+
+	/**
+	 * The same page answered by the folder cache.
+	 */
+	@Benchmark
+	public List<ConversationSummary> cachedSummaries()
+	{
+		return FolderUtil.getSummaries(m_folder, (UUID) null, m_iPageSize);
+	}
+}
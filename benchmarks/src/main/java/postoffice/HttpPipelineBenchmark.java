@@ -0,0 +1,247 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests through the whole HTTP pipeline, Netty decoding, routing,
+ * the handler executor, the in-process store and response encoding, over
+ * one keep-alive connection per benchmark thread.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class HttpPipelineBenchmark
+{
+	protected static final String FROM = "1501571";
+	protected static final String TO = "1501572";
+
+	/**
+	 * A server on a free port over a store holding a folder of a few
+	 * hundred conversations.
+	 */
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		protected HttpServer m_httpd;
+		protected int m_iPort;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException
+		{
+			StoreUtil.setStore(new MemoryMessageStore());
+
+			for (int i = 0; i < 250; i++)
+			{
+				PostofficeUtil.startConversation(FROM, TO, "Postoffice project! " + i, "Hi " + TO + ", I just wanted to tell you about Postoffice, a messaging system using Cassandra! (= Best, " + FROM);
+			}
+
+			try (ServerSocket s = new ServerSocket(0))
+			{
+				m_iPort = s.getLocalPort();
+			}
+
+			m_httpd = App.newWebInterface(m_iPort);
+			m_httpd.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop()
+		{
+			m_httpd.stop();
+		}
+	}
+
+	/**
+	 * A keep-alive connection that writes a request and reads back its
+	 * response, sized by Content-Length or by chunks.
+	 */
+	@State(Scope.Thread)
+	public static class Client
+	{
+		protected Socket m_socket;
+		protected InputStream m_in;
+		protected OutputStream m_out;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws IOException
+		{
+			m_socket = new Socket("127.0.0.1", server.m_iPort);
+			m_socket.setTcpNoDelay(true);
+			m_in = m_socket.getInputStream();
+			m_out = m_socket.getOutputStream();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException
+		{
+			m_socket.close();
+		}
+
+		public int get(String strUri) throws IOException
+		{
+			m_out.write(("GET " + strUri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			m_out.flush();
+
+			String strStatus = line();
+			int iLength = -1;
+			boolean bChunked = false;
+			String strHeader;
+
+			while (!(strHeader = line()).isEmpty())
+			{
+				String strLower = strHeader.toLowerCase();
+
+				if (strLower.startsWith("content-length:"))
+				{
+					iLength = Integer.parseInt(strHeader.substring(15).trim());
+				}
+				else if (strLower.startsWith("transfer-encoding:") && strLower.contains("chunked"))
+				{
+					bChunked = true;
+				}
+			}
+
+			int iRead = 0;
+
+			if (bChunked)
+			{
+				int iChunk;
+
+				while ((iChunk = Integer.parseInt(line().trim(), 16)) > 0)
+				{
+					iRead += skip(iChunk);
+					line();
+				}
+
+				// trailers end with an empty line
+				while (!line().isEmpty())
+				{
+				}
+			}
+			else if (iLength > 0)
+			{
+				iRead = skip(iLength);
+			}
+
+			if (!strStatus.contains(" 200 "))
+			{
+				throw new IOException(strUri + ": " + strStatus);
+			}
+
+			return iRead;
+		}
+
+		protected String line() throws IOException
+		{
+			ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+			int c;
+
+			while ((c = m_in.read()) != '\n')
+			{
+				if (c < 0)
+				{
+					throw new IOException("connection closed");
+				}
+
+				if (c != '\r')
+				{
+					line.write(c);
+				}
+			}
+
+			return line.toString("US-ASCII");
+		}
+
+		protected int skip(int iLength) throws IOException
+		{
+			byte[] buf = new byte[Math.min(iLength, 8192)];
+			int iLeft = iLength;
+
+			while (iLeft > 0)
+			{
+				int iRead = m_in.read(buf, 0, Math.min(iLeft, buf.length));
+
+				if (iRead < 0)
+				{
+					throw new IOException("connection closed");
+				}
+
+				iLeft -= iRead;
+			}
+
+			return iLength;
+		}
+	}
+
+	@Benchmark
+	public int folderSummaries(Client client) throws IOException
+	{
+		return client.get("/folder?owner=" + TO + "&folder=inbox&count=20");
+	}
+
+	@Benchmark
+	public int folderFull(Client client) throws IOException
+	{
+		return client.get("/folder?owner=" + TO + "&folder=inbox&count=20&full=1");
+	}
+
+	@Benchmark
+	public int newConversation(Client client) throws IOException
+	{
+		return client.get("/new?from=" + FROM + "&to=" + TO + "&subject=bench&body=" + URLEncoder.encode("Hi " + TO + ", I just wanted to tell you about Postoffice!", "UTF-8"));
+	}
+
+	@Benchmark
+	public int metrics(Client client) throws IOException
+	{
+		return client.get("/metrics");
+	}
+}
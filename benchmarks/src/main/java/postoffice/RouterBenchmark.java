@@ -0,0 +1,71 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Route lookup as HttpRequestHandler does it, for the routes App
+ * registers: an exact route, prefix routes and a path only the root
+ * catches. The routes are compiled from App.newWebInterface, so they
+ * follow the server's.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark
+{
+	@Param({ "/metrics", "/folder", "/conversation/", "/reply/x/y", "/unknown/path" })
+	public String m_strPath;
+
+	protected HttpRouter m_router;
+
+	@Setup
+	public void setup()
+	{
+		// never started, only its routes are used
+		m_router = App.newWebInterface(0).compileRoutes();
+	}
+
+	@Benchmark
+	public HttpServer.AsyncRequestHandler route()
+	{
+		return m_router.route(m_strPath);
+	}
+}
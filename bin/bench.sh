@@ -0,0 +1,3 @@
+# builds the benchmarks and writes the results to benchmarks/results.json,
+# extra arguments go to JMH, e.g. bin/bench.sh CodecBenchmark
+mvn -q install -DskipTests && (cd benchmarks && mvn -q package) && java -jar benchmarks/target/benchmarks.jar -rf json -rff benchmarks/results.json "$@"
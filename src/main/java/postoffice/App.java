@@ -27,34 +27,51 @@ import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGT
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.COOKIE;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.SET_COOKIE;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_0;
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
-import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.ConsistencyLevel;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
@@ -65,21 +82,28 @@ import org.jboss.netty.handler.codec.http.CookieEncoder;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpContentCompressor;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.ExternalResourceReleasable;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Cluster;
-import org.scale7.cassandra.pelops.Mutator;
-import org.scale7.cassandra.pelops.Selector;
 import org.scale7.cassandra.pelops.UuidHelper;
 import org.scale7.cassandra.pelops.pool.CommonsBackedPool;
 import org.scale7.cassandra.pelops.pool.IThriftPool;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 /**
  * Postoffice is a simple threaded messaging system on top of Cassandra.
@@ -102,6 +126,9 @@ import com.google.gson.Gson;
  * 
  * create column family folders with column_type = 'Standard' and comparator = 'TimeUUIDType';
  * create column family conversations with column_type = 'Standard' and comparator = 'TimeUUIDType';
+ * create column family summaries with column_type = 'Standard' and comparator = 'TimeUUIDType';
+ * create column family messages with column_type = 'Standard' and comparator = 'TimeUUIDType';
+ * create column family counters with column_type = 'Standard' and comparator = 'TimeUUIDType' and default_validation_class = 'CounterColumnType';
  * 
  * @author Hisham Mardam-Bey
  *
@@ -111,16 +138,17 @@ public class App
 {		
 	public final static Integer HTTPD_PORT = 8081;
 	
+	/** Number of threads running request handlers, -Dpostoffice.http.threads */
+	public final static Integer HTTPD_THREADS = Integer.getInteger("postoffice.http.threads", 16);
+	
+	/** Run every request on its own virtual thread, -Dpostoffice.http.virtual */
+	public final static Boolean HTTPD_VIRTUAL = Boolean.getBoolean("postoffice.http.virtual");
+	
 	public static void startWebInterface()
 	{						
 		try
 		{
-			HttpServer httpd = new HttpServer(HTTPD_PORT);
-			httpd.getHandlers().put("/folder", FolderHandler.get());
-			httpd.getHandlers().put("/new", NewConversationHandler.get());
-			httpd.getHandlers().put("/reply", ReplyHandler.get());
-			httpd.getHandlers().put("/", IndexHandler.get());
-			httpd.start();
+			newWebInterface(HTTPD_PORT).start();
 		}
 		catch(Exception e)
 		{
@@ -128,40 +156,70 @@ public class App
 		}
 	}
 	
-	public static void populateData()
+	/**
+	 * @return a server with every route registered, not started yet
+	 */
+	public static HttpServer newWebInterface(Integer intPort)
 	{
-    	String alice = "1501571";
-    	String bob = "1501572";
-    	
-    	final String from = alice;
-    	final String to = bob;
-    	
-//    	for (int t = 0; t < 20; t++)
-//    	{
-//    		new Thread() {
-//    			public void run()
-//    			{
-    				for (int i = 0; i < 250; i++)
-    		    	{
-    			    	PostofficeUtil.startConversation(
-    			    	  from, to, 
-    			    	  "Postoffice project! " + System.nanoTime(), 
-    			    	  "Hi " + to + ", I just wanted to tell you about Postoffice, a messaging system using Cassandra! (= Best, " + from
-    			    	);
-    		    	}
-//    			}
-//    		}.start();
-//    	}
-    	
+		HttpServer httpd = new HttpServer(intPort);
+		httpd.setHandlerThreads(HTTPD_THREADS);
+		httpd.setVirtualThreads(HTTPD_VIRTUAL);
+		httpd.addAsyncHandler("/folder", FolderHandler.get());
+		httpd.addAsyncHandler("/conversation", ConversationReadHandler.get());
+		httpd.addAsyncHandler("/counts", CountsHandler.get());
+		httpd.addAsyncHandler("/read", MarkReadHandler.get());
+		httpd.addAsyncHandler("/subscribe", SubscribeHandler.get());
+		httpd.addAsyncHandler("/new", NewConversationHandler.get());
+		httpd.addAsyncHandler("/reply", ReplyHandler.get());
+		httpd.addExactHandler("/metrics", MetricsHandler.get());
+		httpd.addHandler("/", IndexHandler.get());
+		return httpd;
+	}
+	
+	/**
+	 * Fills the folders of LoadGenerator.USERS users through the Java API,
+	 * sized by the postoffice.load.* properties.
+	 */
+	public static void populateData() throws InterruptedException
+	{
+		LoadGenerator load = new LoadGenerator(new LoadGenerator.ApiTarget());
+		load.populate();
+		System.out.print(load.report());
 	}
 	
     public static void main( String[] args ) throws Exception
     {    
-    	PelopsUtil.connect();
+    	boolean bPopulate = false;
+    	boolean bMemory = false;
+    	
+    	for (String strArg : args)
+    	{
+    		if (strArg.equals("--populate"))
+    		{
+    			bPopulate = true;
+    		}
+    		else if (strArg.equals("--memory"))
+    		{
+    			bMemory = true;
+    		}
+    	}
+    	
+    	if (bMemory)
+    	{
+    		System.out.println("Using the in-process message store");
+    		StoreUtil.setStore(new MemoryMessageStore());
+    	}
+    	else
+    	{
+    		PelopsUtil.connect();
+    	}
+    	
+    	// every store call shows up on /metrics
+    	StoreUtil.setStore(new InstrumentedMessageStore(StoreUtil.getStore()));
     
-    	if (args.length > 0 && args[0].equals("--populate"))
+    	if (bPopulate)
     	{
-    		System.out.println("Populating data between 1501571 and 1501572");
+    		System.out.println("Populating data for " + LoadGenerator.USERS + " users from " + LoadGenerator.user(0));
     		populateData();
     	}
     	    	
@@ -180,6 +238,8 @@ class Conversation implements Comparable<Conversation>
 	protected String m_strId;
 	protected TreeSet<Message> m_setMessages;
 	protected Long m_lLastReceivedDate;
+	protected String m_strCursor;
+	protected transient ConversationKey m_key;
 	
 	public Conversation()
 	{		
@@ -189,6 +249,25 @@ class Conversation implements Comparable<Conversation>
 	{
 		m_strId = strId;
 	}
+	
+	public Conversation(ConversationKey key)
+	{
+		m_strId = key.getId();
+		m_key = key;
+	}
+	
+	/**
+	 * @return the key of the conversation, parsed from its id once
+	 */
+	public ConversationKey getKey()
+	{
+		if (m_key == null)
+		{
+			m_key = ConversationKey.parse(m_strId);
+		}
+		
+		return m_key;
+	}
 	/**
 	 * @return the lastReceivedDate
 	 */
@@ -216,6 +295,7 @@ class Conversation implements Comparable<Conversation>
 	public void setId(String strId)
 	{
 		m_strId = strId;
+		m_key = null;
 	}
 	/**
 	 * @return the m_setMessages
@@ -231,11 +311,29 @@ class Conversation implements Comparable<Conversation>
 	{
 		m_setMessages = setMessages;
 	}
+	/**
+	 * @return the id of the last message read, to pass back for the next 
+	 * batch, null if there are no more messages
+	 */
+	public String getCursor()
+	{
+		return m_strCursor;
+	}
+	/**
+	 * @param strCursor the cursor to set
+	 */
+	public void setCursor(String strCursor)
+	{
+		m_strCursor = strCursor;
+	}
 	
 	@Override
 	public int compareTo(Conversation c)
 	{
-		return c.getLastReceivedDate().compareTo(m_lLastReceivedDate);
+		int iRet = c.getLastReceivedDate().compareTo(m_lLastReceivedDate);
+		
+		// conversations updated at the same time are still different
+		return iRet != 0 ? iRet : c.getId().compareTo(m_strId);
 	}
 }
 
@@ -245,6 +343,7 @@ class Message implements Comparable<Message>
 	protected String m_strSubject;
 	protected String m_strBody;
 	protected String m_strSender;
+	protected transient UUID m_uuid;
 	
 	public Message(String strId, String strSender, String strSubject, String strBody)
 	{
@@ -254,6 +353,12 @@ class Message implements Comparable<Message>
 		m_strBody = strBody;
 	}
 	
+	public Message(UUID id, String strSender, String strSubject, String strBody)
+	{
+		this(id.toString(), strSender, strSubject, strBody);
+		m_uuid = id;
+	}
+	
 	/**
 	 * @return the id
 	 */
@@ -267,8 +372,22 @@ class Message implements Comparable<Message>
 	public void setId(String id)
 	{
 		m_strId = id;
+		m_uuid = null;
 	}		
 	
+	/**
+	 * @return the id as the TimeUUID naming the message's columns, parsed once
+	 */
+	public UUID getUuid()
+	{
+		if (m_uuid == null)
+		{
+			m_uuid = UUID.fromString(m_strId);
+		}
+		
+		return m_uuid;
+	}
+	
 	/**
 	 * @return the subject
 	 */
@@ -324,6 +443,9 @@ class Folder
 	protected String m_strName;
 	protected String m_strOwner;
 	protected Set<Conversation> m_setConvs;
+	protected List<ConversationSummary> m_listSummaries;
+	protected String m_strCursor;
+	protected transient FolderKey m_key;
 		
 	/**
 	 * @return the conversations
@@ -337,6 +459,36 @@ class Folder
 	{
 		m_setConvs = setConvs;
 	}
+	
+	/**
+	 * @return the conversation summaries
+	 */
+	public List<ConversationSummary> getSummaries()
+	{
+		return m_listSummaries;
+	}
+
+	public void setSummaries(List<ConversationSummary> listSummaries)
+	{
+		m_listSummaries = listSummaries;
+	}
+	
+	/**
+	 * @return the cursor to pass back for the next page, null if there 
+	 * are no more conversations
+	 */
+	public String getCursor()
+	{
+		return m_strCursor;
+	}
+
+	/**
+	 * @param strCursor the cursor to set
+	 */
+	public void setCursor(String strCursor)
+	{
+		m_strCursor = strCursor;
+	}
 
 	public Folder(String strName, String strOwner)
 	{
@@ -344,6 +496,13 @@ class Folder
 		m_strOwner = strOwner;	
 	}
 	
+	public Folder(FolderKey key)
+	{
+		m_strName = key.getName();
+		m_strOwner = key.getOwner();
+		m_key = key;
+	}
+	
 	/**
 	 * @return the name
 	 */
@@ -357,6 +516,7 @@ class Folder
 	public void setName(String name)
 	{
 		m_strName = name;
+		m_key = null;
 	}
 	/**
 	 * @return the owner
@@ -371,120 +531,357 @@ class Folder
 	public void setOwner(String owner)
 	{
 		m_strOwner = owner;
+		m_key = null;
 	}		
+	
+	/**
+	 * @return the key of the folder's rows
+	 */
+	public FolderKey getKey()
+	{
+		if (m_key == null)
+		{
+			m_key = new FolderKey(m_strOwner, m_strName);
+		}
+		
+		return m_key;
+	}
 }
 
 class FolderUtil
 {
 	protected static Gson gson = new Gson();
 	public static final String FOLDERS = "folders";
-	protected static String pool = "pool";
+	
+	/** First pages of recently read folders */
+	protected static FolderCache cache = new FolderCache(FolderCache.MAX_BYTES, FolderCache.TTL_MS);
+	
+	/** Folder reads in flight, shared by identical concurrent reads */
+	protected static SingleFlight<FolderKey> flights = new SingleFlight<FolderKey>("folder");
 	
 	public static boolean addConversation(Folder f, Conversation c)
 	{
 		try
 		{
-        	Mutator mutator = PelopsUtil.getPool().createMutator();
-        	_addConvToFolder(mutator, f, c);        	        		        
-        	mutator.execute(ConsistencyLevel.ONE);
+        	MessageStore.Batch batch = StoreUtil.getStore().createBatch();
+        	_addConvToFolder(batch, f, c);
+        	batch.execute();
         	return true;
 		}
 		catch (Exception e)
 		{
 			return false;
 		}
+		finally
+		{
+			changed(f);
+		}
 	}	
 	
+	/**
+	 * Drops what is cached or being read of f, called once a write to f 
+	 * is stored or may have been.
+	 */
+	public static void changed(Folder f)
+	{
+		cache.invalidate(f.getKey());
+		flights.detach(f.getKey());
+	}
+	
+	public static void changed(List<Folder> listFolders)
+	{
+		for (Folder f : listFolders)
+		{
+			changed(f);
+		}
+	}
+	
 	public static String getId(Folder f)
 	{
-		return f.getOwner() + PostofficeUtil.DELIM + f.getName();
+		return f.getKey().getId();
+	}
+	
+	public static CompletableFuture<Set<Conversation>> getConversationsAsync(final Folder f, final Long lStart, final Integer iCount)
+	{
+		return CompletableFuture.supplyAsync(() -> getConversations(f, lStart, iCount), StoreUtil.getExecutor());
+	}
+	
+	public static CompletableFuture<Set<Conversation>> getConversationsAsync(final Folder f, final UUID cursor, final Integer iCount)
+	{
+		return CompletableFuture.supplyAsync(() -> getConversations(f, cursor, iCount), StoreUtil.getExecutor());
 	}
 	
+	/**
+	 * Offset based paging. The store still has to read every column 
+	 * before lStart, prefer paging with the folder's cursor.
+	 */
 	public static Set<Conversation> getConversations(Folder f, Long lStart, Integer iCount)
 	{		
-    	Selector selector = PelopsUtil.getPool().createSelector();
-    	SlicePredicate pred = new SlicePredicate();
-    	SliceRange sliceRange = new SliceRange();
-    	sliceRange.setStart("".getBytes());
-    	sliceRange.setFinish("".getBytes());
-    	sliceRange.setCount(lStart.intValue() + iCount);
-    	sliceRange.setReversed(true);
-    	
-    	pred.setSlice_range(sliceRange);
+    	List<StoreColumn> listConvs = FolderBuckets.getSliceAfter(f, null, lStart.intValue() + iCount);
     	
-    	List<Column> listConvs = selector.getColumnsFromRow(FOLDERS, getId(f), pred, ConsistencyLevel.ONE);
+    	// if asked to start after the max size 
+    	// of the folder bail out
+    	if (lStart >= listConvs.size())
+    	{
+    		f.setCursor(null);
+    		return new TreeSet<Conversation>();
+    	}
     	
     	// page list if needed
-    	if (lStart != 0)
+    	listConvs = listConvs.subList(lStart.intValue(), listConvs.size());
+    	f.setCursor(listConvs.size() == iCount ? listConvs.get(listConvs.size() - 1).getName().toString() : null);
+    	
+    	return _toConversations(f, listConvs);
+	}
+	
+	/**
+	 * Cursor based paging. Returns up to iCount conversations that come 
+	 * after the folder column named by the cursor, newest first, or the 
+	 * first page if the cursor is null. The folder's cursor is set to 
+	 * the last column read (null once the folder is exhausted) so every 
+	 * page costs one bounded slice no matter how deep it is. First pages 
+	 * come from the cache when the folder did not change, and concurrent 
+	 * identical reads share one read of the store.
+	 */
+	public static Set<Conversation> getConversations(final Folder f, final UUID cursor, final Integer iCount)
+	{
+		Supplier<FolderCache.Page<Set<Conversation>>> read = () -> flights.run(f.getKey(), "full:" + iCount + ":" + cursor, () -> 
+		{
+			Set<Conversation> setConvs = _toConversations(f, _getPage(f, cursor, iCount));
+			return new FolderCache.Page<Set<Conversation>>(setConvs, f.getCursor());
+		});
+		
+		FolderCache.Page<Set<Conversation>> page = cursor == null ? cache.get(f.getKey(), iCount, true, read) : read.get();
+		
+		f.setCursor(page.getCursor());
+		return new TreeSet<Conversation>(page.getValue());
+	}
+	
+	public static CompletableFuture<List<ConversationSummary>> getSummariesAsync(final Folder f, final UUID cursor, final Integer iCount)
+	{
+		return CompletableFuture.supplyAsync(() -> getSummaries(f, cursor, iCount), StoreUtil.getExecutor());
+	}
+	
+	/**
+	 * Lists a page of the folder from the summaries kept in its columns, 
+	 * one slice and no message bodies. Paging and caching work like 
+	 * getConversations.
+	 */
+	public static List<ConversationSummary> getSummaries(final Folder f, final UUID cursor, final Integer iCount)
+	{
+		Supplier<FolderCache.Page<List<ConversationSummary>>> read = () -> flights.run(f.getKey(), "summaries:" + iCount + ":" + cursor, () -> 
+		{
+			List<ConversationSummary> listSummaries = _getSummaries(f, cursor, iCount);
+			return new FolderCache.Page<List<ConversationSummary>>(listSummaries, f.getCursor());
+		});
+		
+		FolderCache.Page<List<ConversationSummary>> page = cursor == null ? cache.get(f.getKey(), iCount, false, read) : read.get();
+		
+		f.setCursor(page.getCursor());
+		return new ArrayList<ConversationSummary>(page.getValue());
+	}
+	
+	protected static List<ConversationSummary> _getSummaries(Folder f, UUID cursor, Integer iCount)
+	{
+		List<StoreColumn> listCols = _getPage(f, cursor, iCount);
+		List<ConversationSummary> listSummaries = new ArrayList<ConversationSummary>(listCols.size());
+		List<ConversationSummary> listCounted = new ArrayList<ConversationSummary>(listCols.size());
+		Map<Bytes, Integer> mapLegacy = new LinkedHashMap<Bytes, Integer>();
+		Set<String> setSeen = new HashSet<String>();
+		List<UUID> listDuplicates = new ArrayList<UUID>();
+		
+		for (StoreColumn col : listCols)
+		{
+			if (SummaryUtil.isSummary(col.getValue()))
+			{
+				ConversationSummary summary = SummaryUtil.fromJson(col.getStringValue());
+				
+				if (setSeen.add(summary.getId()))
+				{
+					listSummaries.add(summary);
+					listCounted.add(summary);
+				}
+				else
+				{
+					listDuplicates.add(col.getName());
+				}
+			}
+			else if (setSeen.add(col.getStringValue()))
+			{
+				// written before summaries existed, filled in below
+				mapLegacy.put(Bytes.fromByteArray(col.getValue()), listSummaries.size());
+				listSummaries.add(null);
+			}
+			else
+			{
+				listDuplicates.add(col.getName());
+			}
+		}
+		
+		_dropDuplicates(f, listDuplicates);
+		SummaryUtil.addCounts(listCounted);
+		
+		if (!mapLegacy.isEmpty())
+		{
+			LinkedHashMap<Bytes, List<StoreColumn>> mapConvs = StoreUtil.getStore().getSlices(ConversationUtil.CONVERSATIONS, new ArrayList<Bytes>(mapLegacy.keySet()), null, null, false, MessageStore.ALL);
+			
+			for (Entry<Bytes, List<StoreColumn>> e : mapConvs.entrySet())
+			{
+				ConversationKey key = ConversationKey.fromRowKey(e.getKey());
+				listSummaries.set(mapLegacy.get(e.getKey()), SummaryUtil.fromMessages(key.getId(), ConversationUtil._toMessages(key, e.getValue())));
+			}
+		}
+		
+		return listSummaries;
+	}
+	
+	/**
+	 * Reads the folder columns of one page, newest first, and moves the
+	 * folder's cursor to the last of them.
+	 */
+	protected static List<StoreColumn> _getPage(Folder f, UUID cursor, Integer iCount)
+	{
+    	List<StoreColumn> listConvs = FolderBuckets.getSliceAfter(f, cursor, iCount);
+    	
+    	f.setCursor(listConvs.size() == iCount ? listConvs.get(listConvs.size() - 1).getName().toString() : null);
+    	
+    	return listConvs;
+	}
+	
+	/**
+	 * Deletes folder columns found below a newer column of the same 
+	 * conversation. Replies used to add a column without removing the 
+	 * old one, reads clean the rows up as they come across them.
+	 */
+	protected static void _dropDuplicates(Folder f, List<UUID> listNames)
+	{
+		if (f == null || listNames.isEmpty())
+		{
+			return;
+		}
+		
+		MessageStore.Batch batch = StoreUtil.getStore().createBatch();
+		
+		for (UUID name : listNames)
+		{
+			_delConvFromFolder(batch, f, name);
+		}
+		
+		batch.executeAsync().exceptionally(ex -> 
+		{
+			// the next read of the page tries again
+			System.out.println(ex.getMessage());
+			ex.printStackTrace();
+			return null;
+		});
+	}
+	
+	/**
+	 * @return the row key of the conversation a folder column points at
+	 */
+	protected static Bytes _getConvKey(StoreColumn col)
+	{
+		if (SummaryUtil.isSummary(col.getValue()))
+		{
+			return ConversationKey.parse(SummaryUtil.fromJson(col.getStringValue()).getId()).toRowKey();
+		}
+		
+		// only keyspaces with string keys have columns this old
+		return Bytes.fromByteArray(col.getValue());
+	}
+	
+	/**
+	 * Loads the conversations referenced by a slice of folder columns.
+	 */
+	protected static Set<Conversation> _toConversations(List<StoreColumn> listConvs)
+	{
+		return _toConversations(null, listConvs);
+	}
+	
+	/**
+	 * Loads the conversations referenced by a slice of the folder f, and 
+	 * drops the older columns of conversations listed twice.
+	 */
+	protected static Set<Conversation> _toConversations(Folder f, List<StoreColumn> listConvs)
+	{
+    	if (listConvs.size() == 0)
+    	{
+    		return new TreeSet<Conversation>();
+    	}
+    	
+    	// the newest column of a conversation decides where it is listed
+    	LinkedHashMap<Bytes, StoreColumn> mapFolderCols = new LinkedHashMap<Bytes, StoreColumn>();
+    	List<UUID> listDuplicates = new ArrayList<UUID>();
+    	
+    	for (StoreColumn col: listConvs)
     	{
-    		Integer iEnd = lStart.intValue() + iCount;
+    		Bytes convId = _getConvKey(col);
     		
-    		// only get as many elements as the folder has
-    		if (iEnd > listConvs.size() - 1)
+    		if (!mapFolderCols.containsKey(convId))
     		{
-    			iEnd = listConvs.size() - 1;
+    			mapFolderCols.put(convId, col);
     		}
-    		
-    		// if asked to start after the max size 
-    		// of the folder bail out
-    		if (lStart > listConvs.size() - 1)
+    		else
     		{
-    			return new TreeSet<Conversation>();
+    			listDuplicates.add(col.getName());
     		}
-    		
-    		listConvs = listConvs.subList(lStart.intValue(), iEnd);
     	}
     	
-    	List<Bytes> listConvIds = new ArrayList<Bytes>();
+    	_dropDuplicates(f, listDuplicates);
+    	    	
+    	TreeSet<Conversation> conversations = new TreeSet<Conversation>();    	
+		Conversation c;
+    	Map<Bytes, Object> mapTokens = new LinkedHashMap<Bytes, Object>();
     	
-    	for (Column col: listConvs)
+    	// cached conversations are not read again
+    	for (Entry<Bytes, StoreColumn> e : mapFolderCols.entrySet())
     	{
-    		// the value of the column is the conversation row's key
-    		listConvIds.add(Bytes.fromUTF8(Selector.getColumnStringValue(col)));
+    		ConversationCache.Snapshot cached = ConversationUtil.cache.get(e.getKey());
+    		List<Message> listCached = cached == null ? null : cached.all();
+    		
+    		if (listCached == null)
+    		{
+    			mapTokens.put(e.getKey(), ConversationUtil.cache.reserve(e.getKey()));
+    			continue;
+    		}
+    		
+    		c = new Conversation(ConversationKey.fromRowKey(e.getKey()));
+        	c.setLastReceivedDate(Long.valueOf(e.getValue().getTimestamp()));
+        	c.setMessages(new TreeSet<Message>(listCached));
+        	conversations.add(c);
     	}
     	
-    	if (listConvs.size() == 0)
+    	if (mapTokens.isEmpty())
     	{
-    		return new TreeSet<Conversation>();
+    		return conversations;
     	}
-    	    	
-    	pred = new SlicePredicate();
-    	sliceRange = new SliceRange();
-    	sliceRange.setStart("".getBytes());
-    	sliceRange.setFinish("".getBytes());    	
-    	pred.setSlice_range(sliceRange);
     	
-    	LinkedHashMap<Bytes, List<Column>> mapConvs = selector.getColumnsFromRows(ConversationUtil.CONVERSATIONS, listConvIds, pred, ConsistencyLevel.ONE);
-    	TreeSet<Message> setMessages;
-    	TreeSet<Conversation> conversations = new TreeSet<Conversation>();    	
-		Conversation c;
-    	int i = 0;
+    	LinkedHashMap<Bytes, List<StoreColumn>> mapConvs = StoreUtil.getStore().getSlices(ConversationUtil.CONVERSATIONS, new ArrayList<Bytes>(mapTokens.keySet()), null, null, false, MessageStore.ALL);
     	       	
-    	for (Entry<Bytes, List<Column>> e : mapConvs.entrySet())
+    	for (Entry<Bytes, List<StoreColumn>> e : mapConvs.entrySet())
     	{
-    		c = new Conversation(e.getKey().toUTF8());
+    		c = new Conversation(ConversationKey.fromRowKey(e.getKey()));
     		    		
-        	c.setLastReceivedDate(Long.valueOf(Selector.getColumnTimestamp(listConvs, Bytes.fromByteArray(listConvs.get(i).getName()))));
-        	setMessages = new TreeSet<Message>();        	
-        	
-    		for (Column colConv : e.getValue())
-    		{
-    			Message m = MessageUtil.fromJson(Selector.getColumnStringValue(colConv));
-    			    			
-        		setMessages.add(m);
-        	}
-        	        	
-        	c.setMessages(setMessages);
+        	c.setLastReceivedDate(Long.valueOf(mapFolderCols.get(e.getKey()).getTimestamp()));
+        	c.setMessages(new TreeSet<Message>(ConversationUtil._toMessages(c.getKey(), e.getValue(), mapTokens.get(e.getKey()))));
         	conversations.add(c);        
-        	++i;
     	}
     	
     	return conversations;
 	}
 
-	public static Mutator _addConvToFolder(Mutator mutator, Folder f, Conversation conv)
+	public static MessageStore.Batch _addConvToFolder(MessageStore.Batch batch, Folder f, Conversation conv)
+	{
+    	return FolderBuckets.write(batch, f, UuidHelper.newTimeUuid(), StoreUtil.toBytes(conv.getId()));
+	}	
+	
+	/**
+	 * Lists the conversation in the folder under the column position with 
+	 * its summary as the value.
+	 */
+	public static MessageStore.Batch _addConvToFolder(MessageStore.Batch batch, Folder f, UUID position, ConversationSummary summary)
 	{
-    	return mutator.writeColumn(FolderUtil.FOLDERS, FolderUtil.getId(f), mutator.newColumn(Bytes.fromUuid(UuidHelper.newTimeUuid()), conv.getId()));		
+    	return FolderBuckets.write(batch, f, position, StoreUtil.toBytes(SummaryUtil.toJson(summary)));
 	}	
 	
 	public static String toJson(Folder folder)
@@ -492,9 +889,9 @@ class FolderUtil
 		return gson.toJson(folder);
 	}
 
-	public static Mutator _delConvFromFolder(Mutator mutator, Folder f, UUID uuid)
+	public static MessageStore.Batch _delConvFromFolder(MessageStore.Batch batch, Folder f, UUID uuid)
 	{
-    	return mutator.deleteColumn(FolderUtil.FOLDERS, FolderUtil.getId(f), Bytes.fromUuid(uuid));		
+    	return FolderBuckets.delete(batch, f, uuid);
 	}
 }
 
@@ -514,6 +911,22 @@ class MessageUtil
 	{
 		return gson.fromJson(strJson, Message.class);
 	}
+	
+	/**
+	 * @return the message encoded for a conversation column
+	 */
+	public static byte[] toBytes(Message m)
+	{
+		return MessageCodec.encode(m);
+	}
+	
+	/**
+	 * @return the message in a conversation column, binary or JSON
+	 */
+	public static Message fromBytes(byte[] value)
+	{
+		return MessageCodec.decode(value);
+	}
 
 	public static String genId()
 	{
@@ -523,71 +936,337 @@ class MessageUtil
 
 class ConversationUtil
 {
+	protected static Gson gson = new Gson();
 	public static final String CONVERSATIONS = "conversations";
-	protected static String pool = "pool";
+	
+	/** Message bodies, one row per thread shared by every participant's copy */
+	public static final String MESSAGES = "messages";
+	
+	protected static final byte[] NO_BODY = new byte[0];
+	
+	/** Recently read conversations, encoded off the heap */
+	protected static ConversationCache cache = new ConversationCache(ConversationCache.MAX_BYTES, ConversationCache.SLAB_BYTES, ConversationCache.TTL_MS);
 	
 	public static boolean addMessageAndUpdateFolder(Folder f, Conversation conv, Message msg)
 	{
+		List<Folder> listOthers = new ArrayList<Folder>();
+		
 		try
 		{
-        	Mutator mutator = PelopsUtil.getPool().createMutator();        		        		
-        	// add message to conversation        	
-        	_addMessageToConv(mutator, conv, msg);
-        	        	
-        	String strId[] = conv.getId().split(PostofficeUtil.DELIM); 
-        	
-        	// delete the conversation from the folder so we can move 
-        	// it to the top
-        	FolderUtil._delConvFromFolder(mutator, f, UUID.fromString(strId[1]));
-        	
-        	// move the conversation to the top of the folder 
-        	// by re-adding it to update its column time stamp
-        	FolderUtil._addConvToFolder(mutator, f, conv);
+        	MessageStore.Batch batch = StoreUtil.getStore().createBatch();
+        	ConversationKey key = conv.getKey();
+        	_addMessageBody(batch, key.getThread(), msg);
+        	_addMessageAndUpdateFolder(batch, Collections.singletonList(f), key, SummaryUtil.get(key.toRowKey()), msg, listOthers);
         	        
         	// run it
-        	mutator.execute(ConsistencyLevel.ONE);
+        	batch.execute();
+        	messageStored(f, key, msg, true);
+        	FolderUtil.changed(listOthers);
         	
         	return true;
 		}
 		catch (Exception e)
 		{
+			// a batch that timed out may still have been written
+			FolderUtil.changed(f);
+			FolderUtil.changed(listOthers);
+			cache.invalidate(conv.getKey().toRowKey());
 			return false;
 		}
 	}
 	
-	public static boolean addMessageAndUpdateFolder(Folder f, String strId, Message msg)
-	{
-		Conversation c = new Conversation(strId);
-		return addMessageAndUpdateFolder(f, c, msg);
-	}
-
-	public static Conversation withId(String strId)
+	/**
+	 * Adds the writes that put msg in the conversation key and move it to 
+	 * the top of every folder of listFolders to a batch. prev is the 
+	 * conversation's current summary, if any. The conversation's other 
+	 * listings are updated where they are and added to listOthers. Only 
+	 * a reference to msg is added to the conversation, its body has to 
+	 * be written once per thread with _addMessageBody.
+	 * 
+	 * Nothing is read back and changed: the message is counted by a 
+	 * counter and listed under its own id, so of concurrent replies the 
+	 * newest one ends up on top whatever order they are written in.
+	 */
+	public static MessageStore.Batch _addMessageAndUpdateFolder(MessageStore.Batch batch, List<Folder> listFolders, ConversationKey key, ConversationSummary prev, Message msg, List<Folder> listOthers)
 	{
-
-		return new Conversation(strId);
-	}
-
-	private static Mutator _addMessageToConv(Mutator mutator, Conversation conv, Message msg)
-	{		
-		return mutator.writeColumn(CONVERSATIONS, conv.getId(), mutator.newColumn(Bytes.fromUuid(UUID.fromString(msg.getId())), MessageUtil.toJson(msg)));		
+    	Bytes convKey = key.toRowKey();
+    	
+    	// add message to conversation        	
+    	_addMessageToConv(batch, convKey, msg);
+    	SummaryUtil.countMessage(batch, convKey);
+    	
+    	// keep the conversation's summary up to date, a new one needs the id
+    	ConversationSummary summary = SummaryUtil.next(prev, key.getId(), msg);
+    	SummaryUtil.put(batch, convKey, summary);
+    	
+    	Set<FolderKey> setMoved = new HashSet<FolderKey>();
+    	
+    	for (Folder f : listFolders)
+    	{
+    		setMoved.add(f.getKey());
+    		
+        	// delete the conversation from the folder so we can move 
+        	// it to the top, conversations listed before positions were 
+        	// kept are left to the folder reads
+        	UUID old = summary.getPosition(f);
+        	
+        	if (old != null && old.timestamp() > msg.getUuid().timestamp())
+        	{
+        		// a newer message was stored first, it stays on top
+        		continue;
+        	}
+        	else if (old != null)
+        	{
+        		FolderUtil._delConvFromFolder(batch, f, old);
+        	}
+        	
+        	// move the conversation to the top of the folder 
+        	// by re-adding it under the message's column
+        	summary.setPosition(f, msg.getUuid());
+        	SummaryUtil.putPosition(batch, convKey, f, msg.getUuid());
+        	FolderUtil._addConvToFolder(batch, f, msg.getUuid(), summary);
+    	}
+    	
+    	// the conversation's other folders show the new message too
+    	for (Folder f : summary.getListings())
+    	{
+    		if (setMoved.contains(f.getKey()))
+    		{
+    			continue;
+    		}
+    		
+    		FolderUtil._addConvToFolder(batch, f, summary.getPosition(f), summary);
+    		listOthers.add(f);
+    	}
+    	
+    	return batch;
+	}
+	
+	/**
+	 * Counts a message once it is stored in conv in f, drops what is 
+	 * cached or being read of f and the cached conversation, and wakes 
+	 * the folder's subscribers.
+	 */
+	public static void messageStored(Folder f, ConversationKey key, Message msg, boolean bUnread)
+	{
+		FolderUtil.changed(f);
+		cache.invalidate(key.toRowKey());
+		CounterUtil.messageAdded(f, bUnread);
+		NotificationUtil.publish(f, key, msg);
+	}
+	
+	public static CompletableFuture<Boolean> addMessageAndUpdateFolderAsync(final Folder f, final Conversation conv, final Message msg)
+	{
+		return CompletableFuture.supplyAsync(() -> addMessageAndUpdateFolder(f, conv, msg), StoreUtil.getExecutor());
+	}
+	
+	public static boolean addMessageAndUpdateFolder(Folder f, String strId, Message msg)
+	{
+		Conversation c = new Conversation(strId);
+		return addMessageAndUpdateFolder(f, c, msg);
+	}
+
+	public static Conversation withId(String strId)
+	{
+
+		return new Conversation(strId);
+	}
+
+	/**
+	 * Adds a reference to msg to the conversation row convKey, the body 
+	 * lives in the thread's row.
+	 */
+	private static MessageStore.Batch _addMessageToConv(MessageStore.Batch batch, Bytes convKey, Message msg)
+	{		
+		return batch.writeColumn(CONVERSATIONS, convKey, msg.getUuid(), NO_BODY);
+	}
+	
+	/**
+	 * Stores the body of msg once for every copy of the thread.
+	 */
+	public static MessageStore.Batch _addMessageBody(MessageStore.Batch batch, UUID thread, Message msg)
+	{
+		return batch.writeColumn(MESSAGES, ConversationKey.toThreadKey(thread), msg.getUuid(), MessageUtil.toBytes(msg));
+	}
+	
+	/**
+	 * Decodes the columns of a conversation row in order.
+	 */
+	protected static List<Message> _toMessages(ConversationKey key, List<StoreColumn> columns)
+	{
+		return _toMessages(key, columns, null);
+	}
+	
+	/**
+	 * Decodes the columns of a conversation row in order, and caches them 
+	 * under token if they are the whole row and every body was found.
+	 */
+	protected static List<Message> _toMessages(ConversationKey key, List<StoreColumn> columns, Object token)
+	{
+		List<StoreColumn> listBodies = _resolveBodies(key, columns);
+		List<Message> listMessages = new ArrayList<Message>(listBodies.size());
+		
+		for (StoreColumn col : listBodies)
+		{
+			listMessages.add(MessageUtil.fromBytes(col.getValue()));
+		}
+		
+		if (listBodies.size() == columns.size())
+		{
+			cache.put(key.toRowKey(), token, listBodies);
+		}
+		else
+		{
+			cache.release(key.toRowKey(), token);
+		}
+		
+		return listMessages;
+	}
+	
+	/**
+	 * @return the columns of a conversation row with the encoded message 
+	 * as their value, in order. Columns written before bodies were shared 
+	 * hold the message itself, the others are references that are 
+	 * resolved with one read of the thread's row.
+	 */
+	protected static List<StoreColumn> _resolveBodies(ConversationKey key, List<StoreColumn> columns)
+	{
+		List<StoreColumn> listBodies = new ArrayList<StoreColumn>(columns.size());
+		List<UUID> listRefs = new ArrayList<UUID>();
+		
+		for (StoreColumn col : columns)
+		{
+			if (col.getValue().length == 0)
+			{
+				listRefs.add(col.getName());
+			}
+		}
+		
+		Map<UUID, StoreColumn> mapBodies = new HashMap<UUID, StoreColumn>();
+		
+		if (!listRefs.isEmpty())
+		{
+			for (StoreColumn col : StoreUtil.getStore().getColumns(MESSAGES, key.toThreadKey(), listRefs))
+			{
+				mapBodies.put(col.getName(), col);
+			}
+		}
+		
+		for (StoreColumn col : columns)
+		{
+			StoreColumn body = col.getValue().length == 0 ? mapBodies.get(col.getName()) : col;
+			
+			// a body that has not been written yet, or never will be
+			if (body != null)
+			{
+				listBodies.add(body);
+			}
+		}
+		
+		return listBodies;
 	}
 
+	public static CompletableFuture<Conversation> getAsync(final String strId, final UUID cursor, final Integer iCount)
+	{
+		return CompletableFuture.supplyAsync(() -> get(strId, cursor, iCount), StoreUtil.getExecutor());
+	}
+	
+	public static CompletableFuture<Conversation> getSinceAsync(final String strId, final UUID since, final Integer iCount)
+	{
+		return CompletableFuture.supplyAsync(() -> getSince(strId, since, iCount), StoreUtil.getExecutor());
+	}
+	
+	/**
+	 * Reads the iCount newest messages that are older than the message 
+	 * the cursor names, or the newest ones if the cursor is null. The 
+	 * conversation's cursor points at the oldest message returned.
+	 */
+	public static Conversation get(String strId, UUID cursor, Integer iCount)
+	{
+		ConversationKey key = ConversationKey.parse(strId);
+		ConversationCache.Snapshot cached = cache.get(key.toRowKey());
+		List<Message> listCached = cached == null ? null : cached.before(cursor, iCount);
+		
+		if (listCached != null)
+		{
+			return _toConversation(key, listCached, iCount);
+		}
+		
+		Object token = cursor == null ? cache.reserve(key.toRowKey()) : null;
+		List<StoreColumn> columns = StoreUtil.getSliceAfter(CONVERSATIONS, key.toRowKey(), cursor, true, iCount);
+		return _toConversation(key, columns, iCount, token);
+	}
+	
+	/**
+	 * Reads up to iCount messages newer than since, oldest first, for 
+	 * clients that already hold the rest of the thread. The cursor 
+	 * points at the newest message returned.
+	 */
+	public static Conversation getSince(String strId, UUID since, Integer iCount)
+	{
+		ConversationKey key = ConversationKey.parse(strId);
+		ConversationCache.Snapshot cached = cache.get(key.toRowKey());
+		List<Message> listCached = cached == null ? null : cached.after(since, iCount);
+		
+		if (listCached != null)
+		{
+			return _toConversation(key, listCached, iCount);
+		}
+		
+		Object token = since == null ? cache.reserve(key.toRowKey()) : null;
+		List<StoreColumn> columns = StoreUtil.getSliceAfter(CONVERSATIONS, key.toRowKey(), since, false, iCount);
+		return _toConversation(key, columns, iCount, token);
+	}
+	
+	/**
+	 * Builds a page read from the store. A first page shorter than iCount 
+	 * is the whole conversation and is cached under token.
+	 */
+	protected static Conversation _toConversation(ConversationKey key, List<StoreColumn> columns, Integer iCount, Object token)
+	{
+		if (columns.size() == iCount)
+		{
+			cache.release(key.toRowKey(), token);
+			token = null;
+		}
+		
+    	Conversation c = new Conversation(key);
+    	c.setMessages(new TreeSet<Message>(_toMessages(key, columns, token)));
+    	c.setCursor(columns.size() == iCount ? columns.get(columns.size() - 1).getName().toString() : null);
+    	
+		return c;
+	}
+	
+	/**
+	 * Builds a page from cached messages, in the order they were paged.
+	 */
+	protected static Conversation _toConversation(ConversationKey key, List<Message> listMessages, Integer iCount)
+	{
+    	Conversation c = new Conversation(key);
+    	c.setMessages(new TreeSet<Message>(listMessages));
+    	c.setCursor(listMessages.size() == iCount ? listMessages.get(listMessages.size() - 1).getId() : null);
+    	
+		return c;
+	}
+	
 	public static Conversation get(String strId)
 	{
 		Conversation c;
 		
-    	Selector selector = PelopsUtil.getPool().createSelector();
-    	List<Column> columns = selector.getColumnsFromRow(CONVERSATIONS, strId, false, ConsistencyLevel.ONE);
-    	TreeSet<Message> setMessages = new TreeSet<Message>();
+    	ConversationKey key = ConversationKey.parse(strId);
+    	c = new Conversation(key);
+    	ConversationCache.Snapshot cached = cache.get(key.toRowKey());
+    	List<Message> listCached = cached == null ? null : cached.all();
     	
-    	for (Column col : columns)
+    	if (listCached != null)
     	{
-    		Message m = MessageUtil.fromJson(Selector.getColumnStringValue(col));    		
-    		setMessages.add(m);
+    		c.setMessages(new TreeSet<Message>(listCached));
+    		return c;
     	}
     	
-    	c = new Conversation(strId);
-    	c.setMessages(setMessages);
+    	Object token = cache.reserve(key.toRowKey());
+    	List<StoreColumn> columns = StoreUtil.getStore().getSlice(CONVERSATIONS, key.toRowKey(), null, null, false, MessageStore.ALL);
+    	c.setMessages(new TreeSet<Message>(_toMessages(key, columns, token)));
     	    	
 		return c;
 	}
@@ -596,59 +1275,232 @@ class ConversationUtil
 	{
 		return UuidHelper.newTimeUuid().toString();
 	}	
+	
+	public static String toJson(Conversation c)
+	{
+		return gson.toJson(c);
+	}
 }
 
 class PostofficeUtil
 {
 	public static final String DELIM = ":";
+	
+	/** Recipients whose copies are written in one batch, -Dpostoffice.fanout.batchSize */
+	public static final Integer FANOUT_BATCH_SIZE = Integer.getInteger("postoffice.fanout.batchSize", 50);
 
 	public static void startConversation(String strFrom, String strTo, String strSubject, String strBody)
+	{
+		startConversationAsync(strFrom, strTo, strSubject, strBody).join();
+	}
+	
+	public static CompletableFuture<Void> startConversationAsync(String strFrom, String strTo, String strSubject, String strBody)
+	{
+		return startConversationAsync(strFrom, Collections.singletonList(strTo), strSubject, strBody);
+	}
+	
+	public static CompletableFuture<Void> startConversationAsync(String strFrom, List<String> listTo, String strSubject, String strBody)
 	{
 		String strId = ConversationUtil.genId();		
-		sendMessage(strFrom, strTo, strSubject, strBody, strId);
+		return sendMessageAsync(strFrom, listTo, strSubject, strBody, strId);
 	}
 	
 	public static void sendMessage(String strFrom, String strTo, String strSubject, String strBody, String strId)
 	{
-		Message msg = new Message(
-		  MessageUtil.genId(),
+		sendMessageAsync(strFrom, strTo, strSubject, strBody, strId).join();
+	}
+	
+	public static CompletableFuture<Void> sendMessageAsync(String strFrom, String strTo, String strSubject, String strBody, String strId)
+	{
+		return sendMessageAsync(strFrom, Collections.singletonList(strTo), strSubject, strBody, strId);
+	}
+	
+	/**
+	 * Sends a message to every recipient in listTo. The body is stored once 
+	 * for the whole thread and each participant's conversation only gets a 
+	 * reference to it, so the cost of a recipient does not grow with the 
+	 * size of the message.
+	 * 
+	 * The first batch holds the body, the sender's copy and the first 
+	 * FANOUT_BATCH_SIZE recipients, the remaining recipients are written 
+	 * in batches of that size in parallel once the body is stored. Each 
+	 * batch reads the summaries it needs with a single multiget. The 
+	 * future completes exceptionally if any batch fails.
+	 * 
+	 * A sender writing to themselves gets one copy, listed in both their 
+	 * sent and inbox folders, so the message is counted once.
+	 */
+	public static CompletableFuture<Void> sendMessageAsync(String strFrom, List<String> listTo, String strSubject, String strBody, String strId)
+	{
+		final Message msg = new Message(
+		  UuidHelper.newTimeUuid(),
 		  strFrom,
 		  strSubject,
 		  strBody
 		);
+		
+		// parsed once, every copy's key is built from it
+		final UUID thread = UUID.fromString(strId);
+		
+		// a recipient listed twice only gets one copy
+		List<String> listRecipients = new ArrayList<String>(new LinkedHashSet<String>(listTo));
+		final boolean bSelf = listRecipients.remove(strFrom);
+		List<String> listFirst = listRecipients.subList(0, Math.min(FANOUT_BATCH_SIZE, listRecipients.size()));
+		List<String> listSenderFolders = bSelf ? Arrays.asList("sent", "inbox") : Collections.singletonList("sent");
+		List<Folder> listOthers = new ArrayList<Folder>();
+		
+		CompletableFuture<Void> first = CompletableFuture.supplyAsync(() -> 
+		{
+			MessageStore.Batch batch = StoreUtil.getStore().createBatch();
+			ConversationUtil._addMessageBody(batch, thread, msg);
+			_addCopies(batch, listSenderFolders, Collections.singletonList(strFrom), thread, msg, listOthers);
+			return _addCopies(batch, Collections.singletonList("inbox"), listFirst, thread, msg, listOthers);
+		}, StoreUtil.getExecutor()).thenCompose(MessageStore.Batch::executeAsync).thenRun(() -> 
+		{
+			_copiesStored("sent", Collections.singletonList(strFrom), thread, msg, false);
+			
+			if (bSelf)
+			{
+				_copiesStored("inbox", Collections.singletonList(strFrom), thread, msg, true);
+			}
+			
+			_copiesStored("inbox", listFirst, thread, msg, true);
+			FolderUtil.changed(listOthers);
+		});
+		
+		if (listRecipients.size() <= FANOUT_BATCH_SIZE)
+		{
+			return first;
+		}
+		
+		// the other copies reference the body, so they wait for it
+		return first.thenCompose(v -> 
+		{
+			List<CompletableFuture<Void>> listBatches = new ArrayList<CompletableFuture<Void>>();
+			
+			for (int i = FANOUT_BATCH_SIZE; i < listRecipients.size(); i += FANOUT_BATCH_SIZE)
+			{
+				final List<String> listPart = listRecipients.subList(i, Math.min(i + FANOUT_BATCH_SIZE, listRecipients.size()));
+				final List<Folder> listPartOthers = new ArrayList<Folder>();
 				
-		String strInboxId = strTo + DELIM + strId;
-		String strSentId = strFrom + DELIM + strId;
-		
-		// create conversation in recipient's Inbox
-		Conversation conv = new Conversation(strInboxId);
-		Folder inbox = new Folder(strTo, "inbox");				
-		ConversationUtil.addMessageAndUpdateFolder(inbox, conv, msg);
-		
-		// create conversation in sender's Sentbox
-		conv = new Conversation(strSentId);
-		Folder sent = new Folder(strFrom, "sent");				
-		ConversationUtil.addMessageAndUpdateFolder(sent, conv, msg);
-	}		
+				listBatches.add(CompletableFuture.supplyAsync(() -> 
+				{
+					return _addCopies(StoreUtil.getStore().createBatch(), Collections.singletonList("inbox"), listPart, thread, msg, listPartOthers);
+				}, StoreUtil.getExecutor()).thenCompose(MessageStore.Batch::executeAsync).thenRun(() -> 
+				{
+					_copiesStored("inbox", listPart, thread, msg, true);
+					FolderUtil.changed(listPartOthers);
+				}));
+			}
+			
+			return CompletableFuture.allOf(listBatches.toArray(new CompletableFuture<?>[listBatches.size()]));
+		});
+	}
+	
+	/**
+	 * Adds a copy of msg to the listFolders folders of each owner in 
+	 * listOwners, reading their current summaries with one multiget. The 
+	 * copies' other listings that are rewritten are added to listOthers.
+	 */
+	protected static MessageStore.Batch _addCopies(MessageStore.Batch batch, List<String> listFolders, List<String> listOwners, UUID thread, Message msg, List<Folder> listOthers)
+	{
+		if (listOwners.isEmpty())
+		{
+			return batch;
+		}
+		
+
+		List<ConversationKey> listConvKeys = new ArrayList<ConversationKey>(listOwners.size());
+		List<Bytes> listKeys = new ArrayList<Bytes>(listOwners.size());
+		
+		for (String strOwner : listOwners)
+		{
+			ConversationKey key = new ConversationKey(strOwner, thread);
+			listConvKeys.add(key);
+			listKeys.add(key.toRowKey());
+		}
+		
+		Map<Bytes, ConversationSummary> mapPrev = SummaryUtil.getAll(listKeys);
+		
+		for (int i = 0; i < listOwners.size(); i++)
+		{
+			List<Folder> listCopyFolders = new ArrayList<Folder>(listFolders.size());
+			
+			for (String strFolder : listFolders)
+			{
+				listCopyFolders.add(new Folder(listOwners.get(i), strFolder));
+			}
+			
+			ConversationUtil._addMessageAndUpdateFolder(batch, listCopyFolders, listConvKeys.get(i), mapPrev.get(listKeys.get(i)), msg, listOthers);
+		}
+		
+		return batch;
+	}
+	
+	/**
+	 * Counts the copies written by _addCopies once they are stored and 
+	 * wakes their subscribers.
+	 */
+	protected static void _copiesStored(String strFolder, List<String> listOwners, UUID thread, Message msg, boolean bUnread)
+	{
+		for (String strOwner : listOwners)
+		{
+			ConversationUtil.messageStored(new Folder(strOwner, strFolder), new ConversationKey(strOwner, thread), msg, bUnread);
+		}
+	}
 }
 
 class PelopsUtil
 {
+	/** Keyspace holding the column families, -Dpostoffice.cassandra.keyspace */
+	public static final String KEYSPACE = System.getProperty("postoffice.cassandra.keyspace", "hmb");
+	
 	protected static IThriftPool pool;
 	
+	/**
+	 * Opens a pool to every node of LatencyAwareMessageStore.NODES. With 
+	 * more than one node calls go to the fastest ones and slow reads are 
+	 * hedged.
+	 */
 	public static void connect()
 	{
-    	String keyspace = "hmb";
-    	Cluster cluster = new Cluster("localhost", 9160);
-    	pool = new CommonsBackedPool(cluster, keyspace);    	
+		Map<String, MessageStore> mapNodes = new LinkedHashMap<String, MessageStore>();
+		
+		for (String strNode : LatencyAwareMessageStore.NODES.split(","))
+		{
+			String[] hostPort = strNode.trim().split(":");
+			Cluster cluster = new Cluster(hostPort[0], hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : 9160);
+			IThriftPool nodePool = new CommonsBackedPool(cluster, KEYSPACE);
+			
+			if (pool == null)
+			{
+				pool = nodePool;
+			}
+			
+			mapNodes.put(strNode.trim(), new PelopsMessageStore(nodePool));
+		}
+		
+		MessageStore store = mapNodes.size() == 1 ? mapNodes.values().iterator().next() : new LatencyAwareMessageStore(
+		  mapNodes, 
+		  LatencyAwareMessageStore.HEDGE_QUANTILE, 
+		  LatencyAwareMessageStore.HEDGE_MIN_MS, 
+		  LatencyAwareMessageStore.HEDGE_WINDOW_MS
+		);
+    	
+    	// group commit sends, one round trip per window instead of one each
+    	StoreUtil.setStore(CoalescingMessageStore.wrap(store));
 	}
 	
 	public static void disconnect()
 	{
-		// shut down the pool
-		pool.shutdown();
+		// write the counts still in memory, then shut down the pool
+		CounterUtil.flush();
+		StoreUtil.getStore().shutdown();
 	}
 	
+	/**
+	 * @return the pool of the first node
+	 */
 	public static IThriftPool getPool()
 	{
 		return pool;
@@ -674,40 +1526,77 @@ class IndexHandler implements HttpServer.RequestHandler
 	}
 }
 
-class FolderHandler implements HttpServer.RequestHandler
+class FolderHandler implements HttpServer.AsyncRequestHandler
 {
 	protected final String COUNT = "count";
 	protected final String OWNER = "owner";
 	protected final String START = "start";
 	protected final String FOLDER = "folder";
+	protected final String CURSOR = "cursor";
+	protected final String FULL = "full";
 	
 	@Override
-	public String handle(HttpRequest r)
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
 	{
 		QueryStringDecoder decoder = new QueryStringDecoder(r.getUri());
 		Map<String, List<String>> mapParams = decoder.getParameters();
 	
 		String strOwner = mapParams.get(OWNER).get(0);
-		Long lStart = Long.parseLong(mapParams.get(START).get(0));
 		Integer iCount = Integer.parseInt(mapParams.get(COUNT).get(0));
 		String strFolder = mapParams.get(FOLDER).get(0);
 		
-    	Folder inbox = new Folder(strOwner, strFolder);    	    	
+    	final Folder inbox = new Folder(strOwner, strFolder);    	    	
+    	UUID cursor;
+    	
     	try
     	{
-    		Set<Conversation> convs = FolderUtil.getConversations(inbox, lStart, iCount);
-    		inbox.setConversations(convs);
-    	} 
-    	catch (Exception ex)
+    		cursor = ConversationHandler.getMessageId(mapParams, CURSOR);
+    	}
+    	catch (IllegalArgumentException e)
     	{
-    		System.out.println(ex.getMessage());
-    		ex.printStackTrace();
+    		return ConversationHandler.badRequest(e.getMessage());
     	}
-				
-		StringBuffer strBuf = new StringBuffer();
-		strBuf.append(FolderUtil.toJson(inbox));
-		
-		return strBuf.toString();
+    	
+    	// summaries only unless the whole conversations are asked for
+    	if (!mapParams.containsKey(FULL) && !mapParams.containsKey(START))
+    	{
+    		return FolderUtil.getSummariesAsync(inbox, cursor, iCount).handle((summaries, ex) ->
+    		{
+        		if (ex != null)
+        		{
+        			return ConversationHandler.failed(ex);
+        		}
+        		
+        		inbox.setSummaries(summaries);
+        		return HttpServer.Response.streamJson(inbox);
+    		});
+    	}
+    	
+    	CompletableFuture<Set<Conversation>> convsRead;
+    	
+    	if (cursor != null)
+    	{
+    		convsRead = FolderUtil.getConversationsAsync(inbox, cursor, iCount);
+    	}
+    	else if (mapParams.containsKey(START))
+    	{
+    		convsRead = FolderUtil.getConversationsAsync(inbox, Long.parseLong(mapParams.get(START).get(0)), iCount);
+    	}
+    	else
+    	{
+    		convsRead = FolderUtil.getConversationsAsync(inbox, (UUID) null, iCount);
+    	}
+    	
+    	return convsRead.handle((convs, ex) -> 
+    	{
+    		if (ex != null)
+    		{
+    			return ConversationHandler.failed(ex);
+    		}
+    		
+    		inbox.setConversations(convs);
+    		return HttpServer.Response.streamJson(inbox);
+    	});
 	}	
 	
 	public static FolderHandler get()
@@ -716,144 +1605,809 @@ class FolderHandler implements HttpServer.RequestHandler
 	}
 }
 
-abstract class ConversationHandler implements HttpServer.RequestHandler
+/**
+ * Reads a conversation in bounded batches. Without a cursor it returns 
+ * the newest count messages, with cursor=<message id> the ones before 
+ * that, and with since=<message id> only those that came after it.
+ */
+class ConversationReadHandler implements HttpServer.AsyncRequestHandler
 {
-	protected final String FROM = "from";
-	protected final String TO = "to";
-	protected final String SUBJECT = "subject";
-	protected final String BODY = "body";
+	public static final int DEFAULT_COUNT = 20;
+	public static final int MAX_COUNT = 500;
+	
 	protected final String ID = "id";
-}
-
-class NewConversationHandler extends ConversationHandler
-{
-	protected final String FROM = "from";
-	protected final String TO = "to";
+	protected final String COUNT = "count";
+	protected final String CURSOR = "cursor";
+	protected final String SINCE = "since";
+	
+	@Override
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
+	{
+		QueryStringDecoder decoder = new QueryStringDecoder(r.getUri());
+		Map<String, List<String>> mapParams = decoder.getParameters();
+		
+		if (!mapParams.containsKey(ID))
+		{
+			return ConversationHandler.badRequest("Missing id");
+		}
+		
+		String strId = mapParams.get(ID).get(0);
+		Integer iCount = mapParams.containsKey(COUNT) ? Integer.parseInt(mapParams.get(COUNT).get(0)) : DEFAULT_COUNT;
+		iCount = Math.max(1, Math.min(iCount, MAX_COUNT));
+		
+		UUID since;
+		UUID cursor;
+		
+		try
+		{
+			ConversationKey.parse(strId);
+			since = ConversationHandler.getMessageId(mapParams, SINCE);
+			cursor = ConversationHandler.getMessageId(mapParams, CURSOR);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return ConversationHandler.badRequest(e.getMessage());
+		}
+		
+		CompletableFuture<Conversation> convRead;
+		
+		if (since != null)
+		{
+			convRead = ConversationUtil.getSinceAsync(strId, since, iCount);
+		}
+		else
+		{
+			convRead = ConversationUtil.getAsync(strId, cursor, iCount);
+		}
+		
+		return convRead.thenApply(conv -> HttpServer.Response.streamJson(conv));
+	}
+	
+	public static ConversationReadHandler get()
+	{
+		return new ConversationReadHandler();
+	}
+}
+
+abstract class ConversationHandler implements HttpServer.AsyncRequestHandler
+{
+	protected final String FROM = "from";
+	protected final String TO = "to";
 	protected final String SUBJECT = "subject";
 	protected final String BODY = "body";
+	protected final String ID = "id";
+	
+	protected static final String OK = "{\"status\":\"ok\"}";
+	protected static final String ERR = "{\"status\":\"err\"}";
+	
+	protected static Gson gson = new Gson();
+	
+	/**
+	 * Turns the outcome of a send into the status response, a failed send
+	 * answers 500 with the reason.
+	 */
+	protected static CompletableFuture<HttpServer.Response> toResponse(CompletableFuture<Void> sent)
+	{
+		return sent.handle((v, ex) -> 
+		{
+			if (ex == null)
+			{
+				return HttpServer.Response.json(OK);
+			}
+			
+			return failed(ex);
+		});
+	}
+	
+	/**
+	 * @return the 500 answering a request the store failed, logged
+	 */
+	protected static HttpServer.Response failed(Throwable ex)
+	{
+		Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+		System.out.println(cause.getMessage());
+		cause.printStackTrace();
+		return error(HttpResponseStatus.INTERNAL_SERVER_ERROR, cause.getMessage());
+	}
+	
+	/**
+	 * @return a status response with the reason of an error
+	 */
+	protected static HttpServer.Response error(HttpResponseStatus status, String strError)
+	{
+		Map<String, String> mapErr = new LinkedHashMap<String, String>();
+		mapErr.put("status", "err");
+		mapErr.put("error", String.valueOf(strError));
+		return HttpServer.Response.json(status, gson.toJson(mapErr));
+	}
+	
+	/**
+	 * @return the 400 answering a request the client got wrong
+	 */
+	protected static CompletableFuture<HttpServer.Response> badRequest(String strError)
+	{
+		return CompletableFuture.completedFuture(error(BAD_REQUEST, strError));
+	}
+	
+	/**
+	 * @return the message id (a TimeUUID) in parameter strName, null if 
+	 * it is not given
+	 * 
+	 * @throws IllegalArgumentException if it is not a TimeUUID
+	 */
+	protected static UUID getMessageId(Map<String, List<String>> mapParams, String strName)
+	{
+		if (!mapParams.containsKey(strName))
+		{
+			return null;
+		}
+		
+		String strValue = mapParams.get(strName).get(0);
+		
+		try
+		{
+			UUID uuid = UUID.fromString(strValue);
+			
+			if (uuid.version() == 1)
+			{
+				return uuid;
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		
+		throw new IllegalArgumentException("Not a message id: " + strName + "=" + strValue);
+	}
+	
+	/**
+	 * @return the parameters of a send. They come from the query string, 
+	 * overridden by the fields of a POSTed JSON object (application/json, 
+	 * to may be an array). A POSTed body of any other type is the message 
+	 * body itself, sent as is instead of URL encoded: text in the charset 
+	 * it names (UTF-8 by default), anything else one char per byte so no 
+	 * byte is lost.
+	 * 
+	 * @throws IllegalArgumentException if the body is not a JSON object 
+	 * of strings and arrays of strings, or names an unknown charset
+	 */
+	protected Map<String, List<String>> getParams(HttpRequest r)
+	{
+		Map<String, List<String>> mapParams = new HashMap<String, List<String>>(new QueryStringDecoder(r.getUri()).getParameters());
+		
+		if (!r.getMethod().equals(HttpMethod.POST) || !r.getContent().readable())
+		{
+			return mapParams;
+		}
+		
+		String strType = r.getHeader(CONTENT_TYPE);
+		
+		if (strType == null || !strType.startsWith("application/json"))
+		{
+			mapParams.put(BODY, Collections.singletonList(r.getContent().toString(getCharset(strType))));
+			return mapParams;
+		}
+		
+		JsonElement json;
+		
+		try
+		{
+			json = new JsonParser().parse(r.getContent().toString(CharsetUtil.UTF_8));
+		}
+		catch (JsonParseException e)
+		{
+			throw new IllegalArgumentException("body is not valid JSON", e);
+		}
+		
+		if (!json.isJsonObject())
+		{
+			throw new IllegalArgumentException("body is not a JSON object");
+		}
+		
+		for (Entry<String, JsonElement> e : json.getAsJsonObject().entrySet())
+		{
+			List<String> listValues = new ArrayList<String>();
+			
+			for (JsonElement value : e.getValue().isJsonArray() ? e.getValue().getAsJsonArray() : Collections.singletonList(e.getValue()))
+			{
+				if (!value.isJsonPrimitive())
+				{
+					throw new IllegalArgumentException(e.getKey() + " is not a string or an array of strings");
+				}
+				
+				listValues.add(value.getAsString());
+			}
+			
+			mapParams.put(e.getKey(), listValues);
+		}
+		
+		return mapParams;
+	}
+	
+	/**
+	 * @return the charset a POSTed body is read with, the one its type 
+	 * names, else UTF-8 for text and ISO-8859-1, which maps every byte to 
+	 * the char of the same value, for the rest
+	 */
+	protected static Charset getCharset(String strType)
+	{
+		if (strType == null)
+		{
+			return CharsetUtil.UTF_8;
+		}
+		
+		int iCharset = strType.toLowerCase().indexOf("charset=");
+		
+		if (iCharset >= 0)
+		{
+			String strCharset = strType.substring(iCharset + "charset=".length()).split(";")[0].trim().replace("\"", "");
+			return Charset.forName(strCharset);
+		}
+		
+		return strType.startsWith("text/") ? CharsetUtil.UTF_8 : CharsetUtil.ISO_8859_1;
+	}
+	
+	/**
+	 * @return the recipients of a request, to may be repeated or hold a comma separated list
+	 */
+	protected static List<String> getRecipients(List<String> listTo)
+	{
+		List<String> listRecipients = new ArrayList<String>();
+		
+		for (String strTo : listTo)
+		{
+			for (String strRecipient : strTo.split(","))
+			{
+				strRecipient = strRecipient.trim();
+				
+				if (strRecipient.length() > 0)
+				{
+					listRecipients.add(strRecipient);
+				}
+			}
+		}
+		
+		return listRecipients;
+	}
+}
+
+/**
+ * Answers the unread and total counts of a folder, cheap enough to poll.
+ */
+class CountsHandler implements HttpServer.AsyncRequestHandler
+{
+	protected final String OWNER = "owner";
+	protected final String FOLDER = "folder";
 	
 	@Override
-	public String handle(HttpRequest r)
-	{	
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
+	{
+		QueryStringDecoder decoder = new QueryStringDecoder(r.getUri());
+		Map<String, List<String>> mapParams = decoder.getParameters();
+		
+		Folder f = new Folder(mapParams.get(OWNER).get(0), mapParams.get(FOLDER).get(0));
+		
+		return CounterUtil.getAsync(f).thenApply(counts -> HttpServer.Response.json(CounterUtil.toJson(counts)));
+	}
+	
+	public static CountsHandler get()
+	{
+		return new CountsHandler();
+	}
+}
+
+/**
+ * Marks every message of a folder as read.
+ */
+class MarkReadHandler extends ConversationHandler
+{
+	protected final String OWNER = "owner";
+	protected final String FOLDER = "folder";
+	
+	@Override
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
+	{
+		QueryStringDecoder decoder = new QueryStringDecoder(r.getUri());
+		Map<String, List<String>> mapParams = decoder.getParameters();
+		
+		Folder f = new Folder(mapParams.get(OWNER).get(0), mapParams.get(FOLDER).get(0));
+		
+		return toResponse(CounterUtil.markReadAsync(f));
+	}
+	
+	public static MarkReadHandler get()
+	{
+		return new MarkReadHandler();
+	}
+}
+
+/**
+ * Long-polls a folder: answers with the next message added to it, or
+ * with a timeout status. The request holds no thread while it waits.
+ */
+class SubscribeHandler implements HttpServer.AsyncRequestHandler
+{
+	protected final String OWNER = "owner";
+	protected final String FOLDER = "folder";
+	protected final String SINCE = "since";
+	protected final String TIMEOUT = "timeout";
+	
+	protected static final String TIMED_OUT = "{\"status\":\"timeout\"}";
+	
+	@Override
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
+	{
 		QueryStringDecoder decoder = new QueryStringDecoder(r.getUri());
 		Map<String, List<String>> mapParams = decoder.getParameters();
+		
+		Folder f = new Folder(mapParams.get(OWNER).get(0), mapParams.get(FOLDER).get(0));
+		UUID since;
+		
+		try
+		{
+			since = ConversationHandler.getMessageId(mapParams, SINCE);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return ConversationHandler.badRequest(e.getMessage());
+		}
+		
+		// clients may ask for less, never for more
+		long lTimeoutMs = NotificationUtil.TIMEOUT_MS;
+		
+		if (mapParams.containsKey(TIMEOUT))
+		{
+			lTimeoutMs = Math.min(lTimeoutMs, Long.parseLong(mapParams.get(TIMEOUT).get(0)));
+		}
+		
+		return NotificationUtil.subscribe(f, since, lTimeoutMs).thenApply(n -> 
+		{
+			return HttpServer.Response.json(n == null ? TIMED_OUT : NotificationUtil.toJson(n));
+		});
+	}
+	
+	public static SubscribeHandler get()
+	{
+		return new SubscribeHandler();
+	}
+}
+
+/**
+ * Serves the metrics in the Prometheus text exposition format.
+ */
+class MetricsHandler implements HttpServer.AsyncRequestHandler
+{
+	public static final String CONTENT_TYPE_TEXT = "text/plain; version=0.0.4; charset=UTF-8";
+	
+	@Override
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
+	{
+		HttpServer.Response response = new HttpServer.Response(OK, ChannelBuffers.copiedBuffer(MetricsUtil.toPrometheus(), CharsetUtil.UTF_8));
+		response.setHeader(CONTENT_TYPE, CONTENT_TYPE_TEXT);
+		return CompletableFuture.completedFuture(response);
+	}
+	
+	public static MetricsHandler get()
+	{
+		return new MetricsHandler();
+	}
+}
+
+class NewConversationHandler extends ConversationHandler
+{
+	protected final String FROM = "from";
+	protected final String TO = "to";
+	protected final String SUBJECT = "subject";
+	protected final String BODY = "body";
+	
+	@Override
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
+	{	
+		Map<String, List<String>> mapParams;
+		
+		try
+		{
+			mapParams = getParams(r);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return badRequest(e.getMessage());
+		}
+	
+		String strFrom = mapParams.get(FROM).get(0);
+		List<String> listTo = getRecipients(mapParams.get(TO));
+		String strSubject = mapParams.get(SUBJECT).get(0);
+		String strBody = mapParams.get(BODY).get(0);
+		
+		return toResponse(PostofficeUtil.startConversationAsync(strFrom, listTo, strSubject, strBody));
+	}
+	
+	public static NewConversationHandler get()
+	{
+		return new NewConversationHandler();
+	}
+}
+
+class ReplyHandler extends ConversationHandler
+{
+	@Override
+	public CompletableFuture<HttpServer.Response> handleAsync(HttpRequest r)
+	{		
+		Map<String, List<String>> mapParams;
+		UUID id;
+		
+		try
+		{
+			mapParams = getParams(r);
+			id = getMessageId(mapParams, ID);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return badRequest(e.getMessage());
+		}
+		
+		if (id == null)
+		{
+			return badRequest("Missing id");
+		}
+	
+		String strFrom = mapParams.get(FROM).get(0);
+		List<String> listTo = getRecipients(mapParams.get(TO));
+		String strSubject = mapParams.get(SUBJECT).get(0);
+		String strBody = mapParams.get(BODY).get(0);
+		
+		return toResponse(PostofficeUtil.sendMessageAsync(strFrom, listTo, strSubject, strBody, id.toString()));
+	}
+	
+	public static ReplyHandler get()
+	{
+		return new ReplyHandler();
+	}
+}
+
+class HttpServer
+{
+	/** Per connection and total bytes of queued requests before reads are suspended */
+	public static final long MAX_CHANNEL_MEMORY = 1024 * 1024;
+	public static final long MAX_TOTAL_MEMORY = 64 * 1024 * 1024;
+	
+	/** Largest request body accepted, bigger ones are answered 413, -Dpostoffice.http.maxBodyBytes */
+	public static final Integer MAX_BODY_BYTES = Integer.getInteger("postoffice.http.maxBodyBytes", 4 * 1024 * 1024);
+	
+	protected Integer m_intPort;
+	protected Integer m_intHandlerThreads = 16;
+	protected Boolean m_bVirtualThreads = false;
+	
+	protected Map<String, HttpServer.AsyncRequestHandler> m_mapPrefixHandlers = new LinkedHashMap<String, HttpServer.AsyncRequestHandler>();
+	protected Map<String, HttpServer.AsyncRequestHandler> m_mapExactHandlers = new LinkedHashMap<String, HttpServer.AsyncRequestHandler>();
+	
+	protected ServerBootstrap m_bootstrap;
+	protected ExecutionHandler m_execution;
+	protected Channel m_channel;
+	
+	public HttpServer(Integer intPort)
+	{
+		m_intPort = intPort;
+	}
+	
+	public void start()
+	{
+		// Configure the server.
+		ServerBootstrap bootstrap = m_bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+
+		// Run the handlers away from the I/O threads so a slow store
+		// call does not stall every connection on the same worker.
+		m_execution = new ExecutionHandler(newHandlerExecutor());
+		
+		// Set up the event pipeline factory.
+		bootstrap.setPipelineFactory(new HttpServerPipelineFactory(compileRoutes(), m_execution));
+
+		// Bind and start to accept incoming connections.
+		m_channel = bootstrap.bind(new InetSocketAddress(m_intPort));
+	}
+	
+	/**
+	 * Stops accepting connections and releases the I/O and handler
+	 * threads.
+	 */
+	public void stop()
+	{
+		m_channel.close().awaitUninterruptibly();
+		m_bootstrap.releaseExternalResources();
+
+		// the bootstrap does not know about the handler executor
+		m_execution.releaseExternalResources();
+		Executor executor = m_execution.getExecutor();
+
+		if (executor instanceof ExternalResourceReleasable)
+		{
+			((ExternalResourceReleasable) executor).releaseExternalResources();
+		}
+	}
+	
+	/**
+	 * Both executors keep the events of a channel in order, so responses
+	 * on a keep-alive connection are written in request order.
+	 */
+	protected Executor newHandlerExecutor()
+	{
+		if (m_bVirtualThreads)
+		{
+			try
+			{
+				// only available on JVMs with virtual threads
+				Executor executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				return new ChannelOrderedExecutor(executor);
+			}
+			catch (Exception e)
+			{
+				System.out.println("Virtual threads are not available, using a pool of " + m_intHandlerThreads + " threads");
+			}
+		}
+		
+		final OrderedMemoryAwareThreadPoolExecutor executor = new OrderedMemoryAwareThreadPoolExecutor(m_intHandlerThreads, MAX_CHANNEL_MEMORY, MAX_TOTAL_MEMORY);
+		MetricsUtil.gauge("postoffice_http_handler_threads_busy", null, "Request handler threads running a request.", () -> executor.getActiveCount());
+		MetricsUtil.gauge("postoffice_http_handler_threads", null, "Request handler threads started.", () -> executor.getPoolSize());
+		return executor;
+	}
+	
+	public interface RequestHandler
+	{
+		public String handle(HttpRequest request);
+	}
 	
-		String strFrom = mapParams.get(FROM).get(0);
-		String strTo = mapParams.get(TO).get(0);
-		String strSubject = mapParams.get(SUBJECT).get(0);
-		String strBody = mapParams.get(BODY).get(0);
-		
-		StringBuffer strBuf = new StringBuffer();
-				
-    	try
-    	{
-    		PostofficeUtil.startConversation(strFrom, strTo, strSubject, strBody);
-    		strBuf.append("{\"status\":\"ok\"}");
-    	} 
-    	catch (Exception ex)
-    	{
-    		System.out.println(ex.getMessage());
-    		ex.printStackTrace();
-    		strBuf.append("{\"status\":\"err\"}");
-
-    	}
-    	
-    	return strBuf.toString();
+	/**
+	 * A handler that does not have to produce its response on the calling
+	 * thread. Handlers doing I/O should complete the future from wherever
+	 * that I/O finishes.
+	 */
+	public interface AsyncRequestHandler
+	{
+		public CompletableFuture<Response> handleAsync(HttpRequest request);
 	}
 	
-	public static NewConversationHandler get()
+	/**
+	 * Runs a plain String handler and wraps its result in a 200 response.
+	 */
+	public static class RequestHandlerAdapter implements AsyncRequestHandler
 	{
-		return new NewConversationHandler();
+		protected RequestHandler m_handler;
+		
+		public RequestHandlerAdapter(RequestHandler handler)
+		{
+			m_handler = handler;
+		}
+		
+		@Override
+		public CompletableFuture<Response> handleAsync(HttpRequest request)
+		{
+			try
+			{
+				return CompletableFuture.completedFuture(Response.json(m_handler.handle(request)));
+			}
+			catch (Exception e)
+			{
+				CompletableFuture<Response> future = new CompletableFuture<Response>();
+				future.completeExceptionally(e);
+				return future;
+			}
+		}
 	}
-}
-
-class ReplyHandler extends ConversationHandler
-{
-	@Override
-	public String handle(HttpRequest r)
-	{		
-		QueryStringDecoder decoder = new QueryStringDecoder(r.getUri());
-		Map<String, List<String>> mapParams = decoder.getParameters();
 	
-		String strFrom = mapParams.get(FROM).get(0);
-		String strTo = mapParams.get(TO).get(0);
-		String strSubject = mapParams.get(SUBJECT).get(0);
-		String strBody = mapParams.get(BODY).get(0);
-		String strId = mapParams.get(ID).get(0);
+	/**
+	 * Records the latency of a route from dispatch until its response is
+	 * ready, and counts the requests that fail or answer with a 5xx.
+	 */
+	public static class TimedHandler implements AsyncRequestHandler
+	{
+		protected AsyncRequestHandler m_handler;
+		protected WindowedHistogram m_latency;
+		protected LongAdder m_errors;
 		
-		StringBuffer strBuf = new StringBuffer();
-				
-    	try
-    	{
-    		PostofficeUtil.sendMessage(strFrom, strTo, strSubject, strBody, strId);
-    		strBuf.append("{\"status\":\"ok\"}");
-    	} 
-    	catch (Exception ex)
-    	{
-    		System.out.println(ex.getMessage());
-    		ex.printStackTrace();
-    		strBuf.append("{\"status\":\"err\"}");
-    	}
+		public TimedHandler(String strRoute, AsyncRequestHandler handler)
+		{
+			m_handler = handler;
+			m_latency = MetricsUtil.histogram("postoffice_http_request_seconds", "route=\"" + strRoute + "\"", "Latency of the requests handled by each route.");
+			m_errors = MetricsUtil.counter("postoffice_http_request_errors_total", "route=\"" + strRoute + "\"", "Requests that failed or answered with a server error.");
+		}
 		
-    	return strBuf.toString();
+		@Override
+		public CompletableFuture<Response> handleAsync(HttpRequest request)
+		{
+			final long lStart = System.nanoTime();
+			CompletableFuture<Response> future;
+			
+			try
+			{
+				future = m_handler.handleAsync(request);
+			}
+			catch (RuntimeException e)
+			{
+				future = new CompletableFuture<Response>();
+				future.completeExceptionally(e);
+			}
+			
+			return future.whenComplete((r, ex) -> 
+			{
+				m_latency.record(System.nanoTime() - lStart);
+				
+				if (ex != null || r.getStatus().getCode() >= 500)
+				{
+					m_errors.increment();
+				}
+			});
+		}
 	}
 	
-	public static ReplyHandler get()
+	/**
+	 * A body written into the response as it is serialized rather than
+	 * built up front.
+	 */
+	public interface StreamingBody
 	{
-		return new ReplyHandler();
+		public void writeTo(Writer writer) throws IOException;
 	}
-}
-
-class HttpServer
-{
-	protected Integer m_intPort;
 	
-	protected Map<String, HttpServer.RequestHandler> m_mapHandlers = new ConcurrentSkipListMap<String, HttpServer.RequestHandler>(new Comparator() 
+	public static class Response
 	{
-		@Override
-		public int compare(Object o1, Object o2)
+		public static final String DEFAULT_CONTENT_TYPE = "text/javascript; charset=UTF-8";
+		
+		protected static Gson gson = new Gson();
+		
+		protected HttpResponseStatus m_status;
+		protected Map<String, String> m_mapHeaders = new LinkedHashMap<String, String>();
+		protected ChannelBuffer m_content;
+		protected StreamingBody m_body;
+		
+		public Response(HttpResponseStatus status, ChannelBuffer content)
+		{
+			m_status = status;
+			m_content = content;
+		}
+		
+		public Response(HttpResponseStatus status, StreamingBody body)
+		{
+			m_status = status;
+			m_body = body;
+		}
+		
+		/**
+		 * @return a response that serializes src with Gson directly into 
+		 * the outgoing buffers, no intermediate String
+		 */
+		public static Response streamJson(final Object src)
+		{
+			Response r = new Response(OK, new StreamingBody()
+			{
+				@Override
+				public void writeTo(Writer writer) throws IOException
+				{
+					gson.toJson(src, writer);
+				}
+			});
+			r.setHeader(CONTENT_TYPE, DEFAULT_CONTENT_TYPE);
+			return r;
+		}
+		
+		public static Response json(String strBody)
+		{
+			return json(OK, strBody);
+		}
+		
+		public static Response json(HttpResponseStatus status, String strBody)
+		{
+			Response r = new Response(status, ChannelBuffers.copiedBuffer(strBody, CharsetUtil.UTF_8));
+			r.setHeader(CONTENT_TYPE, DEFAULT_CONTENT_TYPE);
+			return r;
+		}
+		
+		/**
+		 * @return the status
+		 */
+		public HttpResponseStatus getStatus()
+		{
+			return m_status;
+		}
+		
+		/**
+		 * @return the headers
+		 */
+		public Map<String, String> getHeaders()
+		{
+			return m_mapHeaders;
+		}
+		
+		public Response setHeader(String strName, String strValue)
+		{
+			m_mapHeaders.put(strName, strValue);
+			return this;
+		}
+		
+		/**
+		 * @return the body, null if it is streamed
+		 */
+		public ChannelBuffer getContent()
 		{
-			// force everything to the end of the list
-			return 1;
+			return m_content;
 		}
 		
-	});
+		/**
+		 * @return the streamed body, null if the content is already built
+		 */
+		public StreamingBody getBody()
+		{
+			return m_body;
+		}
+	}
 	
-	public HttpServer(Integer intPort)
+	/**
+	 * Handles strUrl and every path below it. The longest matching 
+	 * prefix wins, registration order does not matter.
+	 */
+	public void addHandler(String strUrl, RequestHandler handler)
 	{
-		m_intPort = intPort;
+		addAsyncHandler(strUrl, new RequestHandlerAdapter(handler));
 	}
 	
-	public void start()
+	/**
+	 * Like addHandler, for a handler that answers asynchronously.
+	 */
+	public void addAsyncHandler(String strUrl, AsyncRequestHandler handler)
 	{
-		// Configure the server.
-		ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
-
-		// Set up the event pipeline factory.
-		bootstrap.setPipelineFactory(new HttpServerPipelineFactory(m_mapHandlers));
-
-		// Bind and start to accept incoming connections.
-		bootstrap.bind(new InetSocketAddress(m_intPort));
+		m_mapPrefixHandlers.put(strUrl, handler);
 	}
 	
-	public interface RequestHandler
+	/**
+	 * Handles strUrl only, ahead of any prefix handler.
+	 */
+	public void addExactHandler(String strUrl, AsyncRequestHandler handler)
 	{
-		public String handle(HttpRequest request);
+		m_mapExactHandlers.put(strUrl, handler);
 	}
 	
-	public Map<String, HttpServer.RequestHandler> getHandlers()
+	protected HttpRouter compileRoutes()
 	{
-		return m_mapHandlers;
+		HttpRouter router = new HttpRouter();
+		
+		for (Map.Entry<String, AsyncRequestHandler> e : m_mapPrefixHandlers.entrySet())
+		{
+			router.addPrefix(e.getKey(), new TimedHandler(e.getKey(), e.getValue()));
+		}
+		
+		for (Map.Entry<String, AsyncRequestHandler> e : m_mapExactHandlers.entrySet())
+		{
+			router.addExact(e.getKey(), new TimedHandler(e.getKey(), e.getValue()));
+		}
+		
+		return router;
+	}
+	
+	/**
+	 * @param intThreads the number of threads running request handlers
+	 */
+	public void setHandlerThreads(Integer intThreads)
+	{
+		m_intHandlerThreads = intThreads;
+	}
+	
+	/**
+	 * @param bVirtual run each request on its own virtual thread
+	 */
+	public void setVirtualThreads(Boolean bVirtual)
+	{
+		m_bVirtualThreads = bVirtual;
 	}
 }
 
 class HttpServerPipelineFactory implements ChannelPipelineFactory
 {
-	protected Map<String, HttpServer.RequestHandler> m_mapHandlers;
+	protected HttpRouter m_router;
+	protected ExecutionHandler m_execution;
 	
-	public HttpServerPipelineFactory(Map<String, HttpServer.RequestHandler> mapHandlers)
+	public HttpServerPipelineFactory(HttpRouter router, ExecutionHandler execution)
 	{
-		m_mapHandlers = mapHandlers;
+		m_router = router;
+		m_execution = execution;
 	}
 	
 	@Override
@@ -863,85 +2417,228 @@ class HttpServerPipelineFactory implements ChannelPipelineFactory
 		pipeline.addLast("decoder", new HttpRequestDecoder());		
 		pipeline.addLast("encoder", new HttpResponseEncoder());
 		pipeline.addLast("deflater", new HttpContentCompressor());
-		pipeline.addLast("handler", new HttpRequestHandler(m_mapHandlers));
+		pipeline.addLast("execution", m_execution);
+		pipeline.addLast("handler", new HttpRequestHandler(m_router));
 		return pipeline;
 	}
 }
 
 class HttpRequestHandler extends SimpleChannelUpstreamHandler
 {
-	protected Map<String, HttpServer.RequestHandler> m_mapHandlers;			
+	protected HttpRouter m_router;
 	private HttpRequest request;
 	private boolean readingChunks;
-	/** Buffer that stores the response content */
-	private final StringBuilder buf = new StringBuilder();
+	/** Chunks of the body being read, wrapped into one composite buffer after the last */
+	private List<ChannelBuffer> m_listChunks = new ArrayList<ChannelBuffer>();
+	private long m_lBodyBytes;
+	/** The body is too large, its chunks are dropped */
+	private boolean m_bDiscarding;
+	/** Sequence numbers of the next request dispatched and the next response written */
+	private int m_iNextRequest = 0;
+	private int m_iNextResponse = 0;
+	/** Responses that completed before the ones ahead of them on this connection */
+	private final Map<Integer, PendingResponse> m_mapPending = new HashMap<Integer, PendingResponse>();
+	
+	protected static final AtomicInteger channelsOpen = new AtomicInteger();
+	protected static final LongAdder channelsAccepted = MetricsUtil.counter("postoffice_http_connections_total", null, "Connections accepted.");
+	
+	static
+	{
+		MetricsUtil.gauge("postoffice_http_connections_open", null, "Connections currently open.", () -> channelsOpen.get());
+	}
+	
+	public HttpRequestHandler(HttpRouter router)
+	{
+		m_router = router;
+	}
 	
-	public HttpRequestHandler(Map<String, HttpServer.RequestHandler> mapHandlers)
+	@Override
+	public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+	{
+		channelsOpen.incrementAndGet();
+		channelsAccepted.increment();
+		super.channelOpen(ctx, e);
+	}
+	
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
 	{
-		m_mapHandlers = mapHandlers;
+		channelsOpen.decrementAndGet();
+		super.channelClosed(ctx, e);
 	}
 	
+	/**
+	 * Requests are handled once their whole body is in. Bodies that come 
+	 * in chunks, either sent chunked or split by the decoder because they 
+	 * are large, are gathered into a composite buffer without copying. 
+	 * A body over MAX_BODY_BYTES is answered 413 as soon as that is known 
+	 * and the connection is closed, so the rest is never read.
+	 */
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
 	{
 		if(!readingChunks)
 		{
 			HttpRequest request = this.request = (HttpRequest) e.getMessage();
-			if(is100ContinueExpected(request))
+			
+			if(HttpHeaders.getContentLength(request, 0) > HttpServer.MAX_BODY_BYTES)
 			{
-				send100Continue(e);
+				tooLarge(e.getChannel(), request);
+				readingChunks = request.isChunked();
+				
+				// a body that is not chunked was dropped with the request
+				m_bDiscarding = readingChunks;
+				return;
 			}
-
-			buf.setLength(0);
 			
-			for (Map.Entry<String, HttpServer.RequestHandler> entry : m_mapHandlers.entrySet())
+			if(is100ContinueExpected(request))
 			{
-				String strUrl = entry.getKey();
-								
-				if (!request.getUri().startsWith(strUrl))
-				{
-					continue;
-				}
-				
-				HttpServer.RequestHandler handler = entry.getValue();
-				buf.append(handler.handle(request));
-				break;
+				send100Continue(e);
 			}
-								
+
 			if(request.isChunked())
 			{
 				readingChunks = true;
 			}
 			else
 			{				
-				writeResponse(e);
+				dispatch(e.getChannel(), request);
 			}
 		}
 		else
 		{
 			HttpChunk chunk = (HttpChunk) e.getMessage();
+			
+			if(!m_bDiscarding && chunk.getContent().readable())
+			{
+				m_lBodyBytes += chunk.getContent().readableBytes();
+				m_listChunks.add(chunk.getContent());
+				
+				if(m_lBodyBytes > HttpServer.MAX_BODY_BYTES)
+				{
+					tooLarge(e.getChannel(), request);
+				}
+			}
+			
 			if(chunk.isLast())
 			{
 				readingChunks = false;
-				writeResponse(e);
+				
+				if(m_bDiscarding)
+				{
+					m_bDiscarding = false;
+					return;
+				}
+				
+				request.setChunked(false);
+				request.removeHeader(HttpHeaders.Names.TRANSFER_ENCODING);
+				request.setHeader(CONTENT_LENGTH, m_lBodyBytes);
+				request.setContent(ChannelBuffers.wrappedBuffer(m_listChunks.toArray(new ChannelBuffer[m_listChunks.size()])));
+				m_listChunks.clear();
+				m_lBodyBytes = 0;
+				dispatch(e.getChannel(), request);
 			}			
 		}
 	}
+	
+	/**
+	 * Answers 413 in turn with the other responses and closes the 
+	 * connection once it is written.
+	 */
+	private void tooLarge(Channel channel, HttpRequest request)
+	{
+		m_bDiscarding = true;
+		m_listChunks.clear();
+		m_lBodyBytes = 0;
+		HttpHeaders.setKeepAlive(request, false);
+		dispatch(channel, request, CompletableFuture.completedFuture(HttpServer.Response.json(REQUEST_ENTITY_TOO_LARGE, "{\"status\":\"err\",\"error\":\"body over " + HttpServer.MAX_BODY_BYTES + " bytes\"}")));
+	}
+	
+	private void dispatch(final Channel channel, final HttpRequest request)
+	{
+		CompletableFuture<HttpServer.Response> future;
+		
+		try
+		{
+			future = route(request);
+		}
+		catch (Exception ex)
+		{
+			future = new CompletableFuture<HttpServer.Response>();
+			future.completeExceptionally(ex);
+		}
+		
+		dispatch(channel, request, future);
+	}
+	
+	private void dispatch(final Channel channel, final HttpRequest request, CompletableFuture<HttpServer.Response> future)
+	{
+		final int iSeq;
+		
+		synchronized (this)
+		{
+			iSeq = m_iNextRequest++;
+		}
+		
+		future.whenComplete((response, ex) -> 
+		{
+			if (ex != null)
+			{
+				ex.printStackTrace();
+				response = HttpServer.Response.json(INTERNAL_SERVER_ERROR, ConversationHandler.ERR);
+			}
+			
+			complete(channel, iSeq, request, response);
+		});
+	}
+	
+	private CompletableFuture<HttpServer.Response> route(HttpRequest request)
+	{
+		// the path comes as it was sent, the router decodes its segments
+		HttpServer.AsyncRequestHandler handler = m_router.route(new QueryStringDecoder(request.getUri()).getPath());
+		
+		if (handler == null)
+		{
+			return CompletableFuture.completedFuture(HttpServer.Response.json(NOT_FOUND, ""));
+		}
+		
+		return handler.handleAsync(request);
+	}
+	
+	/**
+	 * Responses can complete in any order but have to be written in the
+	 * order the requests came in on the connection.
+	 */
+	private synchronized void complete(Channel channel, int iSeq, HttpRequest request, HttpServer.Response response)
+	{
+		m_mapPending.put(iSeq, new PendingResponse(request, response));
+		
+		PendingResponse pending;
+		
+		while ((pending = m_mapPending.remove(m_iNextResponse)) != null)
+		{
+			++m_iNextResponse;
+			writeResponse(channel, pending.m_request, pending.m_response);
+		}
+	}
 
-	private void writeResponse(MessageEvent e)
+	private void writeResponse(Channel channel, HttpRequest request, HttpServer.Response r)
 	{
 		// Decide whether to close the connection or not.
 		boolean keepAlive = isKeepAlive(request);
 
 		// Build the response object.
-		HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-		response.setContent(ChannelBuffers.copiedBuffer(buf.toString(), CharsetUtil.UTF_8));
-		response.setHeader(CONTENT_TYPE, "text/javascript; charset=UTF-8");
+		HttpResponse response = new DefaultHttpResponse(HTTP_1_1, r.getStatus());
+		
+		for (Map.Entry<String, String> header : r.getHeaders().entrySet())
+		{
+			response.setHeader(header.getKey(), header.getValue());
+		}
 
-		if(keepAlive)
+		if(keepAlive && r.getContent() != null)
 		{
 			// Add 'Content-Length' header only for a keep-alive connection.
-			response.setHeader(CONTENT_LENGTH, response.getContent().readableBytes());
+			response.setHeader(CONTENT_LENGTH, r.getContent().readableBytes());
 		}
 
 		// Encode the cookie.
@@ -963,7 +2660,17 @@ class HttpRequestHandler extends SimpleChannelUpstreamHandler
 		}
 
 		// Write the response.
-		ChannelFuture future = e.getChannel().write(response);
+		ChannelFuture future;
+		
+		if (r.getContent() != null)
+		{
+			response.setContent(r.getContent());
+			future = channel.write(response);
+		}
+		else
+		{
+			future = streamResponse(channel, request, response, keepAlive, r.getBody());
+		}
 
 		// Close the non-keep-alive connection after the write operation is
 		// done.
@@ -972,6 +2679,53 @@ class HttpRequestHandler extends SimpleChannelUpstreamHandler
 			future.addListener(ChannelFutureListener.CLOSE);
 		}
 	}
+	
+	/**
+	 * Serializes a streaming body into the channel, chunked if it turns 
+	 * out to be large and the client speaks HTTP/1.1.
+	 */
+	private ChannelFuture streamResponse(Channel channel, HttpRequest request, HttpResponse response, boolean keepAlive, HttpServer.StreamingBody body)
+	{
+		ChunkedResponseStream out = new ChunkedResponseStream(channel, response, keepAlive, !request.getProtocolVersion().equals(HTTP_1_0));
+		Writer writer = new OutputStreamWriter(out, CharsetUtil.UTF_8);
+		
+		try
+		{
+			body.writeTo(writer);
+			writer.close();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			
+			if (!out.isCommitted())
+			{
+				// nothing is sent yet, the client still gets a proper error
+				HttpResponse error = new DefaultHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR);
+				error.setHeader(CONTENT_TYPE, HttpServer.Response.DEFAULT_CONTENT_TYPE);
+				error.setContent(ChannelBuffers.copiedBuffer(ConversationHandler.ERR, CharsetUtil.UTF_8));
+				error.setHeader(CONTENT_LENGTH, error.getContent().readableBytes());
+				return channel.write(error);
+			}
+			
+			// the status line is gone already, all we can do is stop
+			return channel.close();
+		}
+		
+		return out.getLastWrite();
+	}
+
+	static class PendingResponse
+	{
+		protected HttpRequest m_request;
+		protected HttpServer.Response m_response;
+		
+		public PendingResponse(HttpRequest request, HttpServer.Response response)
+		{
+			m_request = request;
+			m_response = response;
+		}
+	}
 
 	private void send100Continue(MessageEvent e)
 	{
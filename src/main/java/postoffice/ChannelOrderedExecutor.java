@@ -0,0 +1,161 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.util.ExternalResourceReleasable;
+
+/**
+ * Runs the events of one channel one after the other, in the order they
+ * arrived, on top of any Executor. Different channels run in parallel.
+ *
+ * This is what OrderedMemoryAwareThreadPoolExecutor does for its own
+ * pool; it is used when the handlers run on an executor that does not
+ * pool threads (virtual-thread-per-task) so that responses on a
+ * keep-alive connection still go out in request order.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class ChannelOrderedExecutor implements Executor, ExternalResourceReleasable
+{
+	protected Executor m_executor;
+	protected ConcurrentMap<Channel, ChildExecutor> m_mapChildren = new ConcurrentHashMap<Channel, ChildExecutor>();
+
+	public ChannelOrderedExecutor(Executor executor)
+	{
+		m_executor = executor;
+	}
+
+	/**
+	 * Shuts the underlying executor down, if it can be.
+	 */
+	@Override
+	public void releaseExternalResources()
+	{
+		if (m_executor instanceof ExecutorService)
+		{
+			((ExecutorService) m_executor).shutdown();
+		}
+	}
+
+	@Override
+	public void execute(Runnable task)
+	{
+		if (!(task instanceof ChannelEventRunnable))
+		{
+			m_executor.execute(task);
+			return;
+		}
+
+		getChild(((ChannelEventRunnable) task).getEvent().getChannel()).execute(task);
+	}
+
+	protected ChildExecutor getChild(final Channel channel)
+	{
+		ChildExecutor child = m_mapChildren.get(channel);
+
+		if (child == null)
+		{
+			child = new ChildExecutor();
+			ChildExecutor old = m_mapChildren.putIfAbsent(channel, child);
+
+			if (old != null)
+			{
+				return old;
+			}
+
+			// forget about the channel once it goes away
+			channel.getCloseFuture().addListener(new ChannelFutureListener()
+			{
+				@Override
+				public void operationComplete(ChannelFuture future) throws Exception
+				{
+					m_mapChildren.remove(channel);
+				}
+			});
+		}
+
+		return child;
+	}
+
+	class ChildExecutor implements Executor, Runnable
+	{
+		protected LinkedList<Runnable> m_listTasks = new LinkedList<Runnable>();
+		protected boolean m_bRunning = false;
+
+		@Override
+		public void execute(Runnable task)
+		{
+			synchronized (m_listTasks)
+			{
+				m_listTasks.add(task);
+
+				if (m_bRunning)
+				{
+					return;
+				}
+
+				m_bRunning = true;
+			}
+
+			m_executor.execute(this);
+		}
+
+		@Override
+		public void run()
+		{
+			for (;;)
+			{
+				Runnable task;
+
+				synchronized (m_listTasks)
+				{
+					task = m_listTasks.poll();
+
+					if (task == null)
+					{
+						m_bRunning = false;
+						return;
+					}
+				}
+
+				try
+				{
+					task.run();
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
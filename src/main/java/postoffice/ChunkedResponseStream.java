@@ -0,0 +1,157 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.TRANSFER_ENCODING;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Values.CHUNKED;
+
+import java.io.OutputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Serializes a response body straight into ChannelBuffers. Bodies that
+ * fit in one chunk go out as a plain response with a Content-Length;
+ * bigger ones switch to chunked transfer encoding as soon as the first
+ * chunk is full, so the client gets the first bytes before the rest of
+ * the body is serialized. Nothing is sent before then, so a body that
+ * fails early can still be answered with an error instead.
+ *
+ * HTTP/1.0 clients do not know chunked encoding, their bodies are
+ * buffered whole and sent with a Content-Length.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class ChunkedResponseStream extends OutputStream
+{
+	/** Bytes buffered before a chunk is sent, -Dpostoffice.http.chunkSize */
+	public static final int CHUNK_SIZE = Integer.getInteger("postoffice.http.chunkSize", 16 * 1024);
+
+	protected Channel m_channel;
+	protected HttpResponse m_response;
+	protected boolean m_bKeepAlive;
+	protected boolean m_bCanChunk;
+	protected boolean m_bChunked = false;
+	protected ChannelBuffer m_buf = ChannelBuffers.dynamicBuffer(CHUNK_SIZE);
+	protected ChannelFuture m_lastWrite;
+
+	/**
+	 * @param bCanChunk whether the client takes chunked encoding, false for HTTP/1.0
+	 */
+	public ChunkedResponseStream(Channel channel, HttpResponse response, boolean bKeepAlive, boolean bCanChunk)
+	{
+		m_channel = channel;
+		m_response = response;
+		m_bKeepAlive = bKeepAlive;
+		m_bCanChunk = bCanChunk;
+	}
+
+	@Override
+	public void write(int b)
+	{
+		m_buf.writeByte(b);
+		flushIfFull();
+	}
+
+	@Override
+	public void write(byte[] b, int iOff, int iLen)
+	{
+		m_buf.writeBytes(b, iOff, iLen);
+		flushIfFull();
+	}
+
+	protected void flushIfFull()
+	{
+		if (m_buf.readableBytes() < CHUNK_SIZE || !m_bCanChunk)
+		{
+			return;
+		}
+
+		if (!m_bChunked)
+		{
+			m_bChunked = true;
+			m_response.setChunked(true);
+			m_response.removeHeader(CONTENT_LENGTH);
+			m_response.setHeader(TRANSFER_ENCODING, CHUNKED);
+			m_channel.write(m_response);
+		}
+
+		m_channel.write(new DefaultHttpChunk(m_buf));
+		m_buf = ChannelBuffers.dynamicBuffer(CHUNK_SIZE);
+	}
+
+	/**
+	 * Sends whatever is left, ending the response.
+	 */
+	@Override
+	public void close()
+	{
+		if (m_lastWrite != null)
+		{
+			return;
+		}
+
+		if (!m_bChunked)
+		{
+			m_response.setContent(m_buf);
+
+			if (m_bKeepAlive)
+			{
+				m_response.setHeader(CONTENT_LENGTH, m_buf.readableBytes());
+			}
+
+			m_lastWrite = m_channel.write(m_response);
+			return;
+		}
+
+		if (m_buf.readable())
+		{
+			m_channel.write(new DefaultHttpChunk(m_buf));
+		}
+
+		m_lastWrite = m_channel.write(HttpChunk.LAST_CHUNK);
+	}
+
+	/**
+	 * @return whether part of the response was sent, after which it can 
+	 * no longer be replaced by an error
+	 */
+	public boolean isCommitted()
+	{
+		return m_bChunked || m_lastWrite != null;
+	}
+
+	/**
+	 * @return the future of the last write, null until the stream is closed
+	 */
+	public ChannelFuture getLastWrite()
+	{
+		return m_lastWrite;
+	}
+}
@@ -0,0 +1,638 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Group commit in front of another MessageStore. Executed batches are
+ * queued, and a collector thread merges whatever arrives within a window
+ * of m_lWindowMs milliseconds, or until m_iMaxMutations are queued, into
+ * one batch per lane of the underlying store. Under load thousands of
+ * sends cost at most one round trip per lane and window instead of one
+ * each, a lone send costs one.
+ *
+ * Each caller's batch goes whole to one lane, picked by its first row,
+ * along with the batches of the group it shares rows with. Lanes run on
+ * threads of their own, and a part waits for the parts queued before it
+ * that touch the same rows. Writes to a row are therefore applied, and
+ * time stamped by the store, in the order they were queued, however many
+ * lanes run at once.
+ *
+ * A caller's future completes once the part holding its batch has been
+ * executed. If a part fails, its batches are retried one by one so a bad
+ * write only fails its own caller. Batches that increment counters are
+ * not retried, the failed part may already have applied them, and fail
+ * instead.
+ *
+ * Writes to the same column in one window collapse to the last one
+ * queued, the store would otherwise see them with the same time stamp.
+ * Increments of the same counter are summed. Reads go straight to the
+ * underlying store.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class CoalescingMessageStore implements MessageStore
+{
+	/** How long writes are collected before they are sent, -Dpostoffice.store.coalesce.windowMs, 0 disables it */
+	public static final Long WINDOW_MS = Long.getLong("postoffice.store.coalesce.windowMs", 2);
+
+	/** Mutations that are sent without waiting for the window to end, -Dpostoffice.store.coalesce.maxMutations */
+	public static final Integer MAX_MUTATIONS = Integer.getInteger("postoffice.store.coalesce.maxMutations", 1000);
+
+	/** Lanes merged batches are executed on at the same time, -Dpostoffice.store.coalesce.flushers */
+	public static final Integer FLUSHERS = Integer.getInteger("postoffice.store.coalesce.flushers", 4);
+
+	protected MessageStore m_store;
+	protected long m_lWindowMs;
+	protected int m_iMaxMutations;
+	protected BlockingQueue<CoalescedBatch> m_queue = new LinkedBlockingQueue<CoalescedBatch>();
+	protected List<ExecutorService> m_listLanes = new ArrayList<ExecutorService>();
+	/** The last part queued for each row, until it is done, only the collector adds to it */
+	protected Map<Row, CompletableFuture<Void>> m_mapLastParts = new ConcurrentHashMap<Row, CompletableFuture<Void>>();
+	protected Thread m_collector;
+	protected volatile boolean m_bRunning = true;
+
+	public CoalescingMessageStore(MessageStore store, long lWindowMs, int iMaxMutations, int iFlushers)
+	{
+		m_store = store;
+		m_lWindowMs = lWindowMs;
+		m_iMaxMutations = iMaxMutations;
+
+		ThreadFactory factory = new ThreadFactory()
+		{
+			protected AtomicInteger m_iCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "store-flush-" + m_iCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		// one thread each, a lane executes one part at a time
+		for (int i = 0; i < iFlushers; i++)
+		{
+			m_listLanes.add(Executors.newSingleThreadExecutor(factory));
+		}
+
+		m_collector = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				collect();
+			}
+		}, "store-coalesce");
+		m_collector.setDaemon(true);
+		m_collector.start();
+	}
+
+	/**
+	 * @return store behind a coalescer configured from the system properties, or store itself if coalescing is disabled
+	 */
+	public static MessageStore wrap(MessageStore store)
+	{
+		if (WINDOW_MS <= 0)
+		{
+			return store;
+		}
+
+		return new CoalescingMessageStore(store, WINDOW_MS, MAX_MUTATIONS, FLUSHERS);
+	}
+
+	@Override
+	public Batch createBatch()
+	{
+		return new CoalescedBatch();
+	}
+
+	@Override
+	public List<StoreColumn> getSlice(String strFamily, Bytes rowKey, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		return m_store.getSlice(strFamily, rowKey, start, finish, bReversed, iCount);
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, List<StoreColumn>> getSlices(String strFamily, List<Bytes> listRowKeys, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		return m_store.getSlices(strFamily, listRowKeys, start, finish, bReversed, iCount);
+	}
+
+	@Override
+	public List<StoreColumn> getColumns(String strFamily, Bytes rowKey, Collection<UUID> names)
+	{
+		return m_store.getColumns(strFamily, rowKey, names);
+	}
+
+	@Override
+	public Map<UUID, Long> getCounters(String strFamily, Bytes rowKey)
+	{
+		return m_store.getCounters(strFamily, rowKey);
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, Map<UUID, Long>> getCounters(String strFamily, List<Bytes> listRowKeys)
+	{
+		return m_store.getCounters(strFamily, listRowKeys);
+	}
+
+	/**
+	 * Sends what is still queued, then shuts the underlying store down.
+	 */
+	@Override
+	public void shutdown()
+	{
+		m_bRunning = false;
+		m_collector.interrupt();
+
+		try
+		{
+			m_collector.join();
+
+			// parts still waiting for others are queued on their lane when those finish
+			CompletableFuture.allOf(m_mapLastParts.values().toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+			for (ExecutorService lane : m_listLanes)
+			{
+				lane.shutdown();
+			}
+
+			for (ExecutorService lane : m_listLanes)
+			{
+				lane.awaitTermination(10, TimeUnit.SECONDS);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException | TimeoutException e)
+		{
+			System.out.println("Store writes still pending at shutdown: " + e.getMessage());
+		}
+
+		m_store.shutdown();
+	}
+
+	/**
+	 * Runs on the collector thread: waits for a first batch, gathers more
+	 * until the window closes or enough mutations are queued and hands the
+	 * group to the lanes.
+	 */
+	protected void collect()
+	{
+		while (m_bRunning || !m_queue.isEmpty())
+		{
+			List<CoalescedBatch> listGroup = new ArrayList<CoalescedBatch>();
+
+			try
+			{
+				CoalescedBatch first = m_bRunning ? m_queue.take() : m_queue.poll();
+
+				if (first == null)
+				{
+					continue;
+				}
+
+				listGroup.add(first);
+				int iMutations = first.m_listMutations.size();
+				long lDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_lWindowMs);
+
+				while (iMutations < m_iMaxMutations && m_bRunning)
+				{
+					CoalescedBatch next = m_queue.poll(lDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+					if (next == null)
+					{
+						break;
+					}
+
+					listGroup.add(next);
+					iMutations += next.m_listMutations.size();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// shutting down, whatever is left is drained on the next turns
+			}
+
+			if (!listGroup.isEmpty())
+			{
+				dispatch(listGroup);
+			}
+		}
+	}
+
+	/**
+	 * Merges a group into one part per lane and queues the parts. A
+	 * batch goes whole to the lane of its first row, together with every
+	 * batch of the group it shares a row with. A part starts once the
+	 * parts queued before it for any of its rows are done.
+	 */
+	protected void dispatch(List<CoalescedBatch> listGroup)
+	{
+		// batches sharing a row are joined under the first of them
+		int[] owners = new int[listGroup.size()];
+		Map<Row, Integer> mapRowOwners = new HashMap<Row, Integer>();
+
+		for (int i = 0; i < owners.length; i++)
+		{
+			owners[i] = i;
+
+			for (Mutation m : listGroup.get(i).m_listMutations)
+			{
+				Integer iOther = mapRowOwners.putIfAbsent(new Row(m), i);
+
+				if (iOther != null)
+				{
+					int iFirst = owner(owners, iOther);
+					int iOwn = owner(owners, i);
+					owners[Math.max(iFirst, iOwn)] = Math.min(iFirst, iOwn);
+				}
+			}
+		}
+
+		Map<Integer, Part> mapParts = new HashMap<Integer, Part>();
+
+		for (int i = 0; i < owners.length; i++)
+		{
+			CoalescedBatch b = listGroup.get(i);
+			Mutation first = listGroup.get(owner(owners, i)).m_listMutations.get(0);
+			Integer iLane = Math.floorMod(first.m_strFamily.hashCode() * 31 + first.m_rowKey.hashCode(), m_listLanes.size());
+			Part part = mapParts.get(iLane);
+
+			if (part == null)
+			{
+				mapParts.put(iLane, part = new Part());
+			}
+
+			for (Mutation m : b.m_listMutations)
+			{
+				part.add(b, m);
+			}
+		}
+
+		for (Entry<Integer, Part> e : mapParts.entrySet())
+		{
+			final Part part = e.getValue();
+			Set<Row> setRows = new HashSet<Row>();
+			Set<CompletableFuture<Void>> setBefore = new HashSet<CompletableFuture<Void>>();
+
+			for (Mutation m : part.m_mapMerged.keySet())
+			{
+				Row row = new Row(m);
+
+				if (setRows.add(row))
+				{
+					CompletableFuture<Void> before = m_mapLastParts.get(row);
+
+					if (before != null)
+					{
+						setBefore.add(before);
+					}
+				}
+			}
+
+			// runs even if a part before it broke, its callers would wait forever otherwise
+			CompletableFuture<Void> done = CompletableFuture.allOf(setBefore.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((v, ex) -> flush(part), m_listLanes.get(e.getKey()));
+
+			for (Row row : setRows)
+			{
+				m_mapLastParts.put(row, done);
+			}
+
+			done.whenComplete((v, ex) ->
+			{
+				for (Row row : setRows)
+				{
+					m_mapLastParts.remove(row, done);
+				}
+			});
+		}
+	}
+
+	protected static int owner(int[] owners, int i)
+	{
+		while (owners[i] != i)
+		{
+			i = owners[i];
+		}
+
+		return i;
+	}
+
+	/**
+	 * Executes the merged part of a group, falling back to its batches one
+	 * by one if it fails.
+	 */
+	protected void flush(Part part)
+	{
+		try
+		{
+			apply(part.m_mapMerged.keySet());
+
+			for (CoalescedBatch b : part.m_mapBatches.keySet())
+			{
+				b.done(null);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			if (part.m_mapBatches.size() == 1)
+			{
+				part.m_mapBatches.keySet().iterator().next().done(e);
+				return;
+			}
+
+			for (Entry<CoalescedBatch, List<Mutation>> eBatch : part.m_mapBatches.entrySet())
+			{
+				if (hasCounters(eBatch.getValue()))
+				{
+					// may have been applied with the part, again would count twice
+					eBatch.getKey().done(e);
+					continue;
+				}
+
+				try
+				{
+					apply(eBatch.getValue());
+					eBatch.getKey().done(null);
+				}
+				catch (RuntimeException eOne)
+				{
+					eBatch.getKey().done(eOne);
+				}
+			}
+		}
+	}
+
+	protected static boolean hasCounters(List<Mutation> listMutations)
+	{
+		for (Mutation m : listMutations)
+		{
+			if (m.m_lDelta != null)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	protected void apply(Collection<Mutation> mutations)
+	{
+		Batch batch = m_store.createBatch();
+
+		for (Mutation m : mutations)
+		{
+			if (m.m_lDelta != null)
+			{
+				batch.incrementCounter(m.m_strFamily, m.m_rowKey, m.m_name, m.m_lDelta);
+			}
+			else if (m.m_value != null)
+			{
+				batch.writeColumn(m.m_strFamily, m.m_rowKey, m.m_name, m.m_value);
+			}
+			else
+			{
+				batch.deleteColumn(m.m_strFamily, m.m_rowKey, m.m_name);
+			}
+		}
+
+		batch.execute();
+	}
+
+	/**
+	 * A queued write (value set), delete (value null) or counter increment
+	 * (delta set). Mutations of the same column are equal.
+	 */
+	static class Mutation
+	{
+		protected String m_strFamily;
+		protected Bytes m_rowKey;
+		protected UUID m_name;
+		protected byte[] m_value;
+		protected Long m_lDelta;
+
+		public Mutation(String strFamily, Bytes rowKey, UUID name, byte[] value, Long lDelta)
+		{
+			m_strFamily = strFamily;
+			m_rowKey = rowKey;
+			m_name = name;
+			m_value = value;
+			m_lDelta = lDelta;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Mutation))
+			{
+				return false;
+			}
+
+			Mutation m = (Mutation) o;
+			return m_strFamily.equals(m.m_strFamily) && m_rowKey.equals(m.m_rowKey) && m_name.equals(m.m_name) && (m_lDelta == null) == (m.m_lDelta == null);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (m_strFamily.hashCode() * 31 + m_rowKey.hashCode()) * 31 + m_name.hashCode();
+		}
+	}
+
+	/**
+	 * A row of a column family, parts touching the same one run in order.
+	 */
+	static class Row
+	{
+		protected String m_strFamily;
+		protected Bytes m_rowKey;
+
+		public Row(Mutation m)
+		{
+			m_strFamily = m.m_strFamily;
+			m_rowKey = m.m_rowKey;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Row))
+			{
+				return false;
+			}
+
+			Row row = (Row) o;
+			return m_strFamily.equals(row.m_strFamily) && m_rowKey.equals(row.m_rowKey);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_strFamily.hashCode() * 31 + m_rowKey.hashCode();
+		}
+	}
+
+	/**
+	 * The mutations of a group that go to one lane, merged, and the
+	 * batches they came from with their own.
+	 */
+	static class Part
+	{
+		protected Map<Mutation, Mutation> m_mapMerged = new LinkedHashMap<Mutation, Mutation>();
+		protected Map<CoalescedBatch, List<Mutation>> m_mapBatches = new LinkedHashMap<CoalescedBatch, List<Mutation>>();
+
+		public void add(CoalescedBatch b, Mutation m)
+		{
+			List<Mutation> listOwn = m_mapBatches.get(b);
+
+			if (listOwn == null)
+			{
+				m_mapBatches.put(b, listOwn = new ArrayList<Mutation>());
+			}
+
+			listOwn.add(m);
+
+			Mutation prev = m_mapMerged.remove(m);
+
+			if (m.m_lDelta != null && prev != null)
+			{
+				m = new Mutation(m.m_strFamily, m.m_rowKey, m.m_name, null, prev.m_lDelta + m.m_lDelta);
+			}
+
+			// the last write of a column wins, and moves to the end
+			m_mapMerged.put(m, m);
+		}
+	}
+
+	/**
+	 * Records mutations until it is executed, then queues them for the
+	 * next group commit.
+	 */
+	class CoalescedBatch implements Batch
+	{
+		protected List<Mutation> m_listMutations = new ArrayList<Mutation>();
+		protected CompletableFuture<Void> m_future = new CompletableFuture<Void>();
+
+		/**
+		 * Called by the lane holding the batch once it was executed, or
+		 * failed with e.
+		 */
+		protected void done(RuntimeException e)
+		{
+			if (e != null)
+			{
+				m_future.completeExceptionally(e);
+			}
+			else
+			{
+				m_future.complete(null);
+			}
+		}
+
+		@Override
+		public Batch writeColumn(String strFamily, Bytes rowKey, UUID name, byte[] value)
+		{
+			m_listMutations.add(new Mutation(strFamily, rowKey, name, value, null));
+			return this;
+		}
+
+		@Override
+		public Batch deleteColumn(String strFamily, Bytes rowKey, UUID name)
+		{
+			m_listMutations.add(new Mutation(strFamily, rowKey, name, null, null));
+			return this;
+		}
+
+		@Override
+		public Batch incrementCounter(String strFamily, Bytes rowKey, UUID name, long lDelta)
+		{
+			m_listMutations.add(new Mutation(strFamily, rowKey, name, null, lDelta));
+			return this;
+		}
+
+		@Override
+		public void execute()
+		{
+			try
+			{
+				executeAsync().join();
+			}
+			catch (CompletionException e)
+			{
+				if (e.getCause() instanceof RuntimeException)
+				{
+					throw (RuntimeException) e.getCause();
+				}
+
+				throw e;
+			}
+		}
+
+		@Override
+		public CompletableFuture<Void> executeAsync()
+		{
+			if (m_listMutations.isEmpty())
+			{
+				m_future.complete(null);
+			}
+			else if (!m_bRunning)
+			{
+				m_future.completeExceptionally(new IllegalStateException("store is shut down"));
+			}
+			else
+			{
+				m_queue.add(this);
+			}
+
+			return m_future;
+		}
+	}
+}
@@ -0,0 +1,615 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Whole conversations kept as encoded bytes outside the heap, so a large
+ * working set costs neither heap nor collection pauses. Only a small
+ * location per conversation lives on the heap; the messages are decoded
+ * when a page of them is asked for.
+ *
+ * Entries are appended to a ring of direct buffer slabs of SLAB_BYTES.
+ * Once the ring is full the oldest slab is recycled and everything in it
+ * is evicted at once. An entry read from the older half of the ring is
+ * copied to the head once, by the first read that finds it there, so
+ * conversations that keep being read survive.
+ *
+ * A hit is a read-only view of the entry in its slab: only the index of
+ * its messages is read, and only the messages of the page asked for are
+ * copied out and decoded. Both are read without a lock and checked
+ * against the slab being recycled meanwhile; a page read from a recycled
+ * slab is null and read from the store.
+ *
+ * Writes keep the cache coherent the way they do FolderCache: a stored
+ * message drops its conversation, and a read that overlapped it does not
+ * keep what it read. Entries expire after TTL_MS
+ * for the messages stored through other nodes.
+ *
+ * The slabs count against -XX:MaxDirectMemorySize.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class ConversationCache
+{
+	/** Off-heap bytes for cached conversations, -Dpostoffice.conversations.cache.maxBytes, 0 disables the cache */
+	public static final Long MAX_BYTES = Long.getLong("postoffice.conversations.cache.maxBytes", 128L * 1024 * 1024);
+
+	/** Bytes allocated and evicted at once, -Dpostoffice.conversations.cache.slabBytes */
+	public static final Integer SLAB_BYTES = Integer.getInteger("postoffice.conversations.cache.slabBytes", 4 * 1024 * 1024);
+
+	/** How long a conversation is served before it is read again, -Dpostoffice.conversations.cache.ttlMs */
+	public static final Long TTL_MS = Long.getLong("postoffice.conversations.cache.ttlMs", 30000);
+
+	/** Per message, the id and the length of its encoding */
+	protected static final int HEADER_BYTES = 20;
+
+	protected int m_iSlabBytes;
+	protected long m_lTtlNanos;
+	protected ByteBuffer[] m_slabs;
+	protected StampedLock[] m_locks;
+
+	/** Bumped when a slab is recycled, guarded by the slab's lock */
+	protected int[] m_gens;
+
+	/** Per slab, what was written to it, guarded by the cache's monitor */
+	protected List<List<Location>> m_listWritten;
+	protected volatile int m_iHead = -1;
+	protected int m_iOffset;
+	protected int m_iAllocated;
+
+	/** A Location, or the token of a read that may fill the entry */
+	protected ConcurrentHashMap<Bytes, Object> m_mapIndex = new ConcurrentHashMap<Bytes, Object>();
+
+	protected LongAdder m_hits = MetricsUtil.counter("postoffice_conversation_cache_requests_total", "result=\"hit\"", "Conversation reads, by whether the off-heap cache answered them.");
+	protected LongAdder m_misses = MetricsUtil.counter("postoffice_conversation_cache_requests_total", "result=\"miss\"", "Conversation reads, by whether the off-heap cache answered them.");
+	protected LongAdder m_evictions = MetricsUtil.counter("postoffice_conversation_cache_evictions_total", null, "Conversations dropped from the off-heap cache with their slab.");
+	protected LongAdder m_invalidations = MetricsUtil.counter("postoffice_conversation_cache_invalidations_total", null, "Cached conversations dropped because a message was stored in them.");
+
+	/**
+	 * Where an entry was written.
+	 */
+	static class Location
+	{
+		protected Bytes m_key;
+		protected int m_iSlab;
+		protected int m_iGen;
+		protected int m_iOffset;
+		protected int m_iLength;
+		protected long m_lExpires;
+
+		/** Set by the read that copies the entry to the head */
+		protected AtomicBoolean m_bMoved = new AtomicBoolean();
+
+		public Location(Bytes key, int iSlab, int iGen, int iOffset, int iLength, long lExpires)
+		{
+			m_key = key;
+			m_iSlab = iSlab;
+			m_iGen = iGen;
+			m_iOffset = iOffset;
+			m_iLength = iLength;
+			m_lExpires = lExpires;
+		}
+	}
+
+	/**
+	 * A read-only view of a cached conversation in its slab. The index of
+	 * its messages is read when the view is made; messages are copied out
+	 * and decoded a page at a time. A page is null once the slab has been
+	 * recycled.
+	 */
+	static class Snapshot
+	{
+		protected ByteBuffer m_view;
+		protected StampedLock m_lock;
+		protected int[] m_gens;
+		protected int m_iSlab;
+		protected int m_iGen;
+		protected UUID[] m_ids;
+		protected int[] m_offsets;
+		protected int[] m_lengths;
+
+		/**
+		 * @throws RuntimeException if view does not hold a whole entry,
+		 * which a read racing a recycle can see
+		 */
+		public Snapshot(ByteBuffer view, StampedLock lock, int[] gens, int iSlab, int iGen)
+		{
+			int iCount = view.getInt(0);
+
+			if (iCount < 0 || iCount > view.limit() / HEADER_BYTES)
+			{
+				throw new IllegalStateException("Not an entry");
+			}
+
+			m_view = view;
+			m_lock = lock;
+			m_gens = gens;
+			m_iSlab = iSlab;
+			m_iGen = iGen;
+			m_ids = new UUID[iCount];
+			m_offsets = new int[iCount];
+			m_lengths = new int[iCount];
+
+			int iPos = 4;
+
+			for (int i = 0; i < iCount; i++)
+			{
+				m_ids[i] = new UUID(view.getLong(iPos), view.getLong(iPos + 8));
+				m_lengths[i] = view.getInt(iPos + 16);
+				m_offsets[i] = iPos + HEADER_BYTES;
+				iPos = m_offsets[i] + m_lengths[i];
+
+				if (m_lengths[i] < 0 || iPos > view.limit())
+				{
+					throw new IllegalStateException("Not an entry");
+				}
+			}
+		}
+
+		public int size()
+		{
+			return m_ids.length;
+		}
+
+		/**
+		 * @return the i-th oldest message, null if the slab was recycled
+		 */
+		public Message get(int i)
+		{
+			List<Message> listMessages = decode(i, i + 1, false);
+			return listMessages == null ? null : listMessages.get(0);
+		}
+
+		/**
+		 * @return every message, oldest first, null if the slab was recycled
+		 */
+		public List<Message> all()
+		{
+			return decode(0, size(), false);
+		}
+
+		/**
+		 * @return up to iCount messages older than before, newest first,
+		 * like a reversed slice after the cursor, null if the slab was
+		 * recycled
+		 */
+		public List<Message> before(UUID before, int iCount)
+		{
+			int iEnd = size();
+
+			while (before != null && iEnd > 0 && TimeUuidComparator.INSTANCE.compare(m_ids[iEnd - 1], before) >= 0)
+			{
+				iEnd--;
+			}
+
+			return decode(Math.max(0, iEnd - iCount), iEnd, true);
+		}
+
+		/**
+		 * @return up to iCount messages newer than after, oldest first,
+		 * null if the slab was recycled
+		 */
+		public List<Message> after(UUID after, int iCount)
+		{
+			int iStart = 0;
+
+			while (after != null && iStart < size() && TimeUuidComparator.INSTANCE.compare(m_ids[iStart], after) <= 0)
+			{
+				iStart++;
+			}
+
+			return decode(iStart, Math.min(size(), iStart + iCount), false);
+		}
+
+		/**
+		 * @return the messages from iFrom to iTo, newest first if
+		 * bNewestFirst, null if the slab was recycled
+		 */
+		protected List<Message> decode(int iFrom, int iTo, boolean bNewestFirst)
+		{
+			byte[][] copies = copy(iFrom, iTo);
+
+			if (copies == null)
+			{
+				return null;
+			}
+
+			List<Message> listMessages = new ArrayList<Message>(copies.length);
+
+			for (int i = 0; i < copies.length; i++)
+			{
+				listMessages.add(MessageUtil.fromBytes(copies[bNewestFirst ? copies.length - 1 - i : i]));
+			}
+
+			return listMessages;
+		}
+
+		protected byte[][] copy(int iFrom, int iTo)
+		{
+			long lStamp = m_lock.tryOptimisticRead();
+			byte[][] copies = copyRange(iFrom, iTo);
+
+			if (m_lock.validate(lStamp))
+			{
+				return copies;
+			}
+
+			lStamp = m_lock.readLock();
+
+			try
+			{
+				return copyRange(iFrom, iTo);
+			}
+			finally
+			{
+				m_lock.unlockRead(lStamp);
+			}
+		}
+
+		protected byte[][] copyRange(int iFrom, int iTo)
+		{
+			if (m_gens[m_iSlab] != m_iGen)
+			{
+				return null;
+			}
+
+			byte[][] copies = new byte[Math.max(0, iTo - iFrom)][];
+
+			for (int i = iFrom; i < iTo; i++)
+			{
+				ByteBuffer bb = m_view.duplicate();
+				bb.position(m_offsets[i]);
+				copies[i - iFrom] = new byte[m_lengths[i]];
+				bb.get(copies[i - iFrom]);
+			}
+
+			return copies;
+		}
+	}
+
+	public ConversationCache(long lMaxBytes, int iSlabBytes, long lTtlMs)
+	{
+		int iSlabs = (int) Math.min(lMaxBytes / iSlabBytes, Integer.MAX_VALUE);
+		m_iSlabBytes = iSlabBytes;
+		m_lTtlNanos = lTtlMs * 1000000L;
+		m_slabs = new ByteBuffer[iSlabs];
+		m_locks = new StampedLock[iSlabs];
+		m_gens = new int[iSlabs];
+		m_listWritten = new ArrayList<List<Location>>(iSlabs);
+
+		for (int i = 0; i < iSlabs; i++)
+		{
+			m_locks[i] = new StampedLock();
+			m_listWritten.add(new ArrayList<Location>());
+		}
+
+		MetricsUtil.gauge("postoffice_conversation_cache_offheap_bytes", null, "Direct memory allocated by the conversation cache.", () -> getAllocatedBytes());
+		MetricsUtil.gauge("postoffice_conversation_cache_conversations", null, "Conversations indexed by the conversation cache.", () -> m_mapIndex.size());
+	}
+
+	/**
+	 * A ring needs two slabs, one to write to and one to recycle.
+	 */
+	protected boolean isEnabled()
+	{
+		return m_slabs.length > 1;
+	}
+
+	/**
+	 * @return the cached conversation of row key, null if it has to be read
+	 */
+	public Snapshot get(Bytes key)
+	{
+		Object o = m_mapIndex.get(key);
+
+		if (!(o instanceof Location))
+		{
+			m_misses.increment();
+			return null;
+		}
+
+		Location loc = (Location) o;
+		Snapshot snapshot = loc.m_lExpires - System.nanoTime() > 0 ? open(loc) : null;
+
+		if (snapshot == null)
+		{
+			m_mapIndex.remove(key, loc);
+			m_misses.increment();
+			return null;
+		}
+
+		m_hits.increment();
+
+		// about to be recycled, the first read to see it moves it to the head
+		if (Math.floorMod(m_iHead - loc.m_iSlab, m_slabs.length) >= m_slabs.length / 2 && loc.m_bMoved.compareAndSet(false, true))
+		{
+			byte[] bytes = read(loc);
+			Location moved = bytes == null ? null : append(key, bytes, loc.m_lExpires);
+
+			if (moved != null)
+			{
+				m_mapIndex.replace(key, loc, moved);
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * @return a view of the entry at loc, null if its slab was recycled
+	 */
+	protected Snapshot open(Location loc)
+	{
+		StampedLock lock = m_locks[loc.m_iSlab];
+		long lStamp = lock.tryOptimisticRead();
+		Snapshot snapshot;
+
+		try
+		{
+			snapshot = m_gens[loc.m_iSlab] == loc.m_iGen ? new Snapshot(view(loc), lock, m_gens, loc.m_iSlab, loc.m_iGen) : null;
+		}
+		catch (RuntimeException e)
+		{
+			// torn by a recycle, validate fails below
+			snapshot = null;
+		}
+
+		if (lock.validate(lStamp))
+		{
+			return snapshot;
+		}
+
+		lStamp = lock.readLock();
+
+		try
+		{
+			return m_gens[loc.m_iSlab] == loc.m_iGen ? new Snapshot(view(loc), lock, m_gens, loc.m_iSlab, loc.m_iGen) : null;
+		}
+		finally
+		{
+			lock.unlockRead(lStamp);
+		}
+	}
+
+	/**
+	 * @return a read-only buffer over the entry at loc
+	 */
+	protected ByteBuffer view(Location loc)
+	{
+		ByteBuffer bb = m_slabs[loc.m_iSlab].asReadOnlyBuffer();
+		bb.position(loc.m_iOffset);
+		bb.limit(loc.m_iOffset + loc.m_iLength);
+		return bb.slice();
+	}
+
+	/**
+	 * @return a copy of the entry at loc, to move it to the head, null if
+	 * its slab was recycled
+	 */
+	protected byte[] read(Location loc)
+	{
+		StampedLock lock = m_locks[loc.m_iSlab];
+		long lStamp = lock.tryOptimisticRead();
+		byte[] bytes = copy(loc);
+
+		if (lock.validate(lStamp))
+		{
+			return bytes;
+		}
+
+		lStamp = lock.readLock();
+
+		try
+		{
+			return copy(loc);
+		}
+		finally
+		{
+			lock.unlockRead(lStamp);
+		}
+	}
+
+	protected byte[] copy(Location loc)
+	{
+		if (m_gens[loc.m_iSlab] != loc.m_iGen)
+		{
+			return null;
+		}
+
+		byte[] bytes = new byte[loc.m_iLength];
+		ByteBuffer bb = m_slabs[loc.m_iSlab].duplicate();
+		bb.position(loc.m_iOffset);
+		bb.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Marks a read of row key that may fill the cache with put. A write
+	 * to key before the put makes it a no-op.
+	 *
+	 * @return the token to pass to put or release
+	 */
+	public Object reserve(Bytes key)
+	{
+		if (!isEnabled())
+		{
+			return null;
+		}
+
+		Object token = new Object();
+		m_mapIndex.put(key, token);
+		return token;
+	}
+
+	/**
+	 * Gives up a reservation that will not be filled.
+	 */
+	public void release(Bytes key, Object token)
+	{
+		if (token != null)
+		{
+			m_mapIndex.remove(key, token);
+		}
+	}
+
+	/**
+	 * Caches the whole conversation of row key, given as the columns of
+	 * its messages holding their encodings, in any order.
+	 */
+	public void put(Bytes key, Object token, List<StoreColumn> listColumns)
+	{
+		if (token == null || m_mapIndex.get(key) != token)
+		{
+			return;
+		}
+
+		List<StoreColumn> listSorted = new ArrayList<StoreColumn>(listColumns);
+		Collections.sort(listSorted, (c1, c2) -> TimeUuidComparator.INSTANCE.compare(c1.getName(), c2.getName()));
+
+		int iLength = 4;
+
+		for (StoreColumn col : listSorted)
+		{
+			iLength += HEADER_BYTES + col.getValue().length;
+		}
+
+		if (iLength > m_iSlabBytes)
+		{
+			m_mapIndex.remove(key, token);
+			return;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(iLength);
+		bb.putInt(listSorted.size());
+
+		for (StoreColumn col : listSorted)
+		{
+			bb.putLong(col.getName().getMostSignificantBits());
+			bb.putLong(col.getName().getLeastSignificantBits());
+			bb.putInt(col.getValue().length);
+			bb.put(col.getValue());
+		}
+
+		Location loc = append(key, bb.array(), System.nanoTime() + m_lTtlNanos);
+
+		if (loc == null || !m_mapIndex.replace(key, token, loc))
+		{
+			m_mapIndex.remove(key, token);
+		}
+	}
+
+	/**
+	 * Writes bytes at the head of the ring, recycling the next slab when
+	 * the head is full.
+	 *
+	 * @return where they were written, null if they do not fit a slab
+	 */
+	protected synchronized Location append(Bytes key, byte[] bytes, long lExpires)
+	{
+		if (bytes.length > m_iSlabBytes)
+		{
+			return null;
+		}
+
+		if (m_iHead < 0 || m_iOffset + bytes.length > m_iSlabBytes)
+		{
+			advance();
+		}
+
+		ByteBuffer bb = m_slabs[m_iHead].duplicate();
+		bb.position(m_iOffset);
+		bb.put(bytes);
+
+		Location loc = new Location(key, m_iHead, m_gens[m_iHead], m_iOffset, bytes.length, lExpires);
+		m_listWritten.get(m_iHead).add(loc);
+		m_iOffset += bytes.length;
+		return loc;
+	}
+
+	/**
+	 * Moves the head to the next slab, allocating it the first time round
+	 * and evicting what it holds afterwards.
+	 */
+	protected void advance()
+	{
+		int iNext = (m_iHead + 1) % m_slabs.length;
+
+		if (m_slabs[iNext] == null)
+		{
+			m_slabs[iNext] = ByteBuffer.allocateDirect(m_iSlabBytes);
+			m_iAllocated++;
+		}
+		else
+		{
+			long lStamp = m_locks[iNext].writeLock();
+			m_gens[iNext]++;
+			m_locks[iNext].unlockWrite(lStamp);
+
+			for (Location loc : m_listWritten.get(iNext))
+			{
+				if (m_mapIndex.remove(loc.m_key, loc))
+				{
+					m_evictions.increment();
+				}
+			}
+
+			m_listWritten.get(iNext).clear();
+		}
+
+		m_iHead = iNext;
+		m_iOffset = 0;
+	}
+
+	/**
+	 * Drops the conversation of row key, called once a message is stored
+	 * in it.
+	 */
+	public void invalidate(Bytes key)
+	{
+		if (m_mapIndex.remove(key) instanceof Location)
+		{
+			m_invalidations.increment();
+		}
+	}
+
+	public void clear()
+	{
+		m_mapIndex.clear();
+	}
+
+	public synchronized long getAllocatedBytes()
+	{
+		return (long) m_iAllocated * m_iSlabBytes;
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.jboss.netty.util.CharsetUtil;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * The row key of a participant's copy of a thread: its owner and the
+ * thread's TimeUUID. The string id (owner:thread) and the encoded row
+ * keys are built at most once per key, so the send and read paths pass
+ * keys around instead of concatenating and splitting ids.
+ *
+ * Row keys are the UTF-8 string id, the layout existing keyspaces hold,
+ * or with -Dpostoffice.keys.binary the owner's UTF-8 bytes followed by
+ * the 16 bytes of the thread, and the bare 16 bytes for the thread's
+ * message row. Only turn it on for a new keyspace, rows written in one
+ * layout are not found in the other. A key holds the layout it encodes
+ * to, and a key decoded from a row key keeps that row key, so rows read
+ * back in either layout are addressed as they were written.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class ConversationKey
+{
+	/** Encode row keys in binary, for new keyspaces only, -Dpostoffice.keys.binary */
+	public static final boolean BINARY = Boolean.getBoolean("postoffice.keys.binary");
+
+	protected static final int UUID_LENGTH = 16;
+
+	/** Length of a thread in a string id */
+	protected static final int UUID_STRING_LENGTH = 36;
+
+	protected String m_strOwner;
+	protected UUID m_thread;
+	protected boolean m_bBinary;
+	protected String m_strId;
+	protected Bytes m_rowKey;
+	protected Bytes m_threadKey;
+
+	public ConversationKey(String strOwner, UUID thread)
+	{
+		this(strOwner, thread, BINARY);
+	}
+
+	/**
+	 * @param bBinary true to encode row keys in binary, false for the
+	 * UTF-8 string id
+	 */
+	public ConversationKey(String strOwner, UUID thread, boolean bBinary)
+	{
+		m_strOwner = strOwner;
+		m_thread = thread;
+		m_bBinary = bBinary;
+	}
+
+	/**
+	 * @return the key of a conversation id (owner:thread)
+	 */
+	public static ConversationKey parse(String strConvId)
+	{
+		return parse(strConvId, BINARY);
+	}
+
+	/**
+	 * @return the key of a conversation id (owner:thread), encoding its
+	 * row keys in binary if bBinary is true
+	 */
+	public static ConversationKey parse(String strConvId, boolean bBinary)
+	{
+		int iDelim = strConvId.lastIndexOf(PostofficeUtil.DELIM);
+
+		if (iDelim < 0)
+		{
+			throw new IllegalArgumentException("Not a conversation id: " + strConvId);
+		}
+
+		ConversationKey key = new ConversationKey(strConvId.substring(0, iDelim), UUID.fromString(strConvId.substring(iDelim + 1)), bBinary);
+		key.m_strId = strConvId;
+		return key;
+	}
+
+	/**
+	 * @return the key a conversation row key was encoded from, in
+	 * whichever layout it was written
+	 */
+	public static ConversationKey fromRowKey(Bytes rowKey)
+	{
+		byte[] raw = rowKey.toByteArray();
+		ConversationKey key;
+
+		if (isStringKey(raw))
+		{
+			key = parse(rowKey.toUTF8(), false);
+		}
+		else
+		{
+			int iOwnerLength = raw.length - UUID_LENGTH;
+			ByteBuffer bb = ByteBuffer.wrap(raw, iOwnerLength, UUID_LENGTH);
+			key = new ConversationKey(new String(raw, 0, iOwnerLength, CharsetUtil.UTF_8), new UUID(bb.getLong(), bb.getLong()), true);
+		}
+
+		key.m_rowKey = rowKey;
+		return key;
+	}
+
+	/**
+	 * A string key ends in the delimiter and a UUID's 36 characters. A
+	 * binary key cannot: the version byte of a TimeUUID, 0x1?, is not a
+	 * hex digit.
+	 */
+	protected static boolean isStringKey(byte[] raw)
+	{
+		int iStart = raw.length - UUID_STRING_LENGTH;
+
+		if (iStart < 1 || raw[iStart - 1] != PostofficeUtil.DELIM.charAt(0))
+		{
+			return false;
+		}
+
+		for (int i = 0; i < UUID_STRING_LENGTH; i++)
+		{
+			byte b = raw[iStart + i];
+
+			if (i == 8 || i == 13 || i == 18 || i == 23)
+			{
+				if (b != '-')
+				{
+					return false;
+				}
+			}
+			else if (Character.digit(b, 16) < 0)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the row key of the message bodies of a thread
+	 */
+	public static Bytes toThreadKey(UUID thread)
+	{
+		return toThreadKey(thread, BINARY);
+	}
+
+	/**
+	 * @return the row key of the message bodies of a thread, in binary
+	 * if bBinary is true
+	 */
+	public static Bytes toThreadKey(UUID thread, boolean bBinary)
+	{
+		return bBinary ? Bytes.fromUuid(thread) : Bytes.fromUTF8(thread.toString());
+	}
+
+	public String getOwner()
+	{
+		return m_strOwner;
+	}
+
+	public UUID getThread()
+	{
+		return m_thread;
+	}
+
+	/**
+	 * @return the conversation id, owner:thread
+	 */
+	public String getId()
+	{
+		if (m_strId == null)
+		{
+			m_strId = m_strOwner + PostofficeUtil.DELIM + m_thread;
+		}
+
+		return m_strId;
+	}
+
+	/**
+	 * @return the row key of the conversation and of its summary
+	 */
+	public Bytes toRowKey()
+	{
+		if (m_rowKey == null)
+		{
+			if (m_bBinary)
+			{
+				byte[] owner = m_strOwner.getBytes(CharsetUtil.UTF_8);
+				ByteBuffer bb = ByteBuffer.allocate(owner.length + UUID_LENGTH);
+				bb.put(owner);
+				bb.putLong(m_thread.getMostSignificantBits());
+				bb.putLong(m_thread.getLeastSignificantBits());
+				m_rowKey = Bytes.fromByteArray(bb.array());
+			}
+			else
+			{
+				m_rowKey = Bytes.fromUTF8(getId());
+			}
+		}
+
+		return m_rowKey;
+	}
+
+	/**
+	 * @return the row key of the message bodies of the thread
+	 */
+	public Bytes toThreadKey()
+	{
+		if (m_threadKey == null)
+		{
+			m_threadKey = toThreadKey(m_thread, m_bBinary);
+		}
+
+		return m_threadKey;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ConversationKey))
+		{
+			return false;
+		}
+
+		ConversationKey k = (ConversationKey) o;
+		return m_thread.equals(k.m_thread) && m_strOwner.equals(k.m_strOwner);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return m_thread.hashCode() * 31 + m_strOwner.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getId();
+	}
+}
+
+/**
+ * The row key of a folder, shared by its folder and counter rows. Folder
+ * names are short strings, so the row key stays the UTF-8 id, encoded
+ * once. Keys are equal when their folders are, which lets the in-memory
+ * counters and subscriptions be keyed by them.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class FolderKey
+{
+	protected String m_strOwner;
+	protected String m_strName;
+	protected String m_strId;
+	protected Bytes m_rowKey;
+
+	public FolderKey(String strOwner, String strName)
+	{
+		m_strOwner = strOwner;
+		m_strName = strName;
+	}
+
+	public String getOwner()
+	{
+		return m_strOwner;
+	}
+
+	public String getName()
+	{
+		return m_strName;
+	}
+
+	/**
+	 * @return the folder id, owner:name
+	 */
+	public String getId()
+	{
+		if (m_strId == null)
+		{
+			m_strId = m_strOwner + PostofficeUtil.DELIM + m_strName;
+		}
+
+		return m_strId;
+	}
+
+	public Bytes toRowKey()
+	{
+		if (m_rowKey == null)
+		{
+			m_rowKey = Bytes.fromUTF8(getId());
+		}
+
+		return m_rowKey;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof FolderKey))
+		{
+			return false;
+		}
+
+		FolderKey k = (FolderKey) o;
+		return m_strName.equals(k.m_strName) && m_strOwner.equals(k.m_strOwner);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return m_strName.hashCode() * 31 + m_strOwner.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getId();
+	}
+}
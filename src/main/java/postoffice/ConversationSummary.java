@@ -0,0 +1,482 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.jboss.netty.util.CharsetUtil;
+
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.UuidHelper;
+
+import com.google.gson.Gson;
+
+/**
+ * What a folder listing shows for a conversation. Summaries are written
+ * next to the messages by ConversationUtil.addMessageAndUpdateFolder and
+ * stored as the value of the conversation's folder columns, so listing a
+ * folder is one slice with no message bodies, plus one read of the
+ * conversations' message counters.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class ConversationSummary
+{
+	protected String m_strId;
+	protected String m_strLastSender;
+	protected String m_strSubject;
+	protected String m_strSnippet;
+
+	/** As stored, the messages the conversation had before its counter, see SummaryUtil.MESSAGE_COUNT */
+	protected Integer m_iMessageCount;
+	protected Long m_lLastTimestamp;
+	protected transient Map<FolderKey, UUID> m_mapPositions;
+
+	public ConversationSummary()
+	{
+	}
+
+	public ConversationSummary(String strId)
+	{
+		m_strId = strId;
+		m_iMessageCount = 0;
+	}
+
+	/**
+	 * @return the conversation id
+	 */
+	public String getId()
+	{
+		return m_strId;
+	}
+
+	/**
+	 * @param strId the conversation id to set
+	 */
+	public void setId(String strId)
+	{
+		m_strId = strId;
+	}
+
+	/**
+	 * @return the sender of the newest message
+	 */
+	public String getLastSender()
+	{
+		return m_strLastSender;
+	}
+
+	/**
+	 * @param strLastSender the sender of the newest message
+	 */
+	public void setLastSender(String strLastSender)
+	{
+		m_strLastSender = strLastSender;
+	}
+
+	/**
+	 * @return the subject
+	 */
+	public String getSubject()
+	{
+		return m_strSubject;
+	}
+
+	/**
+	 * @param strSubject the subject to set
+	 */
+	public void setSubject(String strSubject)
+	{
+		m_strSubject = strSubject;
+	}
+
+	/**
+	 * @return the start of the newest message's body
+	 */
+	public String getSnippet()
+	{
+		return m_strSnippet;
+	}
+
+	/**
+	 * @param strSnippet the snippet to set
+	 */
+	public void setSnippet(String strSnippet)
+	{
+		m_strSnippet = strSnippet;
+	}
+
+	/**
+	 * @return the number of messages in the conversation
+	 */
+	public Integer getMessageCount()
+	{
+		return m_iMessageCount;
+	}
+
+	/**
+	 * @param iMessageCount the message count to set
+	 */
+	public void setMessageCount(Integer iMessageCount)
+	{
+		m_iMessageCount = iMessageCount;
+	}
+
+	/**
+	 * @return when the newest message was sent, in milliseconds
+	 */
+	public Long getLastTimestamp()
+	{
+		return m_lLastTimestamp;
+	}
+
+	/**
+	 * @param lLastTimestamp the time stamp to set
+	 */
+	public void setLastTimestamp(Long lLastTimestamp)
+	{
+		m_lLastTimestamp = lLastTimestamp;
+	}
+
+	/**
+	 * @return the column of f listing the conversation, null if it was
+	 * listed before positions were kept
+	 */
+	public UUID getPosition(Folder f)
+	{
+		return m_mapPositions == null ? null : m_mapPositions.get(f.getKey());
+	}
+
+	/**
+	 * @param position the column of f listing the conversation
+	 */
+	public void setPosition(Folder f, UUID position)
+	{
+		setPosition(f.getKey(), position);
+	}
+
+	protected void setPosition(FolderKey key, UUID position)
+	{
+		if (m_mapPositions == null)
+		{
+			m_mapPositions = new HashMap<FolderKey, UUID>(4);
+		}
+
+		m_mapPositions.put(key, position);
+	}
+
+	/**
+	 * @return the folders known to list the conversation
+	 */
+	public List<Folder> getListings()
+	{
+		if (m_mapPositions == null)
+		{
+			return Collections.emptyList();
+		}
+
+		List<Folder> listFolders = new ArrayList<Folder>(m_mapPositions.size());
+
+		for (FolderKey key : m_mapPositions.keySet())
+		{
+			listFolders.add(new Folder(key));
+		}
+
+		return listFolders;
+	}
+}
+
+class SummaryUtil
+{
+	protected static Gson gson = new Gson();
+
+	/** Summaries are keyed by conversation id and live in this column */
+	public static final String SUMMARIES = "summaries";
+	public static final UUID SUMMARY = UUID.fromString("00000000-0000-1000-8000-000000000000");
+
+	/**
+	 * Counts the messages added to a conversation, in the counters column
+	 * family keyed by conversation. Concurrent replies each add one, where
+	 * rewriting the count of the summary would lose all but one of them. A
+	 * listed summary's count is the one it was stored with plus this one.
+	 */
+	public static final UUID MESSAGE_COUNT = UUID.fromString("00000000-0000-1000-8000-000000000003");
+
+	public static final int SNIPPET_LENGTH = 100;
+
+	public static String toJson(ConversationSummary s)
+	{
+		return gson.toJson(s);
+	}
+
+	public static ConversationSummary fromJson(String strJson)
+	{
+		return gson.fromJson(strJson, ConversationSummary.class);
+	}
+
+	/**
+	 * Folder columns written before summaries existed hold the bare
+	 * conversation id instead of a summary.
+	 */
+	public static boolean isSummary(byte[] value)
+	{
+		return value.length > 0 && value[0] == '{';
+	}
+
+	/**
+	 * @return the summary a conversation has once msg is added to it, its
+	 * stored count is left as it was, the new message is counted by
+	 * MESSAGE_COUNT. A summary already showing a newer message keeps it.
+	 */
+	public static ConversationSummary next(ConversationSummary prev, String strConvId, Message msg)
+	{
+		ConversationSummary s = prev != null ? prev : new ConversationSummary(strConvId);
+		
+		if (s.getLastTimestamp() != null && s.getLastTimestamp() > UuidHelper.millisFromTimeUuid(msg.getUuid()))
+		{
+			return s;
+		}
+		
+		s.setLastSender(msg.getSender());
+		s.setSubject(msg.getSubject());
+		s.setSnippet(snippet(msg.getBody()));
+		s.setLastTimestamp(UuidHelper.millisFromTimeUuid(msg.getUuid()));
+		return s;
+	}
+
+	/**
+	 * Builds a summary from a full conversation, used for folder columns
+	 * that predate summaries.
+	 */
+	public static ConversationSummary fromMessages(String strConvId, List<Message> listMsgs)
+	{
+		ConversationSummary s = new ConversationSummary(strConvId);
+
+		for (Message m : listMsgs)
+		{
+			s = next(s, strConvId, m);
+		}
+
+		s.setMessageCount(listMsgs.size());
+		return s;
+	}
+
+	/**
+	 * Adds a message to the count of the conversation convKey.
+	 */
+	public static MessageStore.Batch countMessage(MessageStore.Batch batch, Bytes convKey)
+	{
+		return batch.incrementCounter(CounterUtil.COUNTERS, convKey, MESSAGE_COUNT, 1);
+	}
+
+	/**
+	 * Adds the messages counted by MESSAGE_COUNT to the counts the
+	 * summaries were stored with, reading every counter at once.
+	 *
+	 * This makes a folder page two reads, its slice and this multiget,
+	 * rather than the one slice summaries were meant to cost. It is kept
+	 * on purpose: a count stored in the summary is rewritten by every
+	 * reply, and concurrent replies would lose each other's messages.
+	 */
+	public static void addCounts(List<ConversationSummary> listSummaries)
+	{
+		if (listSummaries.isEmpty())
+		{
+			return;
+		}
+
+		List<Bytes> listKeys = new ArrayList<Bytes>(listSummaries.size());
+
+		for (ConversationSummary s : listSummaries)
+		{
+			listKeys.add(ConversationKey.parse(s.getId()).toRowKey());
+		}
+
+		Map<Bytes, Map<UUID, Long>> mapCounters = StoreUtil.getStore().getCounters(CounterUtil.COUNTERS, listKeys);
+
+		for (int i = 0; i < listSummaries.size(); i++)
+		{
+			ConversationSummary s = listSummaries.get(i);
+			Map<UUID, Long> mapCounts = mapCounters.get(listKeys.get(i));
+			Long lCounted = mapCounts == null ? null : mapCounts.get(MESSAGE_COUNT);
+			int iStored = s.getMessageCount() == null ? 0 : s.getMessageCount();
+			s.setMessageCount(iStored + (lCounted == null ? 0 : lCounted.intValue()));
+		}
+	}
+
+	/**
+	 * The column of a conversation's summaries row holding the name of the
+	 * column of f that lists it, followed by f's key so every listing of
+	 * the conversation can be found. The owner's copy of a conversation is
+	 * listed in their inbox and sent folders, each keeps its own. Like
+	 * SUMMARY it has a time of 0, and sorts after it.
+	 */
+	public static UUID positionColumn(Folder f)
+	{
+		return new UUID(SUMMARY.getMostSignificantBits(), SUMMARY.getLeastSignificantBits() | 1L << 32 | (f.getKey().getId().hashCode() & 0xffffffffL));
+	}
+
+	/**
+	 * @return the current summary of a conversation and its positions, null if it has none
+	 */
+	public static ConversationSummary get(Bytes convKey)
+	{
+		return getAll(Collections.singletonList(convKey)).get(convKey);
+	}
+
+	/**
+	 * @return the summary in the columns of a summaries row, null if it has none
+	 */
+	protected static ConversationSummary fromColumns(List<StoreColumn> listCols)
+	{
+		if (listCols.isEmpty() || !listCols.get(0).getName().equals(SUMMARY))
+		{
+			return null;
+		}
+
+		ConversationSummary summary = fromJson(listCols.get(0).getStringValue());
+
+		for (StoreColumn col : listCols.subList(1, listCols.size()))
+		{
+			// written without the folder's key, left to the folder reads
+			if (col.getValue().length > 18)
+			{
+				ByteBuffer bb = ByteBuffer.wrap(col.getValue());
+				UUID position = new UUID(bb.getLong(), bb.getLong());
+				byte[] owner = new byte[bb.getShort()];
+				bb.get(owner);
+				byte[] name = new byte[bb.remaining()];
+				bb.get(name);
+				summary.setPosition(new FolderKey(new String(owner, CharsetUtil.UTF_8), new String(name, CharsetUtil.UTF_8)), position);
+			}
+		}
+
+		return summary;
+	}
+
+	/**
+	 * Records the summary a conversation has once a message is added.
+	 */
+	public static MessageStore.Batch put(MessageStore.Batch batch, Bytes convKey, ConversationSummary summary)
+	{
+		return batch.writeColumn(SUMMARIES, convKey, SUMMARY, StoreUtil.toBytes(toJson(summary)));
+	}
+
+	/**
+	 * Records the column of f now listing the conversation: its name, then
+	 * the UTF-8 owner of f after its length and the UTF-8 name of f.
+	 */
+	public static MessageStore.Batch putPosition(MessageStore.Batch batch, Bytes convKey, Folder f, UUID position)
+	{
+		byte[] owner = f.getKey().getOwner().getBytes(CharsetUtil.UTF_8);
+		byte[] name = f.getKey().getName().getBytes(CharsetUtil.UTF_8);
+		ByteBuffer bb = ByteBuffer.allocate(16 + 2 + owner.length + name.length);
+		bb.putLong(position.getMostSignificantBits());
+		bb.putLong(position.getLeastSignificantBits());
+		bb.putShort((short) owner.length);
+		bb.put(owner);
+		bb.put(name);
+		return batch.writeColumn(SUMMARIES, convKey, positionColumn(f), bb.array());
+	}
+
+	public static CompletableFuture<ConversationSummary> getAsync(final Bytes convKey)
+	{
+		return CompletableFuture.supplyAsync(() -> get(convKey), StoreUtil.getExecutor());
+	}
+
+	/**
+	 * Reads the summaries of several conversations and their positions
+	 * with one multiget.
+	 *
+	 * Conversations started before summaries existed have none, but hold
+	 * messages that are not counted by MESSAGE_COUNT. They get an empty
+	 * summary holding the number of those messages, which is the same
+	 * for every concurrent writer: they were stored whole in the
+	 * conversation's row, where messages are only referenced now.
+	 *
+	 * @return the summaries by conversation key, new conversations are left out
+	 */
+	public static Map<Bytes, ConversationSummary> getAll(List<Bytes> listConvKeys)
+	{
+		Map<Bytes, ConversationSummary> mapSummaries = new HashMap<Bytes, ConversationSummary>();
+		List<Bytes> listMissing = new ArrayList<Bytes>();
+
+		for (Entry<Bytes, List<StoreColumn>> e : StoreUtil.getStore().getSlices(SUMMARIES, listConvKeys, null, null, false, MessageStore.ALL).entrySet())
+		{
+			ConversationSummary summary = fromColumns(e.getValue());
+
+			if (summary != null)
+			{
+				mapSummaries.put(e.getKey(), summary);
+			}
+			else
+			{
+				listMissing.add(e.getKey());
+			}
+		}
+
+		if (listMissing.isEmpty())
+		{
+			return mapSummaries;
+		}
+
+		for (Entry<Bytes, List<StoreColumn>> e : StoreUtil.getStore().getSlices(ConversationUtil.CONVERSATIONS, listMissing, null, null, false, MessageStore.ALL).entrySet())
+		{
+			int iLegacy = 0;
+
+			for (StoreColumn col : e.getValue())
+			{
+				if (col.getValue().length > 0)
+				{
+					iLegacy++;
+				}
+			}
+
+			if (iLegacy > 0)
+			{
+				ConversationSummary summary = new ConversationSummary(ConversationKey.fromRowKey(e.getKey()).getId());
+				summary.setMessageCount(iLegacy);
+				mapSummaries.put(e.getKey(), summary);
+			}
+		}
+
+		return mapSummaries;
+	}
+
+	public static String snippet(String strBody)
+	{
+		if (strBody == null || strBody.length() <= SNIPPET_LENGTH)
+		{
+			return strBody;
+		}
+
+		return strBody.substring(0, SNIPPET_LENGTH);
+	}
+}
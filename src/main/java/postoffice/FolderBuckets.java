@@ -0,0 +1,367 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.netty.util.CharsetUtil;
+
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.UuidHelper;
+
+/**
+ * Splits the folders column family into one row per folder and month, so
+ * a busy or old account never has one ever growing row, and the
+ * tombstones left by moving conversations to the top stay in the months
+ * they were written in. A folder column lives in the row of the month of
+ * its name, a TimeUUID, which is all a delete needs to find it.
+ *
+ * An index row per folder lists its months. A newest first read walks
+ * them from the month of its cursor and stops as soon as the page is
+ * full, so it costs the same however long the account has been around.
+ *
+ * Once every conversation of an old month has moved to a newer one, its
+ * row only holds tombstones. A delete from a month before the current
+ * one leaves a trim mark in one of MARK_ROWS rows, written with the
+ * delete, so marks outlive the node that wrote them. A background
+ * compactor, on every node, reads the marks, takes the months that are
+ * empty out of their index so reads skip them, and removes the marks.
+ * The current and previous months are left alone: a column may still be
+ * written there by a node whose clock is behind.
+ *
+ * Off unless -Dpostoffice.folders.bucketed=true. Do not switch an
+ * existing keyspace, folders written in one layout are not read in the
+ * other.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class FolderBuckets
+{
+	/** Folders are split by month, -Dpostoffice.folders.bucketed */
+	public static final boolean BUCKETED = Boolean.getBoolean("postoffice.folders.bucketed");
+
+	/** How often emptied months are looked for, -Dpostoffice.folders.compactMs */
+	public static final Long COMPACT_MS = Long.getLong("postoffice.folders.compactMs", 60000);
+
+	/** Months read from the index at once */
+	public static final int INDEX_PAGE = 12;
+
+	/** Rows the trim marks are spread over, so no one row takes every delete */
+	public static final int MARK_ROWS = 16;
+
+	/** Marks read from a mark row by one compaction */
+	public static final int MARK_PAGE = 1000;
+
+	protected static final String INDEX = "months";
+	protected static final String MARKS = "trim";
+	protected static final byte[] NO_VALUE = new byte[0];
+
+	protected static volatile ScheduledExecutorService compactor;
+
+	protected static LongAdder trimmed = MetricsUtil.counter("postoffice_folder_buckets_trimmed_total", null, "Emptied folder months taken out of their folder's index.");
+	protected static LongAdder marksChecked = MetricsUtil.counter("postoffice_folder_buckets_marks_checked_total", null, "Trim marks of folder months checked by the compactor.");
+
+	/**
+	 * @return the month of a TimeUUID, counted from January 1970 in UTC
+	 */
+	public static int month(UUID name)
+	{
+		return month(UuidHelper.millisFromTimeUuid(name));
+	}
+
+	public static int month(long lMillis)
+	{
+		ZonedDateTime t = Instant.ofEpochMilli(lMillis).atZone(ZoneOffset.UTC);
+		return (t.getYear() - 1970) * 12 + t.getMonthValue() - 1;
+	}
+
+	/**
+	 * @return the name of iMonth's column in the index, the TimeUUID of its first millisecond
+	 */
+	public static UUID indexColumn(int iMonth)
+	{
+		ZonedDateTime t = ZonedDateTime.of(1970 + iMonth / 12, iMonth % 12 + 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+		return UuidHelper.nonUniqueTimeUuidForDate(t.toInstant().toEpochMilli());
+	}
+
+	public static Bytes rowKey(FolderKey key, int iMonth)
+	{
+		return Bytes.fromUTF8(key.getId() + PostofficeUtil.DELIM + iMonth);
+	}
+
+	public static Bytes indexKey(FolderKey key)
+	{
+		return Bytes.fromUTF8(key.getId() + PostofficeUtil.DELIM + INDEX);
+	}
+
+	/**
+	 * @return the row holding the trim marks of key
+	 */
+	public static Bytes markKey(FolderKey key)
+	{
+		return markKey(Math.floorMod(key.hashCode(), MARK_ROWS));
+	}
+
+	public static Bytes markKey(int iRow)
+	{
+		return Bytes.fromUTF8(MARKS + PostofficeUtil.DELIM + iRow);
+	}
+
+	/**
+	 * @return the name of the trim mark of a month of key: the month's
+	 * index column with the folder's hash as its last bits, so a month
+	 * marked again writes the same column and marks sort by month
+	 */
+	public static UUID markColumn(FolderKey key, int iMonth)
+	{
+		UUID month = indexColumn(iMonth);
+		return new UUID(month.getMostSignificantBits(), month.getLeastSignificantBits() & 0xffffffff00000000L | key.getId().hashCode() & 0xffffffffL);
+	}
+
+	/**
+	 * @return the value of a trim mark, the UTF-8 owner of the folder
+	 * after its length and the UTF-8 name of the folder
+	 */
+	protected static byte[] markValue(FolderKey key)
+	{
+		byte[] owner = key.getOwner().getBytes(CharsetUtil.UTF_8);
+		byte[] name = key.getName().getBytes(CharsetUtil.UTF_8);
+		ByteBuffer bb = ByteBuffer.allocate(2 + owner.length + name.length);
+		bb.putShort((short) owner.length);
+		bb.put(owner);
+		bb.put(name);
+		return bb.array();
+	}
+
+	protected static FolderKey fromMarkValue(byte[] value)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(value);
+		byte[] owner = new byte[bb.getShort()];
+		bb.get(owner);
+		byte[] name = new byte[bb.remaining()];
+		bb.get(name);
+		return new FolderKey(new String(owner, CharsetUtil.UTF_8), new String(name, CharsetUtil.UTF_8));
+	}
+
+	/**
+	 * Adds the folder column name to a batch, and its month to the index.
+	 */
+	public static MessageStore.Batch write(MessageStore.Batch batch, Folder f, UUID name, byte[] value)
+	{
+		if (!BUCKETED)
+		{
+			return batch.writeColumn(FolderUtil.FOLDERS, f.getKey().toRowKey(), name, value);
+		}
+
+		return _write(batch, f.getKey(), name, value);
+	}
+
+	protected static MessageStore.Batch _write(MessageStore.Batch batch, FolderKey key, UUID name, byte[] value)
+	{
+		// marks left by other nodes, or before a restart, are checked too
+		if (compactor == null)
+		{
+			startCompactor();
+		}
+
+		int iMonth = month(name);
+		batch.writeColumn(FolderUtil.FOLDERS, indexKey(key), indexColumn(iMonth), NO_VALUE);
+		return batch.writeColumn(FolderUtil.FOLDERS, rowKey(key, iMonth), name, value);
+	}
+
+	/**
+	 * Adds the delete of the folder column name to a batch. A month
+	 * before the current one is marked for the compactor in the same
+	 * batch.
+	 */
+	public static MessageStore.Batch delete(MessageStore.Batch batch, Folder f, UUID name)
+	{
+		if (!BUCKETED)
+		{
+			return batch.deleteColumn(FolderUtil.FOLDERS, f.getKey().toRowKey(), name);
+		}
+
+		return _delete(batch, f.getKey(), name);
+	}
+
+	protected static MessageStore.Batch _delete(MessageStore.Batch batch, FolderKey key, UUID name)
+	{
+		int iMonth = month(name);
+
+		if (iMonth < month(System.currentTimeMillis()))
+		{
+			batch.writeColumn(FolderUtil.FOLDERS, markKey(key), markColumn(key, iMonth), markValue(key));
+
+			// checked first so writers never wait on a running compaction
+			if (compactor == null)
+			{
+				startCompactor();
+			}
+		}
+
+		return batch.deleteColumn(FolderUtil.FOLDERS, rowKey(key, iMonth), name);
+	}
+
+	/**
+	 * Reads up to iCount columns of f, newest first, that come after the
+	 * column named after, or from the newest if it is null.
+	 */
+	public static List<StoreColumn> getSliceAfter(Folder f, UUID after, int iCount)
+	{
+		if (!BUCKETED)
+		{
+			return StoreUtil.getSliceAfter(FolderUtil.FOLDERS, f.getKey().toRowKey(), after, true, iCount);
+		}
+
+		return _getSliceAfter(f.getKey(), after, iCount);
+	}
+
+	protected static List<StoreColumn> _getSliceAfter(FolderKey key, UUID after, int iCount)
+	{
+		MessageStore store = StoreUtil.getStore();
+		Bytes indexKey = indexKey(key);
+		List<StoreColumn> listRet = new ArrayList<StoreColumn>(Math.min(iCount, 1024));
+		int iAfterMonth = after != null ? month(after) : Integer.MAX_VALUE;
+
+		// the first months are the cursor's and the ones before it
+		List<StoreColumn> listMonths = after != null ? store.getSlice(FolderUtil.FOLDERS, indexKey, indexColumn(iAfterMonth), null, true, INDEX_PAGE) : store.getSlice(FolderUtil.FOLDERS, indexKey, null, null, true, INDEX_PAGE);
+
+		while (!listMonths.isEmpty())
+		{
+			for (StoreColumn col : listMonths)
+			{
+				int iMonth = month(col.getName());
+				listRet.addAll(StoreUtil.getSliceAfter(FolderUtil.FOLDERS, rowKey(key, iMonth), iMonth == iAfterMonth ? after : null, true, iCount - listRet.size()));
+
+				if (listRet.size() >= iCount)
+				{
+					return listRet;
+				}
+			}
+
+			if (listMonths.size() < INDEX_PAGE)
+			{
+				break;
+			}
+
+			listMonths = StoreUtil.getSliceAfter(FolderUtil.FOLDERS, indexKey, listMonths.get(listMonths.size() - 1).getName(), true, INDEX_PAGE);
+		}
+
+		return listRet;
+	}
+
+	protected static synchronized void startCompactor()
+	{
+		if (compactor != null)
+		{
+			return;
+		}
+
+		compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "folder-compact");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		compactor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					compact();
+				}
+				catch (Exception e)
+				{
+					System.out.println(e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}, COMPACT_MS, COMPACT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Checks the marked months that are old enough, takes the ones that
+	 * hold no column any more out of their folder's index and removes
+	 * their marks. A month that still holds columns is marked again by
+	 * its next delete. A mark row whose batch fails keeps its marks for
+	 * the next run.
+	 */
+	public static void compact()
+	{
+		int iOldest = month(System.currentTimeMillis()) - 1;
+		MessageStore store = StoreUtil.getStore();
+
+		for (int iRow = 0; iRow < MARK_ROWS; iRow++)
+		{
+			Bytes markKey = markKey(iRow);
+			MessageStore.Batch batch = store.createBatch();
+			int iTrimmed = 0;
+			int iChecked = 0;
+
+			for (StoreColumn mark : store.getSlice(FolderUtil.FOLDERS, markKey, null, indexColumn(iOldest), false, MARK_PAGE))
+			{
+				int iMonth = month(mark.getName());
+
+				if (iMonth >= iOldest)
+				{
+					continue;
+				}
+
+				FolderKey key = fromMarkValue(mark.getValue());
+
+				if (store.getSlice(FolderUtil.FOLDERS, rowKey(key, iMonth), null, null, false, 1).isEmpty())
+				{
+					batch.deleteColumn(FolderUtil.FOLDERS, indexKey(key), indexColumn(iMonth));
+					iTrimmed++;
+				}
+
+				batch.deleteColumn(FolderUtil.FOLDERS, markKey, mark.getName());
+				iChecked++;
+			}
+
+			if (iChecked > 0)
+			{
+				batch.execute();
+				trimmed.add(iTrimmed);
+				marksChecked.add(iChecked);
+			}
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the first pages of recently read folders, so a user who looks at
+ * an inbox that did not change is answered without reading the store.
+ * Pages are kept by folder, page size and form (summaries or whole
+ * conversations), and dropped when a message is stored in their folder.
+ *
+ * The cache is bounded by an estimate of the bytes it holds rather than
+ * by a number of entries, since a page of whole conversations can be a
+ * thousand times bigger than a page of summaries. A page is sized from
+ * the lengths of the strings it holds, which dominate it, without
+ * serializing it. Folders are spread
+ * over SEGMENTS access ordered maps, each with its share of the budget,
+ * and the least recently read folders of a segment are evicted first.
+ *
+ * A page read while a message was being stored in its folder is not
+ * kept: the read holds the folder's entry and the page is only added if
+ * that entry was not dropped in between. Messages stored through another
+ * node are not seen here, pages expire after TTL_MS for that reason.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class FolderCache
+{
+	/** Bytes of pages kept, -Dpostoffice.folders.cache.maxBytes, 0 disables the cache */
+	public static final Long MAX_BYTES = Long.getLong("postoffice.folders.cache.maxBytes", 64L * 1024 * 1024);
+
+	/** How long a page is served before it is read again, -Dpostoffice.folders.cache.ttlMs */
+	public static final Long TTL_MS = Long.getLong("postoffice.folders.cache.ttlMs", 5000);
+
+	protected static final int SEGMENTS = 16;
+
+	/** Rough cost of a folder entry and of a page besides their contents */
+	protected static final int ENTRY_BYTES = 128;
+	protected static final int PAGE_BYTES = 64;
+
+	/** Rough cost of an object, of a string besides its chars, and of a collection element */
+	protected static final int OBJECT_BYTES = 32;
+	protected static final int STRING_BYTES = 40;
+	protected static final int ELEMENT_BYTES = 40;
+
+	protected long m_lSegmentBytes;
+	protected long m_lTtlNanos;
+	protected Segment[] m_segments = new Segment[SEGMENTS];
+
+	protected LongAdder m_hits = MetricsUtil.counter("postoffice_folder_cache_requests_total", "result=\"hit\"", "First page folder reads, by whether the cache answered them.");
+	protected LongAdder m_misses = MetricsUtil.counter("postoffice_folder_cache_requests_total", "result=\"miss\"", "First page folder reads, by whether the cache answered them.");
+	protected LongAdder m_evictions = MetricsUtil.counter("postoffice_folder_cache_evictions_total", null, "Folders dropped from the cache to make room.");
+	protected LongAdder m_invalidations = MetricsUtil.counter("postoffice_folder_cache_invalidations_total", null, "Cached folders dropped because a message was stored in them.");
+
+	/**
+	 * A page and the cursor that comes with it.
+	 */
+	static class Page<T>
+	{
+		protected T m_value;
+		protected String m_strCursor;
+		protected long m_lBytes;
+		protected long m_lExpires;
+
+		public Page(T value, String strCursor)
+		{
+			m_value = value;
+			m_strCursor = strCursor;
+		}
+
+		public T getValue()
+		{
+			return m_value;
+		}
+
+		public String getCursor()
+		{
+			return m_strCursor;
+		}
+	}
+
+	/**
+	 * The cached pages of one folder.
+	 */
+	static class Entry
+	{
+		protected Map<Integer, Page<?>> m_mapPages = new HashMap<Integer, Page<?>>(4);
+		protected long m_lBytes = ENTRY_BYTES;
+	}
+
+	/**
+	 * Folders in access order and the bytes they hold, guarded by the
+	 * segment's monitor.
+	 */
+	static class Segment
+	{
+		protected LinkedHashMap<FolderKey, Entry> m_mapEntries = new LinkedHashMap<FolderKey, Entry>(64, 0.75f, true);
+		protected long m_lBytes;
+	}
+
+	public FolderCache(long lMaxBytes, long lTtlMs)
+	{
+		m_lSegmentBytes = lMaxBytes / SEGMENTS;
+		m_lTtlNanos = lTtlMs * 1000000L;
+
+		for (int i = 0; i < SEGMENTS; i++)
+		{
+			m_segments[i] = new Segment();
+		}
+
+		MetricsUtil.gauge("postoffice_folder_cache_bytes", null, "Estimated bytes held by the folder page cache.", () -> getBytes());
+		MetricsUtil.gauge("postoffice_folder_cache_folders", null, "Folders with pages in the folder page cache.", () -> getSize());
+	}
+
+	protected Segment segment(FolderKey key)
+	{
+		int iHash = key.hashCode();
+		return m_segments[(iHash ^ (iHash >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * @return the cached page of key for iCount and bFull, or the one
+	 * loader reads, which is kept unless the folder changed meanwhile
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Page<T> get(FolderKey key, int iCount, boolean bFull, Supplier<Page<T>> loader)
+	{
+		if (m_lSegmentBytes <= 0)
+		{
+			return loader.get();
+		}
+
+		Integer iSlot = bFull ? -iCount : iCount;
+		Segment s = segment(key);
+		Entry e;
+
+		synchronized (s)
+		{
+			e = s.m_mapEntries.get(key);
+
+			if (e == null)
+			{
+				e = new Entry();
+				s.m_mapEntries.put(key, e);
+				s.m_lBytes += e.m_lBytes;
+			}
+			else
+			{
+				Page<?> page = e.m_mapPages.get(iSlot);
+
+				if (page != null && page.m_lExpires - System.nanoTime() > 0)
+				{
+					m_hits.increment();
+					return (Page<T>) page;
+				}
+			}
+		}
+
+		m_misses.increment();
+		Page<T> page = loader.get();
+		page.m_lBytes = PAGE_BYTES + estimate(page.m_value);
+		page.m_lExpires = System.nanoTime() + m_lTtlNanos;
+
+		synchronized (s)
+		{
+			// dropped by a write or evicted while the page was read
+			if (s.m_mapEntries.get(key) != e || ENTRY_BYTES + page.m_lBytes > m_lSegmentBytes)
+			{
+				return page;
+			}
+
+			Page<?> old = e.m_mapPages.put(iSlot, page);
+			long lDelta = page.m_lBytes - (old == null ? 0 : old.m_lBytes);
+			e.m_lBytes += lDelta;
+			s.m_lBytes += lDelta;
+			evict(s, e);
+		}
+
+		return page;
+	}
+
+	/**
+	 * @return an estimate of the bytes o holds, for the types pages are
+	 * made of: strings, collections, summaries and conversations
+	 */
+	protected static long estimate(Object o)
+	{
+		if (o == null)
+		{
+			return 0;
+		}
+
+		if (o instanceof String)
+		{
+			return STRING_BYTES + 2L * ((String) o).length();
+		}
+
+		if (o instanceof Collection)
+		{
+			long lBytes = OBJECT_BYTES;
+
+			for (Object element : (Collection<?>) o)
+			{
+				lBytes += ELEMENT_BYTES + estimate(element);
+			}
+
+			return lBytes;
+		}
+
+		if (o instanceof ConversationSummary)
+		{
+			ConversationSummary s = (ConversationSummary) o;
+			return OBJECT_BYTES * 3 + estimate(s.m_strId) + estimate(s.m_strLastSender) + estimate(s.m_strSubject) + estimate(s.m_strSnippet);
+		}
+
+		if (o instanceof Conversation)
+		{
+			Conversation c = (Conversation) o;
+			return OBJECT_BYTES * 2 + estimate(c.m_strId) + estimate(c.m_strCursor) + estimate(c.m_setMessages);
+		}
+
+		if (o instanceof Message)
+		{
+			Message m = (Message) o;
+			return OBJECT_BYTES * 2 + estimate(m.m_strId) + estimate(m.m_strSubject) + estimate(m.m_strBody) + estimate(m.m_strSender);
+		}
+
+		return OBJECT_BYTES;
+	}
+
+	/**
+	 * Drops the least recently read folders of s until it fits its budget,
+	 * keeping e which was just filled.
+	 */
+	protected void evict(Segment s, Entry e)
+	{
+		Iterator<Entry> it = s.m_mapEntries.values().iterator();
+
+		while (s.m_lBytes > m_lSegmentBytes && it.hasNext())
+		{
+			Entry eldest = it.next();
+
+			if (eldest != e)
+			{
+				it.remove();
+				s.m_lBytes -= eldest.m_lBytes;
+				m_evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Drops the pages of key, called once a message is stored in it. Reads
+	 * of key in flight do not keep what they read.
+	 */
+	public void invalidate(FolderKey key)
+	{
+		if (m_lSegmentBytes <= 0)
+		{
+			return;
+		}
+
+		Segment s = segment(key);
+
+		synchronized (s)
+		{
+			Entry e = s.m_mapEntries.remove(key);
+
+			if (e != null)
+			{
+				s.m_lBytes -= e.m_lBytes;
+
+				if (!e.m_mapPages.isEmpty())
+				{
+					m_invalidations.increment();
+				}
+			}
+		}
+	}
+
+	public void clear()
+	{
+		for (Segment s : m_segments)
+		{
+			synchronized (s)
+			{
+				s.m_mapEntries.clear();
+				s.m_lBytes = 0;
+			}
+		}
+	}
+
+	public long getBytes()
+	{
+		long lBytes = 0;
+
+		for (Segment s : m_segments)
+		{
+			synchronized (s)
+			{
+				lBytes += s.m_lBytes;
+			}
+		}
+
+		return lBytes;
+	}
+
+	/**
+	 * @return the number of folders in the cache, including those being read
+	 */
+	public long getSize()
+	{
+		long lSize = 0;
+
+		for (Segment s : m_segments)
+		{
+			synchronized (s)
+			{
+				lSize += s.m_mapEntries.size();
+			}
+		}
+
+		return lSize;
+	}
+}
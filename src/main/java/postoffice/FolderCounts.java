@@ -0,0 +1,417 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.google.gson.Gson;
+
+/**
+ * The unread and total message counts of a folder.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class FolderCounts
+{
+	protected Long m_lUnread;
+	protected Long m_lTotal;
+
+	public FolderCounts(Long lUnread, Long lTotal)
+	{
+		m_lUnread = lUnread;
+		m_lTotal = lTotal;
+	}
+
+	/**
+	 * @return the number of messages not read yet
+	 */
+	public Long getUnread()
+	{
+		return m_lUnread;
+	}
+
+	/**
+	 * @return the number of messages ever added to the folder
+	 */
+	public Long getTotal()
+	{
+		return m_lTotal;
+	}
+}
+
+/**
+ * Keeps the folder counters. Changes are accumulated in memory, spread
+ * over COUNTER_STRIPES maps so concurrent senders to a busy folder do not
+ * all contend on one entry, and written to the counters column family
+ * every FLUSH_MS milliseconds, one single-row batch of increments per
+ * folder. Reading a folder's counts is one row read plus a lookup per
+ * stripe, however big the folder is.
+ *
+ * A counter write that fails may still have been applied, so its deltas
+ * are dropped and logged rather than written again, which could count
+ * them twice. A read that overlaps a folder's write, when the stored
+ * counters may or may not hold its deltas yet, waits for the write and
+ * reads again, so every delta is counted exactly once.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class CounterUtil
+{
+	protected static Gson gson = new Gson();
+
+	/** Counters are keyed by folder id, the unread and total counts are columns */
+	public static final String COUNTERS = "counters";
+	public static final UUID UNREAD = UUID.fromString("00000000-0000-1000-8000-000000000001");
+	public static final UUID TOTAL = UUID.fromString("00000000-0000-1000-8000-000000000002");
+
+	/** How often accumulated counts are written to the store, -Dpostoffice.counters.flushMs */
+	public static final Long FLUSH_MS = Long.getLong("postoffice.counters.flushMs", 1000);
+
+	/** Maps the accumulated counts are spread over, -Dpostoffice.counters.stripes */
+	public static final Integer COUNTER_STRIPES = Integer.getInteger("postoffice.counters.stripes", Runtime.getRuntime().availableProcessors() * 2);
+
+	protected static final int UNREAD_DELTA = 0;
+	protected static final int TOTAL_DELTA = 1;
+
+	/** Per stripe, the unread and total deltas not written yet by folder */
+	protected static List<ConcurrentHashMap<FolderKey, long[]>> stripes = newStripes(COUNTER_STRIPES);
+
+	/** The deltas of the running flush by folder, still counted until their write is confirmed */
+	protected static ConcurrentHashMap<FolderKey, long[]> inFlight = new ConcurrentHashMap<FolderKey, long[]>();
+
+	/** Held to move deltas between the stripes and inFlight, and shared to add them up */
+	protected static ReadWriteLock moving = new ReentrantReadWriteLock();
+
+	/** Bumped before the deltas of a finished write leave inFlight */
+	protected static AtomicLong writesDone = new AtomicLong();
+
+	protected static LongAdder dropped = MetricsUtil.counter("postoffice_counter_writes_dropped_total", null, "Folder counter writes that failed and were not retried.");
+
+	/** Serializes the mark reads of a folder, by hash */
+	protected static Object[] readLocks = newLocks(COUNTER_STRIPES);
+	protected static volatile ScheduledExecutorService flusher;
+
+	protected static List<ConcurrentHashMap<FolderKey, long[]>> newStripes(int iCount)
+	{
+		List<ConcurrentHashMap<FolderKey, long[]>> s = new ArrayList<ConcurrentHashMap<FolderKey, long[]>>(iCount);
+
+		for (int i = 0; i < iCount; i++)
+		{
+			s.add(new ConcurrentHashMap<FolderKey, long[]>());
+		}
+
+		return s;
+	}
+
+	protected static Object[] newLocks(int iCount)
+	{
+		Object[] locks = new Object[iCount];
+
+		for (int i = 0; i < iCount; i++)
+		{
+			locks[i] = new Object();
+		}
+
+		return locks;
+	}
+
+	public static String toJson(FolderCounts counts)
+	{
+		return gson.toJson(counts);
+	}
+
+	/**
+	 * Counts a message added to f, sent copies are already read.
+	 */
+	public static void messageAdded(Folder f, boolean bUnread)
+	{
+		add(f.getKey(), bUnread ? 1 : 0, 1);
+	}
+
+	/**
+	 * @return the counts of f, including changes not written yet
+	 */
+	public static FolderCounts get(Folder f)
+	{
+		FolderKey key = f.getKey();
+
+		while (true)
+		{
+			long lWrites = writesDone.get();
+			Map<UUID, Long> mapStored = StoreUtil.getStore().getCounters(COUNTERS, key.toRowKey());
+			long[] pending = pending(key);
+
+			// pending deltas were not sent when the stored counters were
+			// read, and a write that finished in between changed writesDone
+			if (pending != null && writesDone.get() == lWrites)
+			{
+				long lUnread = mapStored.containsKey(UNREAD) ? mapStored.get(UNREAD) : 0;
+				long lTotal = mapStored.containsKey(TOTAL) ? mapStored.get(TOTAL) : 0;
+				return new FolderCounts(Math.max(lUnread + pending[UNREAD_DELTA], 0), lTotal + pending[TOTAL_DELTA]);
+			}
+
+			if (pending == null)
+			{
+				// the stored counters may or may not hold the write, wait for it
+				synchronized (inFlight)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the deltas of key not sent yet, null if a write of its
+	 * deltas is running
+	 */
+	protected static long[] pending(FolderKey key)
+	{
+		long[] sum = new long[2];
+		moving.readLock().lock();
+
+		try
+		{
+			if (inFlight.containsKey(key))
+			{
+				return null;
+			}
+
+			for (ConcurrentHashMap<FolderKey, long[]> stripe : stripes)
+			{
+				// read under the stripe's lock, add() changes it in place
+				stripe.computeIfPresent(key, (k, d) ->
+				{
+					sum[UNREAD_DELTA] += d[UNREAD_DELTA];
+					sum[TOTAL_DELTA] += d[TOTAL_DELTA];
+					return d;
+				});
+			}
+		}
+		finally
+		{
+			moving.readLock().unlock();
+		}
+
+		return sum;
+	}
+
+	public static CompletableFuture<FolderCounts> getAsync(final Folder f)
+	{
+		return CompletableFuture.supplyAsync(() -> get(f), StoreUtil.getExecutor());
+	}
+
+	/**
+	 * Clears the unread count of f, taking off the messages it counted.
+	 * Messages added meanwhile stay unread, and mark reads of the same
+	 * folder take turns so none of them takes off what another did. The
+	 * count taken off is exact, a flush running meanwhile included.
+	 */
+	public static void markRead(Folder f)
+	{
+		synchronized (readLocks[Math.floorMod(f.getKey().hashCode(), readLocks.length)])
+		{
+			FolderCounts counts = get(f);
+
+			if (counts.getUnread() > 0)
+			{
+				add(f.getKey(), -counts.getUnread(), 0);
+			}
+		}
+	}
+
+	public static CompletableFuture<Void> markReadAsync(final Folder f)
+	{
+		return CompletableFuture.runAsync(() -> markRead(f), StoreUtil.getExecutor());
+	}
+
+	protected static void add(FolderKey key, final long lUnread, final long lTotal)
+	{
+		ConcurrentHashMap<FolderKey, long[]> stripe = stripes.get((int) (Thread.currentThread().getId() % stripes.size()));
+
+		// compute is atomic with the flusher's remove, no change is lost
+		stripe.compute(key, (k, deltas) ->
+		{
+			if (deltas == null)
+			{
+				deltas = new long[2];
+			}
+
+			deltas[UNREAD_DELTA] += lUnread;
+			deltas[TOTAL_DELTA] += lTotal;
+			return deltas;
+		});
+
+		// checked first so senders never wait on a running flush
+		if (flusher == null)
+		{
+			startFlusher();
+		}
+	}
+
+	protected static synchronized void startFlusher()
+	{
+		if (flusher != null)
+		{
+			return;
+		}
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "counter-flush");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		flusher.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch (Exception e)
+				{
+					System.out.println(e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the accumulated changes, one batch per folder so each is
+	 * applied whole or not at all. Until its write is done a folder's
+	 * deltas stay in inFlight, and get() waits for it. A folder whose
+	 * write fails loses its deltas: the write may have been applied
+	 * anyway, and sending them again could count them twice.
+	 */
+	public static void flush()
+	{
+		synchronized (inFlight)
+		{
+			_flush();
+		}
+	}
+
+	protected static void _flush()
+	{
+		moving.writeLock().lock();
+
+		try
+		{
+			for (ConcurrentHashMap<FolderKey, long[]> stripe : stripes)
+			{
+				Iterator<FolderKey> it = stripe.keySet().iterator();
+
+				while (it.hasNext())
+				{
+					FolderKey key = it.next();
+					long[] deltas = stripe.remove(key);
+
+					if (deltas != null)
+					{
+						inFlight.merge(key, deltas, CounterUtil::sum);
+					}
+				}
+			}
+		}
+		finally
+		{
+			moving.writeLock().unlock();
+		}
+
+		if (inFlight.isEmpty())
+		{
+			return;
+		}
+
+		Map<FolderKey, CompletableFuture<Void>> mapWrites = new HashMap<FolderKey, CompletableFuture<Void>>();
+
+		for (Entry<FolderKey, long[]> e : inFlight.entrySet())
+		{
+			MessageStore.Batch batch = StoreUtil.getStore().createBatch();
+			Bytes rowKey = e.getKey().toRowKey();
+
+			if (e.getValue()[UNREAD_DELTA] != 0)
+			{
+				batch.incrementCounter(COUNTERS, rowKey, UNREAD, e.getValue()[UNREAD_DELTA]);
+			}
+
+			if (e.getValue()[TOTAL_DELTA] != 0)
+			{
+				batch.incrementCounter(COUNTERS, rowKey, TOTAL, e.getValue()[TOTAL_DELTA]);
+			}
+
+			mapWrites.put(e.getKey(), batch.executeAsync());
+		}
+
+		for (Entry<FolderKey, CompletableFuture<Void>> e : mapWrites.entrySet())
+		{
+			try
+			{
+				e.getValue().join();
+			}
+			catch (RuntimeException ex)
+			{
+				long[] deltas = inFlight.get(e.getKey());
+				dropped.increment();
+				System.out.println("Dropped counter deltas of " + e.getKey() + " unread " + deltas[UNREAD_DELTA] + " total " + deltas[TOTAL_DELTA] + ": " + ex.getMessage());
+				ex.printStackTrace();
+			}
+
+			writesDone.incrementAndGet();
+			inFlight.remove(e.getKey());
+		}
+	}
+
+	protected static long[] sum(long[] a, long[] b)
+	{
+		a[UNREAD_DELTA] += b[UNREAD_DELTA];
+		a[TOTAL_DELTA] += b[TOTAL_DELTA];
+		return a;
+	}
+}
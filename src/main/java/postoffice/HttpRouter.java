@@ -0,0 +1,210 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Maps request paths to handlers. Exact routes are a hash lookup, prefix
+ * routes live in a trie of path segments and the longest registered
+ * prefix wins, so dispatch costs the same however many handlers there
+ * are and whatever order they were added in. Only the path is matched,
+ * never the query string, and each of its segments is percent-decoded
+ * on its own, so an encoded slash does not split a segment.
+ *
+ * Routes are compiled once by HttpServer.start() and never change while
+ * the server runs, so lookups need no locking.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class HttpRouter
+{
+	protected Map<List<String>, HttpServer.AsyncRequestHandler> m_mapExact = new HashMap<List<String>, HttpServer.AsyncRequestHandler>();
+	protected Node m_root = new Node();
+
+	/**
+	 * Routes exactly this path, trailing slash aside.
+	 */
+	public void addExact(String strPath, HttpServer.AsyncRequestHandler handler)
+	{
+		m_mapExact.put(segments(strPath), handler);
+	}
+
+	/**
+	 * Routes this path and everything below it. "/" catches whatever no
+	 * other route matches.
+	 */
+	public void addPrefix(String strPath, HttpServer.AsyncRequestHandler handler)
+	{
+		Node node = m_root;
+
+		for (String strSegment : segments(strPath))
+		{
+			Node child = node.m_mapChildren.get(strSegment);
+
+			if (child == null)
+			{
+				child = new Node();
+				node.m_mapChildren.put(strSegment, child);
+			}
+
+			node = child;
+		}
+
+		node.m_handler = handler;
+	}
+
+	/**
+	 * @return the handler for a path as it was sent, null if none matches
+	 * or it is not validly encoded
+	 */
+	public HttpServer.AsyncRequestHandler route(String strPath)
+	{
+		List<String> listSegments = segments(strPath);
+
+		if (listSegments == null)
+		{
+			return null;
+		}
+
+		HttpServer.AsyncRequestHandler handler = m_mapExact.get(listSegments);
+
+		if (handler != null)
+		{
+			return handler;
+		}
+
+		Node node = m_root;
+		handler = node.m_handler;
+
+		for (String strSegment : listSegments)
+		{
+			node = node.m_mapChildren.get(strSegment);
+
+			if (node == null)
+			{
+				break;
+			}
+
+			if (node.m_handler != null)
+			{
+				handler = node.m_handler;
+			}
+		}
+
+		return handler;
+	}
+
+	/**
+	 * @return the decoded segments of a path, null if one of them is not
+	 * validly encoded
+	 */
+	protected static List<String> segments(String strPath)
+	{
+		List<String> listSegments = new ArrayList<String>(4);
+		int iStart = 0;
+		int iLen = strPath.length();
+
+		while (iStart < iLen)
+		{
+			int iEnd = strPath.indexOf('/', iStart);
+
+			if (iEnd < 0)
+			{
+				iEnd = iLen;
+			}
+
+			// skips the empty segments of leading, trailing and double slashes
+			if (iEnd > iStart)
+			{
+				String strSegment = decodeComponent(strPath.substring(iStart, iEnd));
+
+				if (strSegment == null)
+				{
+					return null;
+				}
+
+				listSegments.add(strSegment);
+			}
+
+			iStart = iEnd + 1;
+		}
+
+		return listSegments;
+	}
+
+	/**
+	 * Decodes the %XX escapes of a path segment as UTF-8. Unlike a query
+	 * string, a path keeps its '+' as it is.
+	 *
+	 * @return the decoded segment, null if an escape is cut short or not hex
+	 */
+	protected static String decodeComponent(String strSegment)
+	{
+		if (strSegment.indexOf('%') < 0)
+		{
+			return strSegment;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(strSegment.length());
+		int iLen = strSegment.length();
+
+		for (int i = 0; i < iLen; i++)
+		{
+			int iEscape = strSegment.indexOf('%', i);
+
+			if (iEscape != i)
+			{
+				// copies what comes before the next escape as it is
+				byte[] chars = strSegment.substring(i, iEscape < 0 ? iLen : iEscape).getBytes(CharsetUtil.UTF_8);
+				out.write(chars, 0, chars.length);
+				i = iEscape < 0 ? iLen : iEscape - 1;
+				continue;
+			}
+
+			int iHigh = i + 2 < iLen ? Character.digit(strSegment.charAt(i + 1), 16) : -1;
+			int iLow = i + 2 < iLen ? Character.digit(strSegment.charAt(i + 2), 16) : -1;
+
+			if (iHigh < 0 || iLow < 0)
+			{
+				return null;
+			}
+
+			out.write(iHigh << 4 | iLow);
+			i += 2;
+		}
+
+		return new String(out.toByteArray(), CharsetUtil.UTF_8);
+	}
+
+	static class Node
+	{
+		protected Map<String, Node> m_mapChildren = new HashMap<String, Node>();
+		protected HttpServer.AsyncRequestHandler m_handler;
+	}
+}
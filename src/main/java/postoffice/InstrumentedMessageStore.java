@@ -0,0 +1,295 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Times every call made to another MessageStore, reads per operation and
+ * column family, batches per execution, and counts the calls in flight.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class InstrumentedMessageStore implements MessageStore
+{
+	public static final String LATENCY = "postoffice_store_call_seconds";
+	public static final String ERRORS = "postoffice_store_call_errors_total";
+
+	protected static final int GET_SLICE = 0;
+	protected static final int GET_SLICES = 1;
+	protected static final int GET_COLUMNS = 2;
+	protected static final int GET_COUNTERS = 3;
+	protected static final int GET_COUNTER_ROWS = 4;
+	protected static final String[] OPS = { "getSlice", "getSlices", "getColumns", "getCounters", "getCounterRows" };
+
+	protected MessageStore m_store;
+	protected AtomicInteger m_iInFlight = new AtomicInteger();
+
+	/** Per column family, a histogram and an error counter per read operation */
+	protected ConcurrentHashMap<String, AtomicReferenceArray<Op>> m_mapReads = new ConcurrentHashMap<String, AtomicReferenceArray<Op>>();
+	protected Op m_execute = new Op("execute", null);
+
+	/**
+	 * The latency and errors of one kind of call.
+	 */
+	static class Op
+	{
+		protected WindowedHistogram m_latency;
+		protected LongAdder m_errors;
+
+		public Op(String strOp, String strFamily)
+		{
+			String strLabels = "op=\"" + strOp + "\"" + (strFamily == null ? "" : ",family=\"" + strFamily + "\"");
+			m_latency = MetricsUtil.histogram(LATENCY, strLabels, "Latency of the calls made to the message store.");
+			m_errors = MetricsUtil.counter(ERRORS, strLabels, "Calls to the message store that failed.");
+		}
+
+		public void record(long lStart, boolean bFailed)
+		{
+			m_latency.record(System.nanoTime() - lStart);
+
+			if (bFailed)
+			{
+				m_errors.increment();
+			}
+		}
+	}
+
+	public InstrumentedMessageStore(MessageStore store)
+	{
+		m_store = store;
+		MetricsUtil.gauge("postoffice_store_calls_in_flight", null, "Calls to the message store that have not returned yet.", () -> m_iInFlight.get());
+	}
+
+	protected Op read(String strFamily, int iOp)
+	{
+		AtomicReferenceArray<Op> ops = m_mapReads.get(strFamily);
+
+		if (ops == null)
+		{
+			AtomicReferenceArray<Op> existing = m_mapReads.putIfAbsent(strFamily, ops = new AtomicReferenceArray<Op>(OPS.length));
+			ops = existing != null ? existing : ops;
+		}
+
+		Op op = ops.get(iOp);
+
+		// a race creates the same series twice, the registry keeps the first
+		if (op == null)
+		{
+			ops.compareAndSet(iOp, null, new Op(OPS[iOp], strFamily));
+			op = ops.get(iOp);
+		}
+
+		return op;
+	}
+
+	@Override
+	public Batch createBatch()
+	{
+		return new InstrumentedBatch(m_store.createBatch());
+	}
+
+	@Override
+	public List<StoreColumn> getSlice(String strFamily, Bytes rowKey, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		Op op = read(strFamily, GET_SLICE);
+		long lStart = System.nanoTime();
+		boolean bFailed = true;
+		m_iInFlight.incrementAndGet();
+
+		try
+		{
+			List<StoreColumn> listRet = m_store.getSlice(strFamily, rowKey, start, finish, bReversed, iCount);
+			bFailed = false;
+			return listRet;
+		}
+		finally
+		{
+			m_iInFlight.decrementAndGet();
+			op.record(lStart, bFailed);
+		}
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, List<StoreColumn>> getSlices(String strFamily, List<Bytes> listRowKeys, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		Op op = read(strFamily, GET_SLICES);
+		long lStart = System.nanoTime();
+		boolean bFailed = true;
+		m_iInFlight.incrementAndGet();
+
+		try
+		{
+			LinkedHashMap<Bytes, List<StoreColumn>> mapRet = m_store.getSlices(strFamily, listRowKeys, start, finish, bReversed, iCount);
+			bFailed = false;
+			return mapRet;
+		}
+		finally
+		{
+			m_iInFlight.decrementAndGet();
+			op.record(lStart, bFailed);
+		}
+	}
+
+	@Override
+	public List<StoreColumn> getColumns(String strFamily, Bytes rowKey, Collection<UUID> names)
+	{
+		Op op = read(strFamily, GET_COLUMNS);
+		long lStart = System.nanoTime();
+		boolean bFailed = true;
+		m_iInFlight.incrementAndGet();
+
+		try
+		{
+			List<StoreColumn> listRet = m_store.getColumns(strFamily, rowKey, names);
+			bFailed = false;
+			return listRet;
+		}
+		finally
+		{
+			m_iInFlight.decrementAndGet();
+			op.record(lStart, bFailed);
+		}
+	}
+
+	@Override
+	public Map<UUID, Long> getCounters(String strFamily, Bytes rowKey)
+	{
+		Op op = read(strFamily, GET_COUNTERS);
+		long lStart = System.nanoTime();
+		boolean bFailed = true;
+		m_iInFlight.incrementAndGet();
+
+		try
+		{
+			Map<UUID, Long> mapRet = m_store.getCounters(strFamily, rowKey);
+			bFailed = false;
+			return mapRet;
+		}
+		finally
+		{
+			m_iInFlight.decrementAndGet();
+			op.record(lStart, bFailed);
+		}
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, Map<UUID, Long>> getCounters(String strFamily, List<Bytes> listRowKeys)
+	{
+		Op op = read(strFamily, GET_COUNTER_ROWS);
+		long lStart = System.nanoTime();
+		boolean bFailed = true;
+		m_iInFlight.incrementAndGet();
+
+		try
+		{
+			LinkedHashMap<Bytes, Map<UUID, Long>> mapRet = m_store.getCounters(strFamily, listRowKeys);
+			bFailed = false;
+			return mapRet;
+		}
+		finally
+		{
+			m_iInFlight.decrementAndGet();
+			op.record(lStart, bFailed);
+		}
+	}
+
+	@Override
+	public void shutdown()
+	{
+		m_store.shutdown();
+	}
+
+	class InstrumentedBatch implements Batch
+	{
+		protected Batch m_batch;
+
+		public InstrumentedBatch(Batch batch)
+		{
+			m_batch = batch;
+		}
+
+		@Override
+		public Batch writeColumn(String strFamily, Bytes rowKey, UUID name, byte[] value)
+		{
+			m_batch.writeColumn(strFamily, rowKey, name, value);
+			return this;
+		}
+
+		@Override
+		public Batch deleteColumn(String strFamily, Bytes rowKey, UUID name)
+		{
+			m_batch.deleteColumn(strFamily, rowKey, name);
+			return this;
+		}
+
+		@Override
+		public Batch incrementCounter(String strFamily, Bytes rowKey, UUID name, long lDelta)
+		{
+			m_batch.incrementCounter(strFamily, rowKey, name, lDelta);
+			return this;
+		}
+
+		@Override
+		public void execute()
+		{
+			long lStart = System.nanoTime();
+			boolean bFailed = true;
+			m_iInFlight.incrementAndGet();
+
+			try
+			{
+				m_batch.execute();
+				bFailed = false;
+			}
+			finally
+			{
+				m_iInFlight.decrementAndGet();
+				m_execute.record(lStart, bFailed);
+			}
+		}
+
+		@Override
+		public CompletableFuture<Void> executeAsync()
+		{
+			final long lStart = System.nanoTime();
+			m_iInFlight.incrementAndGet();
+
+			return m_batch.executeAsync().whenComplete((v, ex) ->
+			{
+				m_iInFlight.decrementAndGet();
+				m_execute.record(lStart, ex != null);
+			});
+		}
+	}
+}
@@ -0,0 +1,461 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Spreads calls over the stores of several nodes holding the same data,
+ * preferring the ones that answered fastest lately. Every node keeps a
+ * moving average of its response times, and a call goes to the better of
+ * two random nodes, scored by that average times its calls in flight. A
+ * node that slows down or fails is soon avoided, and is tried again once
+ * the others' scores catch up with it.
+ *
+ * Folder and conversation reads can be hedged: if the first node has not
+ * answered after the m_dHedgeQuantile-th latency of the recent reads, the
+ * same read is sent to a second node and the first answer wins. The
+ * threshold is recomputed every m_lWindowMs milliseconds, and nothing is
+ * hedged until the first window has seen enough reads. Until then reads
+ * run on the caller's thread. Once armed, a hedged read and its backup
+ * run on a pool of at most HEDGE_THREADS threads so the caller can stop
+ * waiting on the first node; when the pool is busy the read runs on the
+ * caller's thread, unhedged. Writes and counter reads are never hedged.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class LatencyAwareMessageStore implements MessageStore
+{
+	/** Cassandra nodes as host:port, comma separated, -Dpostoffice.cassandra.nodes */
+	public static final String NODES = System.getProperty("postoffice.cassandra.nodes", "localhost:9160");
+
+	/** Latency quantile after which a read is hedged, 0 disables hedging, -Dpostoffice.store.hedge.quantile */
+	public static final Double HEDGE_QUANTILE = Double.valueOf(System.getProperty("postoffice.store.hedge.quantile", "0.95"));
+
+	/** Reads are never hedged sooner than this, -Dpostoffice.store.hedge.minMs */
+	public static final Long HEDGE_MIN_MS = Long.getLong("postoffice.store.hedge.minMs", 2);
+
+	/** How often the hedge threshold is recomputed, -Dpostoffice.store.hedge.windowMs */
+	public static final Long HEDGE_WINDOW_MS = Long.getLong("postoffice.store.hedge.windowMs", 1000);
+
+	/** Threads running hedged reads at most, -Dpostoffice.store.hedge.threads */
+	public static final Integer HEDGE_THREADS = Integer.getInteger("postoffice.store.hedge.threads", 64);
+
+	/** Weight of the newest response time in a node's moving average */
+	protected static final double EWMA_ALPHA = 0.1;
+
+	/** Counted as the response time of a failed call, so failing nodes are avoided */
+	protected static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** Reads a window needs before it moves the hedge threshold */
+	protected static final int MIN_WINDOW_READS = 20;
+
+	protected static final Set<String> HEDGED = new HashSet<String>(Arrays.asList(FolderUtil.FOLDERS, SummaryUtil.SUMMARIES, ConversationUtil.CONVERSATIONS, ConversationUtil.MESSAGES));
+
+	protected Node[] m_nodes;
+	protected double m_dHedgeQuantile;
+	protected long m_lHedgeMinNanos;
+	protected long m_lWindowNanos;
+
+	protected volatile LatencyHistogram m_window = new LatencyHistogram();
+	protected AtomicLong m_lWindowEnd;
+	protected volatile long m_lHedgeNanos = Long.MAX_VALUE;
+
+	protected LongAdder m_hedged = MetricsUtil.counter("postoffice_store_hedged_reads_total", null, "Reads sent to a second node because the first was slow.");
+	protected LongAdder m_hedgeWins = MetricsUtil.counter("postoffice_store_hedge_wins_total", null, "Hedged reads the second node answered first.");
+	protected ExecutorService m_hedgers;
+
+	/**
+	 * A node's store and how fast it answered lately.
+	 */
+	static class Node
+	{
+		protected String m_strName;
+		protected MessageStore m_store;
+		protected AtomicInteger m_iInFlight = new AtomicInteger();
+
+		/** Racing updates can lose a sample, which an average can afford */
+		protected volatile double m_dEwmaNanos;
+
+		public Node(String strName, MessageStore store)
+		{
+			m_strName = strName;
+			m_store = store;
+		}
+
+		public void record(long lNanos)
+		{
+			m_dEwmaNanos += EWMA_ALPHA * (lNanos - m_dEwmaNanos);
+		}
+
+		public double score()
+		{
+			return m_dEwmaNanos * (m_iInFlight.get() + 1);
+		}
+
+		public <T> T call(Function<MessageStore, T> call)
+		{
+			long lStart = System.nanoTime();
+			m_iInFlight.incrementAndGet();
+
+			try
+			{
+				T ret = call.apply(m_store);
+				record(System.nanoTime() - lStart);
+				return ret;
+			}
+			catch (RuntimeException e)
+			{
+				record(Math.max(System.nanoTime() - lStart, FAILURE_PENALTY_NANOS));
+				throw e;
+			}
+			finally
+			{
+				m_iInFlight.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @param mapNodes the store of every node by name, all holding the same data
+	 */
+	public LatencyAwareMessageStore(Map<String, MessageStore> mapNodes, double dHedgeQuantile, long lHedgeMinMs, long lWindowMs)
+	{
+		m_nodes = new Node[mapNodes.size()];
+		m_dHedgeQuantile = dHedgeQuantile;
+		m_lHedgeMinNanos = TimeUnit.MILLISECONDS.toNanos(lHedgeMinMs);
+		m_lWindowNanos = TimeUnit.MILLISECONDS.toNanos(lWindowMs);
+		m_lWindowEnd = new AtomicLong(System.nanoTime() + m_lWindowNanos);
+
+		int i = 0;
+
+		for (Map.Entry<String, MessageStore> e : mapNodes.entrySet())
+		{
+			final Node n = m_nodes[i++] = new Node(e.getKey(), e.getValue());
+			MetricsUtil.gauge("postoffice_store_node_latency_ewma_microseconds", "node=\"" + n.m_strName + "\"", "Moving average of the response times of a node.", () -> (long) (n.m_dEwmaNanos / 1000));
+		}
+
+		MetricsUtil.gauge("postoffice_store_hedge_threshold_microseconds", null, "Time after which a read is hedged, -1 until known.", () -> m_lHedgeNanos == Long.MAX_VALUE ? -1 : m_lHedgeNanos / 1000);
+
+		// no queue, a read the pool cannot take at once is not hedged
+		m_hedgers = new ThreadPoolExecutor(0, HEDGE_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+		{
+			protected AtomicInteger m_iCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "store-hedge-" + m_iCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return the better of two distinct random nodes, other than skip
+	 */
+	protected Node choose(Node skip)
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Node a;
+
+		do
+		{
+			a = m_nodes[random.nextInt(m_nodes.length)];
+		}
+		while (a == skip && m_nodes.length > 1);
+
+		if (m_nodes.length < (skip == null ? 2 : 3))
+		{
+			return a;
+		}
+
+		Node b;
+
+		do
+		{
+			b = m_nodes[random.nextInt(m_nodes.length)];
+		}
+		while (b == a || b == skip);
+
+		return b.score() < a.score() ? b : a;
+	}
+
+	protected <T> T read(String strFamily, final Function<MessageStore, T> call)
+	{
+		if (m_dHedgeQuantile <= 0 || m_nodes.length < 2 || !HEDGED.contains(strFamily))
+		{
+			return choose(null).call(call);
+		}
+
+		final long lStart = System.nanoTime();
+		final Node first = choose(null);
+		CompletableFuture<T> primary = null;
+
+		if (m_lHedgeNanos < Long.MAX_VALUE)
+		{
+			try
+			{
+				primary = CompletableFuture.supplyAsync(() -> first.call(call), m_hedgers);
+			}
+			catch (RejectedExecutionException e)
+			{
+				// every hedging thread is busy
+			}
+		}
+
+		if (primary == null)
+		{
+			T ret = first.call(call);
+			sample(lStart);
+			return ret;
+		}
+
+		try
+		{
+			T ret = primary.get(m_lHedgeNanos, TimeUnit.NANOSECONDS);
+			sample(lStart);
+			return ret;
+		}
+		catch (TimeoutException e)
+		{
+			// slower than most, ask another node too
+		}
+		catch (ExecutionException e)
+		{
+			throw unwrap(e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+
+		final Node second = choose(first);
+		CompletableFuture<T> winner = new CompletableFuture<T>();
+		CompletableFuture<T> answer = winner;
+		AtomicInteger iFailed = new AtomicInteger();
+
+		try
+		{
+			CompletableFuture<T> backup = CompletableFuture.supplyAsync(() -> second.call(call), m_hedgers);
+			m_hedged.increment();
+
+			// the first answer wins, a failure only counts once both failed
+			primary.whenComplete((ret, ex) -> settle(winner, ret, ex, iFailed, false));
+			backup.whenComplete((ret, ex) -> settle(winner, ret, ex, iFailed, true));
+		}
+		catch (RejectedExecutionException e)
+		{
+			// no thread for the backup, the first node it is
+			answer = primary;
+		}
+
+		try
+		{
+			T ret = answer.get();
+			sample(lStart);
+			return ret;
+		}
+		catch (ExecutionException e)
+		{
+			throw unwrap(e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	protected <T> void settle(CompletableFuture<T> winner, T ret, Throwable ex, AtomicInteger iFailed, boolean bBackup)
+	{
+		if (ex == null)
+		{
+			if (winner.complete(ret) && bBackup)
+			{
+				m_hedgeWins.increment();
+			}
+		}
+		else if (iFailed.incrementAndGet() == 2)
+		{
+			winner.completeExceptionally(ex);
+		}
+	}
+
+	protected static RuntimeException unwrap(ExecutionException e)
+	{
+		Throwable cause = e.getCause();
+
+		while (cause instanceof CompletionException && cause.getCause() != null)
+		{
+			cause = cause.getCause();
+		}
+
+		return cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+	}
+
+	/**
+	 * Records the latency of a hedged family read and, once a window is
+	 * over, moves the hedge threshold to its quantile.
+	 */
+	protected void sample(long lStart)
+	{
+		long lNow = System.nanoTime();
+		LatencyHistogram window = m_window;
+		window.record(lNow - lStart);
+
+		long lEnd = m_lWindowEnd.get();
+
+		if (lNow < lEnd || !m_lWindowEnd.compareAndSet(lEnd, lNow + m_lWindowNanos))
+		{
+			return;
+		}
+
+		m_window = new LatencyHistogram();
+
+		if (window.getCount() >= MIN_WINDOW_READS)
+		{
+			m_lHedgeNanos = Math.max(m_lHedgeMinNanos, window.getQuantileNanos(m_dHedgeQuantile));
+		}
+	}
+
+	@Override
+	public Batch createBatch()
+	{
+		return new NodeBatch();
+	}
+
+	@Override
+	public List<StoreColumn> getSlice(final String strFamily, final Bytes rowKey, final UUID start, final UUID finish, final boolean bReversed, final int iCount)
+	{
+		return read(strFamily, s -> s.getSlice(strFamily, rowKey, start, finish, bReversed, iCount));
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, List<StoreColumn>> getSlices(final String strFamily, final List<Bytes> listRowKeys, final UUID start, final UUID finish, final boolean bReversed, final int iCount)
+	{
+		return read(strFamily, s -> s.getSlices(strFamily, listRowKeys, start, finish, bReversed, iCount));
+	}
+
+	@Override
+	public List<StoreColumn> getColumns(final String strFamily, final Bytes rowKey, final Collection<UUID> names)
+	{
+		return read(strFamily, s -> s.getColumns(strFamily, rowKey, names));
+	}
+
+	@Override
+	public Map<UUID, Long> getCounters(final String strFamily, final Bytes rowKey)
+	{
+		return read(strFamily, s -> s.getCounters(strFamily, rowKey));
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, Map<UUID, Long>> getCounters(final String strFamily, final List<Bytes> listRowKeys)
+	{
+		return read(strFamily, s -> s.getCounters(strFamily, listRowKeys));
+	}
+
+	@Override
+	public void shutdown()
+	{
+		m_hedgers.shutdown();
+
+		for (Node n : m_nodes)
+		{
+			n.m_store.shutdown();
+		}
+	}
+
+	/**
+	 * Picks its node when executed, so a batch built slowly still goes to
+	 * the node that is fastest by then.
+	 */
+	class NodeBatch implements Batch
+	{
+		protected List<Function<Batch, Batch>> m_listMutations = new ArrayList<Function<Batch, Batch>>();
+
+		@Override
+		public Batch writeColumn(final String strFamily, final Bytes rowKey, final UUID name, final byte[] value)
+		{
+			m_listMutations.add(b -> b.writeColumn(strFamily, rowKey, name, value));
+			return this;
+		}
+
+		@Override
+		public Batch deleteColumn(final String strFamily, final Bytes rowKey, final UUID name)
+		{
+			m_listMutations.add(b -> b.deleteColumn(strFamily, rowKey, name));
+			return this;
+		}
+
+		@Override
+		public Batch incrementCounter(final String strFamily, final Bytes rowKey, final UUID name, final long lDelta)
+		{
+			m_listMutations.add(b -> b.incrementCounter(strFamily, rowKey, name, lDelta));
+			return this;
+		}
+
+		@Override
+		public void execute()
+		{
+			choose(null).call(s ->
+			{
+				Batch batch = s.createBatch();
+
+				for (Function<Batch, Batch> m : m_listMutations)
+				{
+					m.apply(batch);
+				}
+
+				batch.execute();
+				return null;
+			});
+		}
+	}
+}
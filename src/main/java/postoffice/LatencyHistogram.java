@@ -0,0 +1,386 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histogram with log-linear buckets: every power of two is split
+ * into SUB_BUCKETS buckets, so a percentile is off by at most 1/8th of
+ * its value whatever the range. Recording is a bucket index computation
+ * and two atomic adds, it never allocates or locks.
+ *
+ * Counts are kept since start. WindowedHistogram keeps a ring of them
+ * for quantiles of recent calls only.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class LatencyHistogram
+{
+	protected static final int SUB_BITS = 3;
+	protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+	protected static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	protected AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+	protected LongAdder m_lSumNanos = new LongAdder();
+
+	public void record(long lNanos)
+	{
+		m_counts.incrementAndGet(index(Math.max(lNanos, 0)));
+		m_lSumNanos.add(lNanos);
+	}
+
+	public long getCount()
+	{
+		long lCount = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			lCount += m_counts.get(i);
+		}
+
+		return lCount;
+	}
+
+	public long getSumNanos()
+	{
+		return m_lSumNanos.sum();
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the dQuantile-th value, 0 if nothing was recorded
+	 */
+	public long getQuantileNanos(double dQuantile)
+	{
+		long[] counts = new long[BUCKETS];
+		addTo(counts);
+		return quantile(counts, dQuantile);
+	}
+
+	/**
+	 * Adds the count of each bucket to counts, to merge histograms.
+	 */
+	protected void addTo(long[] counts)
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] += m_counts.get(i);
+		}
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the dQuantile-th
+	 * value of the bucket counts, 0 if they are all 0
+	 */
+	protected static long quantile(long[] counts, double dQuantile)
+	{
+		long lTotal = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			lTotal += counts[i];
+		}
+
+		if (lTotal == 0)
+		{
+			return 0;
+		}
+
+		long lRank = (long) Math.ceil(dQuantile * lTotal);
+		long lSeen = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			lSeen += counts[i];
+
+			if (lSeen >= lRank)
+			{
+				return upperBound(i);
+			}
+		}
+
+		return upperBound(BUCKETS - 1);
+	}
+
+	protected static int index(long lValue)
+	{
+		if (lValue < SUB_BUCKETS)
+		{
+			return (int) lValue;
+		}
+
+		int iExp = 63 - Long.numberOfLeadingZeros(lValue);
+		int iSub = (int) (lValue >>> (iExp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (iExp - SUB_BITS + 1) * SUB_BUCKETS + iSub;
+	}
+
+	protected static long upperBound(int iIndex)
+	{
+		if (iIndex < SUB_BUCKETS)
+		{
+			return iIndex;
+		}
+
+		int iExp = iIndex / SUB_BUCKETS + SUB_BITS - 1;
+		long lLower = (long) (SUB_BUCKETS + iIndex % SUB_BUCKETS) << (iExp - SUB_BITS);
+		return lLower + (1L << (iExp - SUB_BITS)) - 1;
+	}
+}
+
+/**
+ * A latency histogram whose quantiles cover the last m_lWindowNanos only,
+ * while its count and sum are kept since start, the way Prometheus
+ * summaries expect. The window is a ring of LatencyHistograms, one per
+ * slice of it; the recorder that finds the current slice over swaps a
+ * fresh histogram in for the oldest one, so quantiles move on slice by
+ * slice and recording still never locks.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class WindowedHistogram
+{
+	/** How far back the quantiles on /metrics look, -Dpostoffice.metrics.windowMs */
+	public static final Long WINDOW_MS = Long.getLong("postoffice.metrics.windowMs", 60000);
+
+	/** Slices the window is split into */
+	protected static final int SLICES = 6;
+
+	protected AtomicReferenceArray<LatencyHistogram> m_slices;
+	protected volatile int m_iCurrent;
+	protected long m_lSliceNanos;
+	protected AtomicLong m_lSliceEnd;
+
+	protected LongAdder m_lCount = new LongAdder();
+	protected LongAdder m_lSumNanos = new LongAdder();
+
+	public WindowedHistogram()
+	{
+		this(WINDOW_MS, SLICES);
+	}
+
+	public WindowedHistogram(long lWindowMs, int iSlices)
+	{
+		m_slices = new AtomicReferenceArray<LatencyHistogram>(iSlices);
+
+		for (int i = 0; i < iSlices; i++)
+		{
+			m_slices.set(i, new LatencyHistogram());
+		}
+
+		m_lSliceNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(lWindowMs) / iSlices);
+		m_lSliceEnd = new AtomicLong(System.nanoTime() + m_lSliceNanos);
+	}
+
+	public void record(long lNanos)
+	{
+		rotate(System.nanoTime());
+		m_slices.get(m_iCurrent).record(lNanos);
+		m_lCount.increment();
+		m_lSumNanos.add(lNanos);
+	}
+
+	/**
+	 * Moves on to a fresh slice for every slice that ended by lNow. One
+	 * caller wins the compare and set and does it, the others record into
+	 * the slice it is leaving.
+	 */
+	protected void rotate(long lNow)
+	{
+		long lEnd = m_lSliceEnd.get();
+
+		if (lNow < lEnd)
+		{
+			return;
+		}
+
+		long lEnded = (lNow - lEnd) / m_lSliceNanos + 1;
+
+		if (!m_lSliceEnd.compareAndSet(lEnd, lEnd + lEnded * m_lSliceNanos))
+		{
+			return;
+		}
+
+		int iCurrent = m_iCurrent;
+
+		for (long l = 0; l < Math.min(lEnded, m_slices.length()); l++)
+		{
+			iCurrent = (iCurrent + 1) % m_slices.length();
+			m_slices.set(iCurrent, new LatencyHistogram());
+		}
+
+		m_iCurrent = iCurrent;
+	}
+
+	public long getCount()
+	{
+		return m_lCount.sum();
+	}
+
+	public long getSumNanos()
+	{
+		return m_lSumNanos.sum();
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the dQuantile-th value
+	 * recorded within the window, 0 if there is none
+	 */
+	public long getQuantileNanos(double dQuantile)
+	{
+		rotate(System.nanoTime());
+		long[] counts = new long[LatencyHistogram.BUCKETS];
+
+		for (int i = 0; i < m_slices.length(); i++)
+		{
+			m_slices.get(i).addTo(counts);
+		}
+
+		return LatencyHistogram.quantile(counts, dQuantile);
+	}
+}
+
+/**
+ * The metrics registry behind /metrics. Histograms, counters and gauges
+ * are registered once by name and labels and written out in the
+ * Prometheus text exposition format. Callers keep the objects they get
+ * back so recording never goes through the registry.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class MetricsUtil
+{
+	public static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+	/** Series sorted by name then labels, so the series of a metric are written together */
+	protected static Map<String, Object> series = new ConcurrentSkipListMap<String, Object>();
+	protected static Map<String, String> types = new ConcurrentSkipListMap<String, String>();
+	protected static Map<String, String> helps = new ConcurrentSkipListMap<String, String>();
+
+	/**
+	 * @return the latency histogram of strName{strLabels}, created on first use
+	 */
+	public static WindowedHistogram histogram(String strName, String strLabels, String strHelp)
+	{
+		return (WindowedHistogram) register(strName, strLabels, strHelp, "summary", new WindowedHistogram());
+	}
+
+	public static LongAdder counter(String strName, String strLabels, String strHelp)
+	{
+		return (LongAdder) register(strName, strLabels, strHelp, "counter", new LongAdder());
+	}
+
+	public static void gauge(String strName, String strLabels, String strHelp, LongSupplier supplier)
+	{
+		series.put(key(strName, strLabels), supplier);
+		types.put(strName, "gauge");
+		helps.put(strName, strHelp);
+	}
+
+	protected static synchronized Object register(String strName, String strLabels, String strHelp, String strType, Object metric)
+	{
+		String strKey = key(strName, strLabels);
+		Object existing = series.get(strKey);
+
+		if (existing != null)
+		{
+			return existing;
+		}
+
+		series.put(strKey, metric);
+		types.put(strName, strType);
+		helps.put(strName, strHelp);
+		return metric;
+	}
+
+	/**
+	 * The space sorts before any character of a name, so the series of
+	 * one metric stay next to each other.
+	 */
+	protected static String key(String strName, String strLabels)
+	{
+		return strName + " " + (strLabels == null ? "" : strLabels);
+	}
+
+	/**
+	 * @return every registered series in the Prometheus text format, latencies in seconds
+	 */
+	public static String toPrometheus()
+	{
+		StringBuilder sb = new StringBuilder(4096);
+		String strLastName = null;
+
+		for (Map.Entry<String, Object> e : series.entrySet())
+		{
+			int iSpace = e.getKey().indexOf(' ');
+			String strName = e.getKey().substring(0, iSpace);
+			String strLabels = e.getKey().substring(iSpace + 1);
+
+			if (!strName.equals(strLastName))
+			{
+				sb.append("# HELP ").append(strName).append(' ').append(helps.get(strName)).append('\n');
+				sb.append("# TYPE ").append(strName).append(' ').append(types.get(strName)).append('\n');
+				strLastName = strName;
+			}
+
+			Object metric = e.getValue();
+
+			if (metric instanceof WindowedHistogram)
+			{
+				WindowedHistogram h = (WindowedHistogram) metric;
+				String strSep = strLabels.isEmpty() ? "" : ",";
+
+				for (double dQuantile : QUANTILES)
+				{
+					sb.append(strName).append('{').append(strLabels).append(strSep).append("quantile=\"").append(dQuantile).append("\"} ");
+					sb.append(h.getQuantileNanos(dQuantile) / 1e9).append('\n');
+				}
+
+				sb.append(strName).append("_sum").append(braces(strLabels)).append(' ').append(h.getSumNanos() / 1e9).append('\n');
+				sb.append(strName).append("_count").append(braces(strLabels)).append(' ').append(h.getCount()).append('\n');
+			}
+			else if (metric instanceof LongAdder)
+			{
+				sb.append(strName).append(braces(strLabels)).append(' ').append(((LongAdder) metric).sum()).append('\n');
+			}
+			else
+			{
+				sb.append(strName).append(braces(strLabels)).append(' ').append(((LongSupplier) metric).getAsLong()).append('\n');
+			}
+		}
+
+		return sb.toString();
+	}
+
+	protected static String braces(String strLabels)
+	{
+		return strLabels.isEmpty() ? "" : "{" + strLabels + "}";
+	}
+}
@@ -0,0 +1,563 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates load against the Java API or the HTTP endpoints. Users are
+ * numbered from FIRST_USER, populating gives each of them m_iConversations
+ * conversations with random peers, and a run mixes folder reads with
+ * sends for m_iSeconds seconds.
+ *
+ * Thread lengths are geometric with a mean of m_dThreadLength messages:
+ * a send starts a new conversation with probability 1 / m_dThreadLength
+ * and replies to a recent one otherwise.
+ *
+ * With a rate of 0 the workers are closed-loop, each sends its next
+ * request when the previous one returns. With a rate the arrivals are
+ * fixed in advance and every latency is measured from the time its
+ * request should have started, so a stalled server is charged for the
+ * requests that queued up behind it instead of hiding them.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class LoadGenerator
+{
+	/** The first user id, the next ones follow it */
+	public static final int FIRST_USER = 1501571;
+
+	/** Conversations in a folder page read */
+	public static final int PAGE = 20;
+
+	/** Recent conversations replies are picked from */
+	protected static final int RECENT = 4096;
+
+	/** Number of users, -Dpostoffice.load.users */
+	public static final Integer USERS = Integer.getInteger("postoffice.load.users", 100);
+
+	/** Conversations each user starts when populating, -Dpostoffice.load.conversations */
+	public static final Integer CONVERSATIONS = Integer.getInteger("postoffice.load.conversations", 20);
+
+	/** Mean number of messages in a conversation, -Dpostoffice.load.threadLength */
+	public static final Double THREAD_LENGTH = Double.valueOf(System.getProperty("postoffice.load.threadLength", "3"));
+
+	/** Share of the requests that are folder reads, the rest are sends, -Dpostoffice.load.readRatio */
+	public static final Double READ_RATIO = Double.valueOf(System.getProperty("postoffice.load.readRatio", "0.9"));
+
+	/** Requests per second, 0 for closed-loop workers, -Dpostoffice.load.rate */
+	public static final Integer RATE = Integer.getInteger("postoffice.load.rate", 0);
+
+	/** Concurrent workers, -Dpostoffice.load.workers */
+	public static final Integer WORKERS = Integer.getInteger("postoffice.load.workers", 16);
+
+	/** Length of a run, -Dpostoffice.load.seconds */
+	public static final Integer SECONDS = Integer.getInteger("postoffice.load.seconds", 30);
+
+	/** "api" or the base URL of a server, -Dpostoffice.load.target */
+	public static final String TARGET = System.getProperty("postoffice.load.target", "api");
+
+	protected Target m_target;
+	protected int m_iUsers = USERS;
+	protected int m_iConversations = CONVERSATIONS;
+	protected double m_dThreadLength = THREAD_LENGTH;
+	protected double m_dReadRatio = READ_RATIO;
+	protected int m_iRate = RATE;
+	protected int m_iWorkers = WORKERS;
+	protected int m_iSeconds = SECONDS;
+
+	/** Participants and thread id of recently started conversations */
+	protected AtomicReferenceArray<String[]> m_recent = new AtomicReferenceArray<String[]>(RECENT);
+	protected AtomicLong m_lStarted = new AtomicLong();
+
+	protected LatencyHistogram m_reads = new LatencyHistogram();
+	protected LatencyHistogram m_sends = new LatencyHistogram();
+	protected LongAdder m_errors = new LongAdder();
+	protected long m_lElapsedNanos;
+	protected boolean m_bOpenLoop;
+
+	/**
+	 * What the load is sent to.
+	 */
+	interface Target
+	{
+		/** Reads the first page of the inbox of strUser */
+		void read(String strUser) throws IOException;
+
+		/** Sends a message from strFrom to strTo in the thread strId, starting it if it is new */
+		void send(String strFrom, String strTo, String strSubject, String strBody, String strId) throws IOException;
+	}
+
+	/**
+	 * Calls the utility classes directly, on the store set in StoreUtil.
+	 */
+	static class ApiTarget implements Target
+	{
+		@Override
+		public void read(String strUser)
+		{
+			FolderUtil.getSummaries(new Folder(strUser, "inbox"), null, PAGE);
+		}
+
+		@Override
+		public void send(String strFrom, String strTo, String strSubject, String strBody, String strId)
+		{
+			PostofficeUtil.sendMessage(strFrom, strTo, strSubject, strBody, strId);
+		}
+	}
+
+	/**
+	 * Calls /folder and /reply on a server, over keep-alive connections.
+	 */
+	static class HttpTarget implements Target
+	{
+		protected String m_strBase;
+
+		public HttpTarget(String strBase)
+		{
+			m_strBase = strBase.endsWith("/") ? strBase.substring(0, strBase.length() - 1) : strBase;
+		}
+
+		@Override
+		public void read(String strUser) throws IOException
+		{
+			get("/folder?folder=inbox&owner=" + strUser + "&count=" + PAGE);
+		}
+
+		@Override
+		public void send(String strFrom, String strTo, String strSubject, String strBody, String strId) throws IOException
+		{
+			get("/reply?from=" + strFrom + "&to=" + strTo + "&id=" + strId + "&subject=" + URLEncoder.encode(strSubject, "UTF-8") + "&body=" + URLEncoder.encode(strBody, "UTF-8"));
+		}
+
+		protected void get(String strUri) throws IOException
+		{
+			HttpURLConnection conn = (HttpURLConnection) new URL(m_strBase + strUri).openConnection();
+			int iStatus = conn.getResponseCode();
+			InputStream in = iStatus < 400 ? conn.getInputStream() : conn.getErrorStream();
+
+			// the connection is only reused once its response is read
+			if (in != null)
+			{
+				byte[] buf = new byte[8192];
+
+				while (in.read(buf) >= 0)
+				{
+				}
+
+				in.close();
+			}
+
+			if (iStatus != 200)
+			{
+				throw new IOException(strUri + " answered " + iStatus);
+			}
+		}
+	}
+
+	public LoadGenerator(Target target)
+	{
+		m_target = target;
+	}
+
+	/**
+	 * @return a generator for TARGET configured from the system properties
+	 */
+	public static LoadGenerator fromProperties()
+	{
+		return new LoadGenerator(TARGET.equals("api") ? new ApiTarget() : new HttpTarget(TARGET));
+	}
+
+	public void setUsers(int iUsers)
+	{
+		m_iUsers = iUsers;
+	}
+
+	public void setConversations(int iConversations)
+	{
+		m_iConversations = iConversations;
+	}
+
+	public void setThreadLength(double dThreadLength)
+	{
+		m_dThreadLength = dThreadLength;
+	}
+
+	public void setReadRatio(double dReadRatio)
+	{
+		m_dReadRatio = dReadRatio;
+	}
+
+	public void setRate(int iRate)
+	{
+		m_iRate = iRate;
+	}
+
+	public void setWorkers(int iWorkers)
+	{
+		m_iWorkers = iWorkers;
+	}
+
+	public void setSeconds(int iSeconds)
+	{
+		m_iSeconds = iSeconds;
+	}
+
+	public static String user(int i)
+	{
+		return Integer.toString(FIRST_USER + i);
+	}
+
+	/**
+	 * Gives every user m_iConversations conversations with random peers,
+	 * the users are spread over the workers.
+	 */
+	public void populate() throws InterruptedException
+	{
+		reset();
+		m_bOpenLoop = false;
+		ExecutorService workers = Executors.newFixedThreadPool(m_iWorkers);
+		long lStart = System.nanoTime();
+
+		for (int i = 0; i < m_iUsers; i++)
+		{
+			final String strUser = user(i);
+
+			workers.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int c = 0; c < m_iConversations; c++)
+					{
+						String[] thread = startThread(strUser);
+						int iLength = threadLength();
+
+						for (int m = 0; m < iLength; m++)
+						{
+							timedSend(thread[m % 2], thread[(m + 1) % 2], thread[2], System.nanoTime());
+						}
+					}
+				}
+			});
+		}
+
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		m_lElapsedNanos = System.nanoTime() - lStart;
+	}
+
+	/**
+	 * Runs the read and send mix for m_iSeconds seconds, replying to the
+	 * conversations populate started too.
+	 */
+	public void run() throws InterruptedException
+	{
+		reset();
+		m_bOpenLoop = m_iRate > 0;
+		final long lStart = System.nanoTime();
+		final long lEnd = lStart + TimeUnit.SECONDS.toNanos(m_iSeconds);
+		final AtomicLong lArrivals = new AtomicLong();
+		List<Thread> listWorkers = new ArrayList<Thread>(m_iWorkers);
+
+		for (int i = 0; i < m_iWorkers; i++)
+		{
+			Thread t = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (m_bOpenLoop)
+					{
+						openLoop(lStart, lEnd, lArrivals);
+					}
+					else
+					{
+						closedLoop(lEnd);
+					}
+				}
+			}, "load-" + i);
+
+			t.start();
+			listWorkers.add(t);
+		}
+
+		for (Thread t : listWorkers)
+		{
+			t.join();
+		}
+
+		m_lElapsedNanos = System.nanoTime() - lStart;
+	}
+
+	protected void reset()
+	{
+		m_reads = new LatencyHistogram();
+		m_sends = new LatencyHistogram();
+		m_errors = new LongAdder();
+	}
+
+	protected void closedLoop(long lEnd)
+	{
+		while (System.nanoTime() < lEnd)
+		{
+			request(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Takes the next arrival, waits for its time unless it is already
+	 * late and sends it. A late arrival is sent at once and keeps its
+	 * intended start, so its latency includes the time it waited.
+	 */
+	protected void openLoop(long lStart, long lEnd, AtomicLong lArrivals)
+	{
+		double dIntervalNanos = 1e9 / m_iRate;
+
+		while (true)
+		{
+			long lIntended = lStart + (long) (lArrivals.getAndIncrement() * dIntervalNanos);
+
+			if (lIntended >= lEnd)
+			{
+				return;
+			}
+
+			long lWait;
+
+			while ((lWait = lIntended - System.nanoTime()) > 0)
+			{
+				LockSupport.parkNanos(lWait);
+			}
+
+			request(lIntended);
+		}
+	}
+
+	protected void request(long lIntended)
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		if (random.nextDouble() < m_dReadRatio)
+		{
+			timedRead(user(random.nextInt(m_iUsers)), lIntended);
+			return;
+		}
+
+		String[] thread = random.nextDouble() < 1 / m_dThreadLength ? null : recentThread();
+
+		if (thread == null)
+		{
+			thread = startThread(user(random.nextInt(m_iUsers)));
+		}
+
+		// either participant answers
+		int iFrom = random.nextInt(2);
+		timedSend(thread[iFrom], thread[1 - iFrom], thread[2], lIntended);
+	}
+
+	protected void timedRead(String strUser, long lIntended)
+	{
+		try
+		{
+			m_target.read(strUser);
+		}
+		catch (Exception e)
+		{
+			m_errors.increment();
+		}
+
+		m_reads.record(System.nanoTime() - lIntended);
+	}
+
+	protected void timedSend(String strFrom, String strTo, String strId, long lIntended)
+	{
+		try
+		{
+			m_target.send(strFrom, strTo, "Postoffice project! " + strId, "Hi " + strTo + ", I just wanted to tell you about Postoffice, a messaging system using Cassandra! (= Best, " + strFrom, strId);
+		}
+		catch (Exception e)
+		{
+			m_errors.increment();
+		}
+
+		m_sends.record(System.nanoTime() - lIntended);
+	}
+
+	/**
+	 * @return the participants and id of a new thread between strUser and a random peer
+	 */
+	protected String[] startThread(String strUser)
+	{
+		String strPeer = strUser;
+
+		while (m_iUsers > 1 && strPeer.equals(strUser))
+		{
+			strPeer = user(ThreadLocalRandom.current().nextInt(m_iUsers));
+		}
+
+		String[] thread = { strUser, strPeer, ConversationUtil.genId() };
+		m_recent.set((int) (m_lStarted.getAndIncrement() % RECENT), thread);
+		return thread;
+	}
+
+	/**
+	 * @return a recently started thread, null if there is none yet
+	 */
+	protected String[] recentThread()
+	{
+		long lStarted = m_lStarted.get();
+
+		if (lStarted == 0)
+		{
+			return null;
+		}
+
+		return m_recent.get(ThreadLocalRandom.current().nextInt((int) Math.min(lStarted, RECENT)));
+	}
+
+	/**
+	 * @return a geometric number of messages with a mean of m_dThreadLength
+	 */
+	protected int threadLength()
+	{
+		if (m_dThreadLength <= 1)
+		{
+			return 1;
+		}
+
+		double dU = 1 - ThreadLocalRandom.current().nextDouble();
+		return 1 + (int) (Math.log(dU) / Math.log(1 - 1 / m_dThreadLength));
+	}
+
+	public LatencyHistogram getReads()
+	{
+		return m_reads;
+	}
+
+	public LatencyHistogram getSends()
+	{
+		return m_sends;
+	}
+
+	public long getErrors()
+	{
+		return m_errors.sum();
+	}
+
+	/**
+	 * @return throughput and latency percentiles of the last populate or run
+	 */
+	public String report()
+	{
+		StringBuilder sb = new StringBuilder();
+		double dSeconds = m_lElapsedNanos / 1e9;
+
+		sb.append(String.format("%.1f s, %s, %d workers, %d errors%n", dSeconds, m_bOpenLoop ? m_iRate + " req/s offered" : "closed loop", m_iWorkers, getErrors()));
+		report(sb, "reads", m_reads, dSeconds);
+		report(sb, "sends", m_sends, dSeconds);
+		return sb.toString();
+	}
+
+	protected static void report(StringBuilder sb, String strName, LatencyHistogram h, double dSeconds)
+	{
+		sb.append(String.format("%-6s %9d ops %10.1f ops/s  p50 %8.3f  p90 %8.3f  p99 %8.3f  p99.9 %8.3f  max %8.3f ms%n",
+		  strName, h.getCount(), h.getCount() / dSeconds,
+		  h.getQuantileNanos(0.5) / 1e6, h.getQuantileNanos(0.9) / 1e6, h.getQuantileNanos(0.99) / 1e6,
+		  h.getQuantileNanos(0.999) / 1e6, h.getQuantileNanos(1) / 1e6));
+	}
+
+	/**
+	 * Populates and runs the configured load. --memory sends it to an
+	 * in-process store, --populate fills the folders first and --no-run
+	 * stops after that.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean bMemory = false;
+		boolean bPopulate = false;
+		boolean bRun = true;
+
+		for (String strArg : args)
+		{
+			if (strArg.equals("--memory"))
+			{
+				bMemory = true;
+			}
+			else if (strArg.equals("--populate"))
+			{
+				bPopulate = true;
+			}
+			else if (strArg.equals("--no-run"))
+			{
+				bRun = false;
+			}
+		}
+
+		if (TARGET.equals("api"))
+		{
+			if (bMemory)
+			{
+				StoreUtil.setStore(new MemoryMessageStore());
+			}
+			else
+			{
+				PelopsUtil.connect();
+			}
+		}
+
+		LoadGenerator load = fromProperties();
+
+		if (bPopulate)
+		{
+			load.populate();
+			System.out.print("populate: " + load.report());
+		}
+
+		if (bRun)
+		{
+			load.run();
+			System.out.print("run: " + load.report());
+		}
+
+		if (TARGET.equals("api") && !bMemory)
+		{
+			PelopsUtil.disconnect();
+		}
+
+		System.exit(0);
+	}
+}
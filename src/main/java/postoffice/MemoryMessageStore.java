@@ -0,0 +1,273 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * In-process MessageStore. Every row is a ConcurrentSkipListMap ordered
+ * by TimeUUID so slices behave like they do against Cassandra, without
+ * a network hop. Useful for load testing the HTTP and serialization
+ * layers and for small single node deployments.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class MemoryMessageStore implements MessageStore
+{
+	protected ConcurrentMap<String, ConcurrentMap<Bytes, ConcurrentSkipListMap<UUID, StoreColumn>>> m_mapFamilies = new ConcurrentHashMap<String, ConcurrentMap<Bytes, ConcurrentSkipListMap<UUID, StoreColumn>>>();
+	protected ConcurrentMap<String, ConcurrentMap<Bytes, ConcurrentMap<UUID, AtomicLong>>> m_mapCounters = new ConcurrentHashMap<String, ConcurrentMap<Bytes, ConcurrentMap<UUID, AtomicLong>>>();
+
+	@Override
+	public Batch createBatch()
+	{
+		return new MemoryBatch();
+	}
+
+	@Override
+	public List<StoreColumn> getSlice(String strFamily, Bytes rowKey, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		List<StoreColumn> listRet = new ArrayList<StoreColumn>();
+		ConcurrentSkipListMap<UUID, StoreColumn> row = getRow(strFamily, rowKey, false);
+
+		if (row == null)
+		{
+			return listRet;
+		}
+
+		NavigableMap<UUID, StoreColumn> slice = bReversed ? row.descendingMap() : row;
+
+		if (start != null && finish != null)
+		{
+			slice = slice.subMap(start, true, finish, true);
+		}
+		else if (start != null)
+		{
+			slice = slice.tailMap(start, true);
+		}
+		else if (finish != null)
+		{
+			slice = slice.headMap(finish, true);
+		}
+
+		for (StoreColumn col : slice.values())
+		{
+			if (listRet.size() >= iCount)
+			{
+				break;
+			}
+
+			listRet.add(col);
+		}
+
+		return listRet;
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, List<StoreColumn>> getSlices(String strFamily, List<Bytes> listRowKeys, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		LinkedHashMap<Bytes, List<StoreColumn>> mapRet = new LinkedHashMap<Bytes, List<StoreColumn>>();
+
+		for (Bytes rowKey : listRowKeys)
+		{
+			mapRet.put(rowKey, getSlice(strFamily, rowKey, start, finish, bReversed, iCount));
+		}
+
+		return mapRet;
+	}
+
+	@Override
+	public List<StoreColumn> getColumns(String strFamily, Bytes rowKey, Collection<UUID> names)
+	{
+		List<StoreColumn> listRet = new ArrayList<StoreColumn>(names.size());
+		ConcurrentSkipListMap<UUID, StoreColumn> row = getRow(strFamily, rowKey, false);
+
+		if (row == null)
+		{
+			return listRet;
+		}
+
+		for (UUID name : names)
+		{
+			StoreColumn col = row.get(name);
+
+			if (col != null)
+			{
+				listRet.add(col);
+			}
+		}
+
+		// in column order, like a slice
+		listRet.sort((c1, c2) -> TimeUuidComparator.INSTANCE.compare(c1.getName(), c2.getName()));
+		return listRet;
+	}
+
+	@Override
+	public Map<UUID, Long> getCounters(String strFamily, Bytes rowKey)
+	{
+		Map<UUID, Long> mapRet = new HashMap<UUID, Long>();
+		ConcurrentMap<Bytes, ConcurrentMap<UUID, AtomicLong>> family = m_mapCounters.get(strFamily);
+		ConcurrentMap<UUID, AtomicLong> row = family == null ? null : family.get(rowKey);
+
+		if (row != null)
+		{
+			for (Entry<UUID, AtomicLong> e : row.entrySet())
+			{
+				mapRet.put(e.getKey(), e.getValue().get());
+			}
+		}
+
+		return mapRet;
+	}
+
+	@Override
+	public void shutdown()
+	{
+		m_mapFamilies.clear();
+		m_mapCounters.clear();
+	}
+
+	protected AtomicLong getCounter(String strFamily, Bytes rowKey, UUID name)
+	{
+		return m_mapCounters.computeIfAbsent(strFamily, k -> new ConcurrentHashMap<Bytes, ConcurrentMap<UUID, AtomicLong>>())
+			.computeIfAbsent(rowKey, k -> new ConcurrentHashMap<UUID, AtomicLong>())
+			.computeIfAbsent(name, k -> new AtomicLong());
+	}
+
+	protected ConcurrentSkipListMap<UUID, StoreColumn> getRow(String strFamily, Bytes rowKey, boolean bCreate)
+	{
+		ConcurrentMap<Bytes, ConcurrentSkipListMap<UUID, StoreColumn>> family = m_mapFamilies.get(strFamily);
+
+		if (family == null)
+		{
+			if (!bCreate)
+			{
+				return null;
+			}
+
+			m_mapFamilies.putIfAbsent(strFamily, new ConcurrentHashMap<Bytes, ConcurrentSkipListMap<UUID, StoreColumn>>());
+			family = m_mapFamilies.get(strFamily);
+		}
+
+		ConcurrentSkipListMap<UUID, StoreColumn> row = family.get(rowKey);
+
+		if (row == null && bCreate)
+		{
+			family.putIfAbsent(rowKey, new ConcurrentSkipListMap<UUID, StoreColumn>(TimeUuidComparator.INSTANCE));
+			row = family.get(rowKey);
+		}
+
+		return row;
+	}
+
+	/**
+	 * A single queued write (column set), delete (column null) or counter
+	 * increment (delta set).
+	 */
+	static class Mutation
+	{
+		protected String m_strFamily;
+		protected Bytes m_rowKey;
+		protected UUID m_name;
+		protected StoreColumn m_column;
+		protected Long m_lDelta;
+
+		public Mutation(String strFamily, Bytes rowKey, UUID name, StoreColumn column)
+		{
+			m_strFamily = strFamily;
+			m_rowKey = rowKey;
+			m_name = name;
+			m_column = column;
+		}
+	}
+
+	/**
+	 * Queues writes and deletes and applies them on execute().
+	 */
+	class MemoryBatch implements Batch
+	{
+		protected List<Mutation> m_listMutations = new ArrayList<Mutation>();
+
+		@Override
+		public Batch writeColumn(String strFamily, Bytes rowKey, UUID name, byte[] value)
+		{
+			m_listMutations.add(new Mutation(strFamily, rowKey, name, new StoreColumn(name, value, System.currentTimeMillis() * 1000)));
+			return this;
+		}
+
+		@Override
+		public Batch deleteColumn(String strFamily, Bytes rowKey, UUID name)
+		{
+			m_listMutations.add(new Mutation(strFamily, rowKey, name, null));
+			return this;
+		}
+
+		@Override
+		public Batch incrementCounter(String strFamily, Bytes rowKey, UUID name, long lDelta)
+		{
+			Mutation m = new Mutation(strFamily, rowKey, name, null);
+			m.m_lDelta = lDelta;
+			m_listMutations.add(m);
+			return this;
+		}
+
+		@Override
+		public void execute()
+		{
+			for (Mutation m : m_listMutations)
+			{
+				if (m.m_lDelta != null)
+				{
+					getCounter(m.m_strFamily, m.m_rowKey, m.m_name).addAndGet(m.m_lDelta);
+				}
+				else if (m.m_column != null)
+				{
+					getRow(m.m_strFamily, m.m_rowKey, true).put(m.m_name, m.m_column);
+				}
+				else
+				{
+					ConcurrentSkipListMap<UUID, StoreColumn> row = getRow(m.m_strFamily, m.m_rowKey, false);
+
+					if (row != null)
+					{
+						row.remove(m.m_name);
+					}
+				}
+			}
+
+			m_listMutations.clear();
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Compact binary encoding of the message columns in the conversations
+ * column family.
+ *
+ * Layout (version 1):
+ *
+ *   version  : 1 byte
+ *   flags    : 1 byte, FLAG_DEFLATED if the body is compressed
+ *   id       : 16 bytes, the message TimeUUID
+ *   sender   : varint length + 1 (0 for null), UTF-8 bytes
+ *   subject  : varint length + 1 (0 for null), UTF-8 bytes
+ *   body     : varint length + 1 (0 for null), UTF-8 or deflated bytes
+ *   raw size : varint, only if the body is deflated
+ *
+ * Columns written before the codec existed are Gson JSON and always
+ * start with '{', which is never a valid version byte, so decode()
+ * reads both.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class MessageCodec
+{
+	public static final byte VERSION_1 = 1;
+	public static final byte FLAG_DEFLATED = 1;
+
+	/** Bodies at least this long are deflated, -Dpostoffice.codec.compressThreshold */
+	public static final int COMPRESS_THRESHOLD = Integer.getInteger("postoffice.codec.compressThreshold", 1024);
+
+	/** Keep writing JSON while older nodes still read the column family, -Dpostoffice.codec.json */
+	public static final boolean WRITE_JSON = Boolean.getBoolean("postoffice.codec.json");
+
+	protected static ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>()
+	{
+		@Override
+		protected Deflater initialValue()
+		{
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	protected static ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>()
+	{
+		@Override
+		protected Inflater initialValue()
+		{
+			return new Inflater();
+		}
+	};
+
+	public static byte[] encode(Message m)
+	{
+		if (WRITE_JSON)
+		{
+			return StoreUtil.toBytes(MessageUtil.toJson(m));
+		}
+
+		byte[] sender = utf8(m.getSender());
+		byte[] subject = utf8(m.getSubject());
+		byte[] body = utf8(m.getBody());
+		byte flags = 0;
+		int iRawSize = 0;
+
+		if (body != null && body.length >= COMPRESS_THRESHOLD)
+		{
+			byte[] deflated = deflate(body);
+
+			// incompressible bodies are stored as they are
+			if (deflated.length < body.length)
+			{
+				iRawSize = body.length;
+				body = deflated;
+				flags |= FLAG_DEFLATED;
+			}
+		}
+
+		int iSize = 2 + 16 + sizeOf(sender) + sizeOf(subject) + sizeOf(body);
+
+		if ((flags & FLAG_DEFLATED) != 0)
+		{
+			iSize += varintSize(iRawSize);
+		}
+
+		UUID id = m.getUuid();
+		ByteBuffer bb = ByteBuffer.allocate(iSize);
+		bb.put(VERSION_1);
+		bb.put(flags);
+		bb.putLong(id.getMostSignificantBits());
+		bb.putLong(id.getLeastSignificantBits());
+		put(bb, sender);
+		put(bb, subject);
+		put(bb, body);
+
+		if ((flags & FLAG_DEFLATED) != 0)
+		{
+			putVarint(bb, iRawSize);
+		}
+
+		return bb.array();
+	}
+
+	public static Message decode(byte[] value)
+	{
+		if (value.length > 0 && value[0] == '{')
+		{
+			return MessageUtil.fromJson(new String(value, CharsetUtil.UTF_8));
+		}
+
+		ByteBuffer bb = ByteBuffer.wrap(value);
+		byte version = bb.get();
+
+		if (version != VERSION_1)
+		{
+			throw new IllegalArgumentException("Unknown message encoding version " + version);
+		}
+
+		byte flags = bb.get();
+		UUID id = new UUID(bb.getLong(), bb.getLong());
+		String strSender = string(get(bb));
+		String strSubject = string(get(bb));
+		byte[] body = get(bb);
+
+		if ((flags & FLAG_DEFLATED) != 0)
+		{
+			body = inflate(body, getVarint(bb));
+		}
+
+		return new Message(id, strSender, strSubject, string(body));
+	}
+
+	protected static byte[] utf8(String str)
+	{
+		return str == null ? null : str.getBytes(CharsetUtil.UTF_8);
+	}
+
+	protected static String string(byte[] bytes)
+	{
+		return bytes == null ? null : new String(bytes, CharsetUtil.UTF_8);
+	}
+
+	protected static int sizeOf(byte[] bytes)
+	{
+		return bytes == null ? 1 : varintSize(bytes.length + 1) + bytes.length;
+	}
+
+	protected static void put(ByteBuffer bb, byte[] bytes)
+	{
+		if (bytes == null)
+		{
+			putVarint(bb, 0);
+			return;
+		}
+
+		putVarint(bb, bytes.length + 1);
+		bb.put(bytes);
+	}
+
+	protected static byte[] get(ByteBuffer bb)
+	{
+		int iLen = getVarint(bb);
+
+		if (iLen == 0)
+		{
+			return null;
+		}
+
+		byte[] bytes = new byte[iLen - 1];
+		bb.get(bytes);
+		return bytes;
+	}
+
+	protected static int varintSize(int i)
+	{
+		int iSize = 1;
+
+		while ((i & ~0x7F) != 0)
+		{
+			i >>>= 7;
+			++iSize;
+		}
+
+		return iSize;
+	}
+
+	protected static void putVarint(ByteBuffer bb, int i)
+	{
+		while ((i & ~0x7F) != 0)
+		{
+			bb.put((byte) ((i & 0x7F) | 0x80));
+			i >>>= 7;
+		}
+
+		bb.put((byte) i);
+	}
+
+	protected static int getVarint(ByteBuffer bb)
+	{
+		int i = 0;
+		int iShift = 0;
+		byte b;
+
+		do
+		{
+			b = bb.get();
+			i |= (b & 0x7F) << iShift;
+			iShift += 7;
+		}
+		while ((b & 0x80) != 0);
+
+		return i;
+	}
+
+	protected static byte[] deflate(byte[] raw)
+	{
+		Deflater d = deflater.get();
+		d.reset();
+		d.setInput(raw);
+		d.finish();
+
+		byte[] out = new byte[raw.length];
+		int iLen = 0;
+
+		while (!d.finished() && iLen < out.length)
+		{
+			iLen += d.deflate(out, iLen, out.length - iLen);
+		}
+
+		// did not fit in the raw size, not worth compressing
+		if (!d.finished())
+		{
+			return raw;
+		}
+
+		return Arrays.copyOf(out, iLen);
+	}
+
+	protected static byte[] inflate(byte[] deflated, int iRawSize)
+	{
+		Inflater i = inflater.get();
+		i.reset();
+		i.setInput(deflated);
+
+		byte[] out = new byte[iRawSize];
+
+		try
+		{
+			int iLen = 0;
+
+			while (iLen < iRawSize && !i.finished())
+			{
+				int iRead = i.inflate(out, iLen, iRawSize - iLen);
+
+				if (iRead == 0 && (i.needsInput() || i.needsDictionary()))
+				{
+					throw new DataFormatException("truncated body");
+				}
+
+				iLen += iRead;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IllegalArgumentException("Corrupt message body", e);
+		}
+
+		return out;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.util.CharsetUtil;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * The storage SPI used by FolderUtil, ConversationUtil and PostofficeUtil.
+ *
+ * A store is modelled after a Cassandra keyspace: column families hold
+ * rows, and rows hold columns sorted by their TimeUUID names. Slices
+ * are inclusive on both ends, a null start or finish means "from the
+ * beginning" or "to the end" of the row.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+interface MessageStore
+{
+	/** Slice count meaning "every column in the row". */
+	public static final int ALL = Integer.MAX_VALUE;
+
+	public Batch createBatch();
+
+	public List<StoreColumn> getSlice(String strFamily, Bytes rowKey, UUID start, UUID finish, boolean bReversed, int iCount);
+
+	public LinkedHashMap<Bytes, List<StoreColumn>> getSlices(String strFamily, List<Bytes> listRowKeys, UUID start, UUID finish, boolean bReversed, int iCount);
+
+	/**
+	 * @return the columns of a row with the given names in column order, missing ones are skipped
+	 */
+	public List<StoreColumn> getColumns(String strFamily, Bytes rowKey, Collection<UUID> names);
+
+	/**
+	 * @return the counters of a row by name, empty if it has none
+	 */
+	public Map<UUID, Long> getCounters(String strFamily, Bytes rowKey);
+
+	/**
+	 * @return the counters of several rows by row key, rows without any map to an empty map
+	 */
+	public default LinkedHashMap<Bytes, Map<UUID, Long>> getCounters(String strFamily, List<Bytes> listRowKeys)
+	{
+		LinkedHashMap<Bytes, Map<UUID, Long>> mapRet = new LinkedHashMap<Bytes, Map<UUID, Long>>();
+
+		for (Bytes rowKey : listRowKeys)
+		{
+			mapRet.put(rowKey, getCounters(strFamily, rowKey));
+		}
+
+		return mapRet;
+	}
+
+	public void shutdown();
+
+	/**
+	 * A set of writes and deletes that are sent to the store together.
+	 */
+	public interface Batch
+	{
+		public Batch writeColumn(String strFamily, Bytes rowKey, UUID name, byte[] value);
+
+		public Batch deleteColumn(String strFamily, Bytes rowKey, UUID name);
+
+		/**
+		 * Adds lDelta to a counter, counters live in their own column families.
+		 */
+		public Batch incrementCounter(String strFamily, Bytes rowKey, UUID name, long lDelta);
+
+		public void execute();
+
+		/**
+		 * Executes the batch without holding the calling thread, stores that
+		 * group writes complete the future once the group is written.
+		 */
+		public default CompletableFuture<Void> executeAsync()
+		{
+			return CompletableFuture.runAsync(this::execute, StoreUtil.getExecutor());
+		}
+	}
+}
+
+/**
+ * A column as returned by a MessageStore slice.
+ */
+class StoreColumn
+{
+	protected UUID m_name;
+	protected byte[] m_value;
+	protected long m_lTimestamp;
+
+	public StoreColumn(UUID name, byte[] value, long lTimestamp)
+	{
+		m_name = name;
+		m_value = value;
+		m_lTimestamp = lTimestamp;
+	}
+
+	/**
+	 * @return the column name
+	 */
+	public UUID getName()
+	{
+		return m_name;
+	}
+
+	/**
+	 * @return the raw column value
+	 */
+	public byte[] getValue()
+	{
+		return m_value;
+	}
+
+	/**
+	 * @return the column value decoded as UTF-8
+	 */
+	public String getStringValue()
+	{
+		return new String(m_value, CharsetUtil.UTF_8);
+	}
+
+	/**
+	 * @return the write time stamp in microseconds
+	 */
+	public long getTimestamp()
+	{
+		return m_lTimestamp;
+	}
+}
+
+/**
+ * Orders UUIDs the way Cassandra's TimeUUIDType does: by the time
+ * component first, then by the remaining bits. Non time based UUIDs
+ * fall back to their natural order.
+ */
+class TimeUuidComparator implements Comparator<UUID>
+{
+	public static final TimeUuidComparator INSTANCE = new TimeUuidComparator();
+
+	@Override
+	public int compare(UUID u1, UUID u2)
+	{
+		if (u1.version() == 1 && u2.version() == 1)
+		{
+			long l1 = u1.timestamp();
+			long l2 = u2.timestamp();
+
+			if (l1 != l2)
+			{
+				return l1 < l2 ? -1 : 1;
+			}
+		}
+
+		return u1.compareTo(u2);
+	}
+}
+
+class StoreUtil
+{
+	/** Threads running blocking store calls for async callers, -Dpostoffice.store.threads */
+	public static final Integer STORE_THREADS = Integer.getInteger("postoffice.store.threads", 32);
+
+	protected static MessageStore store;
+
+	public static void setStore(MessageStore s)
+	{
+		store = s;
+		
+		// pages read from the previous store
+		FolderUtil.cache.clear();
+		ConversationUtil.cache.clear();
+	}
+
+	public static MessageStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * The store threads, created when getExecutor is first called. The
+	 * class loader does it once, so getting them takes no lock.
+	 */
+	static class ExecutorHolder
+	{
+		static final ExecutorService executor = newExecutor();
+
+		protected static ExecutorService newExecutor()
+		{
+			final ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(STORE_THREADS, new ThreadFactory()
+			{
+				protected AtomicInteger m_iCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "store-" + m_iCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			MetricsUtil.gauge("postoffice_store_threads_busy", null, "Store threads running a call for an async caller.", () -> pool.getActiveCount());
+			MetricsUtil.gauge("postoffice_store_queued_calls", null, "Store calls waiting for a thread.", () -> pool.getQueue().size());
+			return pool;
+		}
+	}
+
+	/**
+	 * @return the executor the *Async utility calls run their store calls on
+	 */
+	public static ExecutorService getExecutor()
+	{
+		return ExecutorHolder.executor;
+	}
+
+	/**
+	 * Reads up to iCount columns that come strictly after the column named
+	 * after, or from the start of the row if it is null. Store slices are
+	 * inclusive so one extra column is asked for and the start dropped.
+	 */
+	public static List<StoreColumn> getSliceAfter(String strFamily, Bytes rowKey, UUID after, boolean bReversed, int iCount)
+	{
+		int iFetch = after == null ? iCount : iCount + 1;
+		List<StoreColumn> listCols = getStore().getSlice(strFamily, rowKey, after, null, bReversed, iFetch);
+
+		if (after != null && !listCols.isEmpty() && listCols.get(0).getName().equals(after))
+		{
+			return listCols.subList(1, listCols.size());
+		}
+
+		if (listCols.size() > iCount)
+		{
+			return listCols.subList(0, iCount);
+		}
+
+		return listCols;
+	}
+
+	public static byte[] toBytes(String str)
+	{
+		return str.getBytes(CharsetUtil.UTF_8);
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import com.google.gson.Gson;
+
+/**
+ * Tells a subscriber that a message was added to one of its folders.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class Notification
+{
+	protected String m_strConvId;
+	protected String m_strMessageId;
+	protected String m_strSender;
+	protected String m_strSubject;
+	protected String m_strSnippet;
+
+	public Notification(String strConvId, Message msg)
+	{
+		m_strConvId = strConvId;
+		m_strMessageId = msg.getId();
+		m_strSender = msg.getSender();
+		m_strSubject = msg.getSubject();
+		m_strSnippet = SummaryUtil.snippet(msg.getBody());
+	}
+
+	/**
+	 * @return the conversation the message was added to
+	 */
+	public String getConvId()
+	{
+		return m_strConvId;
+	}
+
+	/**
+	 * @return the id of the message, pass it back as since to resume
+	 */
+	public String getMessageId()
+	{
+		return m_strMessageId;
+	}
+}
+
+/**
+ * Long-poll subscriptions to folders. A subscriber is a future parked in
+ * a per folder queue, so idle subscribers hold no thread: the send path
+ * completes them once a message is stored and a HashedWheelTimer answers
+ * the ones nobody wrote to in time.
+ *
+ * Each watched folder remembers its newest notification. A subscriber
+ * that passes the id of the last message it saw is answered at once if
+ * something newer arrived in between, so nothing is missed across polls.
+ * Folders nobody watched for a while are forgotten.
+ *
+ * Subscriptions only see messages sent through this node.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class NotificationUtil
+{
+	protected static Gson gson = new Gson();
+
+	/** How long a subscriber waits before it is answered with a timeout, -Dpostoffice.subscribe.timeoutMs */
+	public static final Long TIMEOUT_MS = Long.getLong("postoffice.subscribe.timeoutMs", 30000);
+
+	protected static ConcurrentHashMap<FolderKey, Watch> watches = new ConcurrentHashMap<FolderKey, Watch>();
+	protected static HashedWheelTimer timer;
+
+	/**
+	 * The subscribers of a folder and its newest notification.
+	 */
+	static class Watch
+	{
+		protected Queue<CompletableFuture<Notification>> m_queueWaiters = new ConcurrentLinkedQueue<CompletableFuture<Notification>>();
+		protected volatile Notification m_latest;
+		protected volatile long m_lLastUsed = System.currentTimeMillis();
+	}
+
+	public static String toJson(Notification n)
+	{
+		return gson.toJson(n);
+	}
+
+	/**
+	 * @return a future completed with the next notification of f, or at
+	 * once with the newest one if it is newer than since, or with null
+	 * once lTimeoutMs pass without one
+	 */
+	public static CompletableFuture<Notification> subscribe(Folder f, UUID since, long lTimeoutMs)
+	{
+		final CompletableFuture<Notification> waiter = new CompletableFuture<Notification>();
+		Watch w;
+
+		while (true)
+		{
+			w = watches.computeIfAbsent(f.getKey(), k -> new Watch());
+			w.m_lLastUsed = System.currentTimeMillis();
+
+			Notification latest = w.m_latest;
+
+			if (since != null && latest != null && TimeUuidComparator.INSTANCE.compare(UUID.fromString(latest.getMessageId()), since) > 0)
+			{
+				return CompletableFuture.completedFuture(latest);
+			}
+
+			w.m_queueWaiters.add(waiter);
+
+			if (watches.get(f.getKey()) == w)
+			{
+				break;
+			}
+
+			// swept before the waiter was added, publish no longer finds w
+			if (!w.m_queueWaiters.remove(waiter))
+			{
+				return waiter;
+			}
+		}
+
+		final Watch watch = w;
+		final Timeout timeout = getTimer().newTimeout(new TimerTask()
+		{
+			@Override
+			public void run(Timeout t)
+			{
+				watch.m_queueWaiters.remove(waiter);
+				waiter.complete(null);
+			}
+		}, lTimeoutMs, TimeUnit.MILLISECONDS);
+
+		// answered by a message, the timer has nothing left to do
+		waiter.thenRun(() -> timeout.cancel());
+
+		// a message that arrived while the waiter was being added
+		Notification latest = w.m_latest;
+
+		if (since != null && latest != null && TimeUuidComparator.INSTANCE.compare(UUID.fromString(latest.getMessageId()), since) > 0)
+		{
+			w.m_queueWaiters.remove(waiter);
+			waiter.complete(latest);
+		}
+
+		return waiter;
+	}
+
+	/**
+	 * Wakes the subscribers of f with a message that was just stored in
+	 * the conversation key. Costs one map lookup when nobody watches f.
+	 */
+	public static void publish(Folder f, ConversationKey key, Message msg)
+	{
+		Watch w = watches.get(f.getKey());
+
+		if (w == null)
+		{
+			return;
+		}
+
+		Notification n = new Notification(key.getId(), msg);
+		w.m_latest = n;
+
+		CompletableFuture<Notification> waiter;
+
+		while ((waiter = w.m_queueWaiters.poll()) != null)
+		{
+			waiter.complete(n);
+		}
+	}
+
+	protected static synchronized HashedWheelTimer getTimer()
+	{
+		if (timer == null)
+		{
+			timer = new HashedWheelTimer(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "subscribe-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			}, 100, TimeUnit.MILLISECONDS);
+
+			timer.newTimeout(new Sweeper(), TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+
+		return timer;
+	}
+
+	/**
+	 * Forgets the folders that have no subscriber and were last used
+	 * before lIdleSince. Each check and removal is one atomic step of the
+	 * map, so a subscriber either keeps its folder or sees it gone.
+	 */
+	protected static void sweep(long lIdleSince)
+	{
+		for (FolderKey key : watches.keySet())
+		{
+			watches.computeIfPresent(key, (k, w) -> w.m_queueWaiters.isEmpty() && w.m_lLastUsed < lIdleSince ? null : w);
+		}
+	}
+
+	/**
+	 * Forgets the folders that had no subscriber for two timeouts.
+	 */
+	static class Sweeper implements TimerTask
+	{
+		@Override
+		public void run(Timeout t)
+		{
+			sweep(System.currentTimeMillis() - 2 * TIMEOUT_MS);
+
+			t.getTimer().newTimeout(this, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Mutator;
+import org.scale7.cassandra.pelops.Selector;
+import org.scale7.cassandra.pelops.UuidHelper;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+
+/**
+ * MessageStore backed by a Cassandra cluster through a Pelops pool.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class PelopsMessageStore implements MessageStore
+{
+	protected IThriftPool m_pool;
+	protected ConsistencyLevel m_cl = ConsistencyLevel.ONE;
+
+	public PelopsMessageStore(IThriftPool pool)
+	{
+		m_pool = pool;
+	}
+
+	@Override
+	public Batch createBatch()
+	{
+		return new PelopsBatch(m_pool.createMutator());
+	}
+
+	@Override
+	public List<StoreColumn> getSlice(String strFamily, Bytes rowKey, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		Selector selector = m_pool.createSelector();
+		List<Column> listCols = selector.getColumnsFromRow(strFamily, rowKey, newPredicate(start, finish, bReversed, iCount), m_cl);
+		return toStoreColumns(listCols);
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, List<StoreColumn>> getSlices(String strFamily, List<Bytes> listRowKeys, UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		Selector selector = m_pool.createSelector();
+		LinkedHashMap<Bytes, List<Column>> mapRows = selector.getColumnsFromRows(strFamily, listRowKeys, newPredicate(start, finish, bReversed, iCount), m_cl);
+		LinkedHashMap<Bytes, List<StoreColumn>> mapRet = new LinkedHashMap<Bytes, List<StoreColumn>>();
+
+		for (Entry<Bytes, List<Column>> e : mapRows.entrySet())
+		{
+			mapRet.put(e.getKey(), toStoreColumns(e.getValue()));
+		}
+
+		return mapRet;
+	}
+
+	@Override
+	public List<StoreColumn> getColumns(String strFamily, Bytes rowKey, Collection<UUID> names)
+	{
+		Bytes[] colNames = new Bytes[names.size()];
+		int i = 0;
+
+		for (UUID name : names)
+		{
+			colNames[i++] = Bytes.fromUuid(name);
+		}
+
+		Selector selector = m_pool.createSelector();
+		return toStoreColumns(selector.getColumnsFromRow(strFamily, rowKey, Selector.newColumnsPredicate(colNames), m_cl));
+	}
+
+	@Override
+	public Map<UUID, Long> getCounters(String strFamily, Bytes rowKey)
+	{
+		Selector selector = m_pool.createSelector();
+		Map<UUID, Long> mapRet = new HashMap<UUID, Long>();
+
+		for (CounterColumn col : selector.getCounterColumnsFromRow(strFamily, rowKey, newPredicate(null, null, false, MessageStore.ALL), m_cl))
+		{
+			mapRet.put(UuidHelper.timeUuidFromBytes(col.getName()), col.getValue());
+		}
+
+		return mapRet;
+	}
+
+	@Override
+	public LinkedHashMap<Bytes, Map<UUID, Long>> getCounters(String strFamily, List<Bytes> listRowKeys)
+	{
+		Selector selector = m_pool.createSelector();
+		LinkedHashMap<Bytes, List<CounterColumn>> mapRows = selector.getCounterColumnsFromRows(strFamily, listRowKeys, newPredicate(null, null, false, MessageStore.ALL), m_cl);
+		LinkedHashMap<Bytes, Map<UUID, Long>> mapRet = new LinkedHashMap<Bytes, Map<UUID, Long>>();
+
+		for (Entry<Bytes, List<CounterColumn>> e : mapRows.entrySet())
+		{
+			Map<UUID, Long> mapCounters = new HashMap<UUID, Long>();
+
+			for (CounterColumn col : e.getValue())
+			{
+				mapCounters.put(UuidHelper.timeUuidFromBytes(col.getName()), col.getValue());
+			}
+
+			mapRet.put(e.getKey(), mapCounters);
+		}
+
+		return mapRet;
+	}
+
+	@Override
+	public void shutdown()
+	{
+		m_pool.shutdown();
+	}
+
+	protected static SlicePredicate newPredicate(UUID start, UUID finish, boolean bReversed, int iCount)
+	{
+		SlicePredicate pred = new SlicePredicate();
+		SliceRange sliceRange = new SliceRange();
+		sliceRange.setStart(start == null ? new byte[0] : Bytes.fromUuid(start).toByteArray());
+		sliceRange.setFinish(finish == null ? new byte[0] : Bytes.fromUuid(finish).toByteArray());
+		sliceRange.setCount(iCount);
+		sliceRange.setReversed(bReversed);
+		pred.setSlice_range(sliceRange);
+		return pred;
+	}
+
+	protected static List<StoreColumn> toStoreColumns(List<Column> listCols)
+	{
+		List<StoreColumn> listRet = new ArrayList<StoreColumn>(listCols.size());
+
+		for (Column col : listCols)
+		{
+			listRet.add(new StoreColumn(UuidHelper.timeUuidFromBytes(col.getName()), col.getValue(), col.getTimestamp()));
+		}
+
+		return listRet;
+	}
+
+	class PelopsBatch implements Batch
+	{
+		protected Mutator m_mutator;
+
+		public PelopsBatch(Mutator mutator)
+		{
+			m_mutator = mutator;
+		}
+
+		@Override
+		public Batch writeColumn(String strFamily, Bytes rowKey, UUID name, byte[] value)
+		{
+			m_mutator.writeColumn(strFamily, rowKey, m_mutator.newColumn(Bytes.fromUuid(name), Bytes.fromByteArray(value)));
+			return this;
+		}
+
+		@Override
+		public Batch deleteColumn(String strFamily, Bytes rowKey, UUID name)
+		{
+			m_mutator.deleteColumn(strFamily, rowKey, Bytes.fromUuid(name));
+			return this;
+		}
+
+		@Override
+		public Batch incrementCounter(String strFamily, Bytes rowKey, UUID name, long lDelta)
+		{
+			m_mutator.writeCounterColumn(strFamily, rowKey, Bytes.fromUuid(name), lDelta);
+			return this;
+		}
+
+		@Override
+		public void execute()
+		{
+			m_mutator.execute(m_cl);
+		}
+	}
+}
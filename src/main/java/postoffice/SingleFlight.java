@@ -0,0 +1,149 @@
+/*
+ * Postoffice: Simple threaded messaging using Cassandra.
+ *
+ * Copyright (C) 2011 Hisham Mardam-Bey <hisham.mardambey@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package postoffice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent identical reads share one trip to the store. The first
+ * caller of a read runs it, the ones that ask for the same read of the
+ * same group while it runs wait for its result instead of running their
+ * own, so a burst of requests for one folder costs one read.
+ *
+ * Reads are grouped by what a write changes. A write detaches its group's
+ * reads in flight: callers that come after it start a new read rather
+ * than get an answer that may predate the write.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+class SingleFlight<K>
+{
+	protected ConcurrentHashMap<K, Map<String, CompletableFuture<?>>> m_mapFlights = new ConcurrentHashMap<K, Map<String, CompletableFuture<?>>>();
+	protected AtomicInteger m_iWaiting = new AtomicInteger();
+	protected LongAdder m_waiters;
+
+	public SingleFlight(String strName)
+	{
+		m_waiters = MetricsUtil.counter("postoffice_coalesced_reads_total", "read=\"" + strName + "\"", "Reads answered by an identical read that was already running.");
+		MetricsUtil.gauge("postoffice_coalesced_reads_waiting", "read=\"" + strName + "\"", "Reads waiting for an identical read to finish.", () -> m_iWaiting.get());
+	}
+
+	/**
+	 * @return the result of loader, or of the identical read of group
+	 * already running
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T run(K group, String strRead, Supplier<T> loader)
+	{
+		final CompletableFuture<T> mine = new CompletableFuture<T>();
+		final Object[] running = new Object[1];
+
+		m_mapFlights.compute(group, (k, mapReads) ->
+		{
+			if (mapReads == null)
+			{
+				mapReads = new HashMap<String, CompletableFuture<?>>(4);
+			}
+
+			running[0] = mapReads.putIfAbsent(strRead, mine);
+			return mapReads;
+		});
+
+		if (running[0] != null)
+		{
+			return join((CompletableFuture<T>) running[0]);
+		}
+
+		T result;
+
+		try
+		{
+			result = loader.get();
+		}
+		catch (Throwable e)
+		{
+			// errors too, or the waiters would wait forever
+			done(group, strRead, mine);
+			mine.completeExceptionally(e);
+			throw e;
+		}
+
+		// callers from now on read again
+		done(group, strRead, mine);
+		mine.complete(result);
+		return result;
+	}
+
+	protected <T> T join(CompletableFuture<T> running)
+	{
+		m_waiters.increment();
+		m_iWaiting.incrementAndGet();
+
+		try
+		{
+			return running.join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+
+			if (e.getCause() instanceof Error)
+			{
+				throw (Error) e.getCause();
+			}
+
+			throw e;
+		}
+		finally
+		{
+			m_iWaiting.decrementAndGet();
+		}
+	}
+
+	protected void done(K group, String strRead, CompletableFuture<?> mine)
+	{
+		m_mapFlights.computeIfPresent(group, (k, mapReads) ->
+		{
+			mapReads.remove(strRead, mine);
+			return mapReads.isEmpty() ? null : mapReads;
+		});
+	}
+
+	/**
+	 * Makes the reads of group that are running answer only the callers
+	 * already waiting for them. Called once a write to group is stored.
+	 */
+	public void detach(K group)
+	{
+		m_mapFlights.remove(group);
+	}
+}
@@ -0,0 +1,133 @@
+package postoffice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.CharsetUtil;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Streams response bodies through a server and reads them off the socket.
+ */
+public class ChunkedResponseStreamTest 
+    extends TestCase
+{
+    protected HttpServer m_httpd;
+    protected int m_iPort;
+    protected String m_strBig;
+
+    public ChunkedResponseStreamTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ChunkedResponseStreamTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+
+        while (sb.length() < ChunkedResponseStream.CHUNK_SIZE * 3)
+        {
+            sb.append( "0123456789" );
+        }
+
+        m_strBig = sb.toString();
+
+        try (ServerSocket s = new ServerSocket( 0 ))
+        {
+            m_iPort = s.getLocalPort();
+        }
+
+        m_httpd = new HttpServer( m_iPort );
+        m_httpd.addExactHandler( "/big", new HttpServer.AsyncRequestHandler()
+        {
+            @Override
+            public CompletableFuture<HttpServer.Response> handleAsync( HttpRequest request )
+            {
+                return CompletableFuture.completedFuture( new HttpServer.Response( HttpResponseStatus.OK, writer -> writer.write( m_strBig ) ) );
+            }
+        } );
+        m_httpd.addExactHandler( "/broken", new HttpServer.AsyncRequestHandler()
+        {
+            @Override
+            public CompletableFuture<HttpServer.Response> handleAsync( HttpRequest request )
+            {
+                return CompletableFuture.completedFuture( new HttpServer.Response( HttpResponseStatus.OK, writer ->
+                {
+                    writer.write( "[1,2," );
+                    throw new IOException( "store went away" );
+                } ) );
+            }
+        } );
+        m_httpd.start();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        m_httpd.stop();
+    }
+
+    /**
+     * @return the whole response, read until the server closes the connection
+     */
+    protected String get( String strRequest ) throws IOException
+    {
+        try (Socket socket = new Socket( "localhost", m_iPort ))
+        {
+            socket.setSoTimeout( 5000 );
+            OutputStream out = socket.getOutputStream();
+            out.write( strRequest.getBytes( CharsetUtil.US_ASCII ) );
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int iRead;
+
+            while ((iRead = in.read( buf )) >= 0)
+            {
+                response.write( buf, 0, iRead );
+            }
+
+            return new String( response.toByteArray(), CharsetUtil.UTF_8 );
+        }
+    }
+
+    public void testHttp11IsChunked() throws IOException
+    {
+        String strResponse = get( "GET /big HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n" );
+        assertTrue( strResponse.startsWith( "HTTP/1.1 200" ) );
+        assertTrue( strResponse.toLowerCase().contains( "transfer-encoding: chunked" ) );
+    }
+
+    public void testHttp10IsNotChunked() throws IOException
+    {
+        String strResponse = get( "GET /big HTTP/1.0\r\n\r\n" );
+        assertTrue( strResponse.startsWith( "HTTP/1.1 200" ) );
+        assertFalse( strResponse.toLowerCase().contains( "transfer-encoding" ) );
+        assertTrue( strResponse.endsWith( "\r\n\r\n" + m_strBig ) );
+    }
+
+    public void testEarlyFailureAnswers500() throws IOException
+    {
+        String strResponse = get( "GET /broken HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n" );
+        assertTrue( strResponse, strResponse.startsWith( "HTTP/1.1 500" ) );
+        assertFalse( strResponse.contains( "[1,2," ) );
+    }
+}
@@ -0,0 +1,253 @@
+package postoffice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.UuidHelper;
+
+/**
+ * Unit test for group commit in front of the in-process store.
+ */
+public class CoalescingMessageStoreTest 
+    extends TestCase
+{
+    protected static final String CF = "folders";
+
+    /**
+     * Counts the batches that reach the store.
+     */
+    static class CountingStore extends MemoryMessageStore
+    {
+        protected AtomicInteger m_iExecutes = new AtomicInteger();
+
+        @Override
+        public Batch createBatch()
+        {
+            return new MemoryBatch()
+            {
+                @Override
+                public void execute()
+                {
+                    m_iExecutes.incrementAndGet();
+                    super.execute();
+                }
+            };
+        }
+    }
+
+    /**
+     * Applies its batches, then fails the ones holding more than one
+     * mutation, like a batch that timed out after it was written.
+     */
+    static class PartlyFailingStore extends MemoryMessageStore
+    {
+        @Override
+        public Batch createBatch()
+        {
+            return new MemoryBatch()
+            {
+                @Override
+                public void execute()
+                {
+                    int iMutations = m_listMutations.size();
+                    super.execute();
+
+                    if (iMutations > 1)
+                    {
+                        throw new RuntimeException( "timed out" );
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Takes up to a couple of milliseconds per batch, so lanes finish
+     * out of order, and records the values it writes in the order they
+     * are applied.
+     */
+    static class SlowStore extends MemoryMessageStore
+    {
+        protected List<String> m_listApplied = Collections.synchronizedList( new ArrayList<String>() );
+
+        @Override
+        public Batch createBatch()
+        {
+            return new MemoryBatch()
+            {
+                protected List<String> m_listValues = new ArrayList<String>();
+
+                @Override
+                public Batch writeColumn( String strFamily, Bytes rowKey, UUID name, byte[] value )
+                {
+                    m_listValues.add( new String( value, StandardCharsets.UTF_8 ) );
+                    return super.writeColumn( strFamily, rowKey, name, value );
+                }
+
+                @Override
+                public void execute()
+                {
+                    try
+                    {
+                        Thread.sleep( ThreadLocalRandom.current().nextInt( 3 ) );
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    super.execute();
+                    m_listApplied.addAll( m_listValues );
+                }
+            };
+        }
+    }
+
+    public CoalescingMessageStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CoalescingMessageStoreTest.class );
+    }
+
+    public void testConcurrentBatchesShareRoundTrips()
+    {
+        CountingStore memory = new CountingStore();
+        MessageStore store = new CoalescingMessageStore( memory, 50, 10000, 1 );
+        List<CompletableFuture<Void>> listFutures = new ArrayList<CompletableFuture<Void>>();
+
+        for (int i = 0; i < 200; i++)
+        {
+            listFutures.add( store.createBatch().writeColumn( CF, Bytes.fromUTF8( "row" + i ), UuidHelper.newTimeUuid(), StoreUtil.toBytes( "v" ) ).executeAsync() );
+        }
+
+        CompletableFuture.allOf( listFutures.toArray( new CompletableFuture<?>[0] ) ).join();
+
+        assertTrue( memory.m_iExecutes.get() < 200 );
+        assertEquals( 1, store.getSlice( CF, Bytes.fromUTF8( "row199" ), null, null, false, 10 ).size() );
+        store.shutdown();
+    }
+
+    public void testBatchIsOneRoundTrip()
+    {
+        CountingStore memory = new CountingStore();
+        MessageStore store = new CoalescingMessageStore( memory, 1, 10000, 4 );
+        MessageStore.Batch batch = store.createBatch();
+
+        for (int i = 0; i < 20; i++)
+        {
+            batch.writeColumn( CF, Bytes.fromUTF8( "row" + i ), UuidHelper.newTimeUuid(), StoreUtil.toBytes( "v" ) );
+        }
+
+        batch.execute();
+
+        assertEquals( 1, memory.m_iExecutes.get() );
+        store.shutdown();
+    }
+
+    public void testLastWriteOfAColumnWins()
+    {
+        MessageStore store = new CoalescingMessageStore( new MemoryMessageStore(), 50, 10000, 1 );
+        Bytes row = Bytes.fromUTF8( "row" );
+        UUID name = UuidHelper.newTimeUuid();
+
+        CompletableFuture<Void> f1 = store.createBatch().writeColumn( CF, row, name, StoreUtil.toBytes( "first" ) ).executeAsync();
+        CompletableFuture<Void> f2 = store.createBatch().writeColumn( CF, row, name, StoreUtil.toBytes( "second" ) ).executeAsync();
+        CompletableFuture<Void> f3 = store.createBatch().deleteColumn( CF, row, UuidHelper.newTimeUuid() ).executeAsync();
+        CompletableFuture.allOf( f1, f2, f3 ).join();
+
+        assertEquals( "second", store.getSlice( CF, row, null, null, false, 10 ).get( 0 ).getStringValue() );
+        store.shutdown();
+    }
+
+    public void testWritesToARowKeepTheirOrderAcrossLanes()
+    {
+        SlowStore slow = new SlowStore();
+        MessageStore store = new CoalescingMessageStore( slow, 0, 1, 4 );
+        Bytes row = Bytes.fromUTF8( "row" );
+        UUID name = UuidHelper.newTimeUuid();
+        List<CompletableFuture<Void>> listFutures = new ArrayList<CompletableFuture<Void>>();
+
+        for (int i = 0; i < 500; i++)
+        {
+            // every batch is a group of its own, spread over the lanes by its first row
+            MessageStore.Batch batch = store.createBatch();
+            Bytes other = Bytes.fromUTF8( "other" + i );
+
+            if (i % 2 == 0)
+            {
+                batch.writeColumn( CF, row, name, StoreUtil.toBytes( "v" + i ) ).writeColumn( CF, other, name, StoreUtil.toBytes( "x" ) );
+            }
+            else
+            {
+                batch.writeColumn( CF, other, name, StoreUtil.toBytes( "x" ) ).writeColumn( CF, row, name, StoreUtil.toBytes( "v" + i ) );
+            }
+
+            listFutures.add( batch.executeAsync() );
+        }
+
+        CompletableFuture.allOf( listFutures.toArray( new CompletableFuture<?>[0] ) ).join();
+
+        assertEquals( "v499", store.getSlice( CF, row, null, null, false, 10 ).get( 0 ).getStringValue() );
+
+        List<String> listRow = new ArrayList<String>();
+
+        for (String strValue : slow.m_listApplied)
+        {
+            if (strValue.startsWith( "v" ))
+            {
+                listRow.add( strValue );
+            }
+        }
+
+        for (int i = 0; i < 500; i++)
+        {
+            assertEquals( "v" + i, listRow.get( i ) );
+        }
+
+        store.shutdown();
+    }
+
+    public void testFailedCountersAreNotAppliedTwice()
+    {
+        MessageStore store = new CoalescingMessageStore( new PartlyFailingStore(), 50, 10000, 1 );
+        Bytes row = Bytes.fromUTF8( "row" );
+        UUID c1 = UuidHelper.newTimeUuid();
+        UUID c2 = UuidHelper.newTimeUuid();
+
+        CompletableFuture<Void> f1 = store.createBatch().incrementCounter( "counters", row, c1, 1 ).executeAsync();
+        CompletableFuture<Void> f2 = store.createBatch().incrementCounter( "counters", row, c2, 1 ).executeAsync();
+        CompletableFuture<Void> f3 = store.createBatch().writeColumn( CF, row, c1, StoreUtil.toBytes( "v" ) ).executeAsync();
+
+        try
+        {
+            CompletableFuture.allOf( f1, f2 ).join();
+            fail( "counter batches of a failed group should fail" );
+        }
+        catch (RuntimeException e)
+        {
+            // expected
+        }
+
+        // the write is retried on its own and succeeds
+        f3.join();
+        assertTrue( f1.isCompletedExceptionally() && f2.isCompletedExceptionally() );
+        assertEquals( Long.valueOf( 1 ), store.getCounters( "counters", row ).get( c1 ) );
+        assertEquals( Long.valueOf( 1 ), store.getCounters( "counters", row ).get( c2 ) );
+        store.shutdown();
+    }
+}
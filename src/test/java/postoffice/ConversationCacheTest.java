@@ -0,0 +1,166 @@
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.UuidHelper;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the off-heap conversation cache.
+ */
+public class ConversationCacheTest 
+    extends TestCase
+{
+    public ConversationCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ConversationCacheTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+    }
+
+    protected List<StoreColumn> columns( int iCount, int iBodyLength )
+    {
+        List<StoreColumn> listCols = new ArrayList<StoreColumn>();
+        char[] body = new char[iBodyLength];
+        Arrays.fill( body, 'x' );
+
+        for (int i = 0; i < iCount; i++)
+        {
+            Message m = new Message( UuidHelper.newTimeUuid(), "alice", "hey " + i, new String( body ) );
+            listCols.add( new StoreColumn( m.getUuid(), MessageUtil.toBytes( m ), 0 ) );
+        }
+
+        return listCols;
+    }
+
+    public void testPagesFromCacheMatchStore()
+    {
+        String strId = ConversationUtil.genId();
+
+        for (int i = 0; i < 5; i++)
+        {
+            PostofficeUtil.sendMessage( "alice", "bob", "hey " + i, "body " + i, strId );
+        }
+
+        String strConvId = new ConversationKey( "bob", UUID.fromString( strId ) ).getId();
+        long lHits = ConversationUtil.cache.m_hits.sum();
+        assertEquals( 5, ConversationUtil.get( strConvId ).getMessages().size() );
+
+        // newest 2, then the 2 before them, all from the cache
+        Conversation page = ConversationUtil.get( strConvId, null, 2 );
+        assertEquals( "hey 4", page.getMessages().first().getSubject() );
+        page = ConversationUtil.get( strConvId, UUID.fromString( page.getCursor() ), 2 );
+        assertEquals( "hey 2", page.getMessages().first().getSubject() );
+        assertEquals( "hey 1", page.getMessages().last().getSubject() );
+        assertEquals( 3, ConversationUtil.getSince( strConvId, UUID.fromString( page.getCursor() ), 10 ).getMessages().size() );
+        assertEquals( lHits + 3, ConversationUtil.cache.m_hits.sum() );
+
+        // a reply drops the cached copy
+        PostofficeUtil.sendMessage( "bob", "alice", "hey 5", "body 5", strId );
+        assertEquals( 6, ConversationUtil.get( strConvId ).getMessages().size() );
+        assertEquals( "hey 5", ConversationUtil.get( strConvId, null, 1 ).getMessages().first().getSubject() );
+    }
+
+    public void testReadRacingWriteIsNotKept()
+    {
+        ConversationCache cache = new ConversationCache( 1024 * 1024, 64 * 1024, 60000 );
+        Bytes key = Bytes.fromUTF8( "bob:1" );
+
+        Object token = cache.reserve( key );
+        cache.invalidate( key );
+        cache.put( key, token, columns( 3, 10 ) );
+        assertNull( cache.get( key ) );
+
+        token = cache.reserve( key );
+        cache.put( key, token, columns( 3, 10 ) );
+        assertEquals( 3, cache.get( key ).size() );
+    }
+
+    public void testSlabsAreRecycled()
+    {
+        ConversationCache cache = new ConversationCache( 4 * 16 * 1024, 16 * 1024, 60000 );
+        List<StoreColumn> listCols = columns( 4, 1000 );
+        Collections.reverse( listCols );
+
+        for (int i = 0; i < 100; i++)
+        {
+            Bytes key = Bytes.fromUTF8( "bob:" + i );
+            cache.put( key, cache.reserve( key ), listCols );
+        }
+
+        assertEquals( 4 * 16 * 1024L, cache.getAllocatedBytes() );
+        assertTrue( cache.m_evictions.sum() > 0 );
+        assertNull( cache.get( Bytes.fromUTF8( "bob:0" ) ) );
+
+        // stored oldest first whatever order the columns came in
+        ConversationCache.Snapshot cached = cache.get( Bytes.fromUTF8( "bob:99" ) );
+        assertEquals( "hey 0", cached.get( 0 ).getSubject() );
+        assertEquals( "hey 3", cached.before( null, 1 ).get( 0 ).getSubject() );
+    }
+
+    public void testPageFromRecycledSlabIsNull()
+    {
+        ConversationCache cache = new ConversationCache( 2 * 16 * 1024, 16 * 1024, 60000 );
+        Bytes key = Bytes.fromUTF8( "bob:0" );
+        cache.put( key, cache.reserve( key ), columns( 4, 1000 ) );
+
+        ConversationCache.Snapshot cached = cache.get( key );
+        assertEquals( "hey 3", cached.before( null, 1 ).get( 0 ).getSubject() );
+
+        // fill both slabs so the first is recycled under the view
+        for (int i = 1; i < 10; i++)
+        {
+            Bytes other = Bytes.fromUTF8( "bob:" + i );
+            cache.put( other, cache.reserve( other ), columns( 4, 1000 ) );
+        }
+
+        assertNull( cached.before( null, 1 ) );
+        assertNull( cached.all() );
+        assertNull( cache.get( key ) );
+    }
+
+    public void testHotEntryMovesToHeadOnce()
+    {
+        ConversationCache cache = new ConversationCache( 4 * 16 * 1024, 16 * 1024, 60000 );
+        Bytes key = Bytes.fromUTF8( "bob:0" );
+        cache.put( key, cache.reserve( key ), columns( 4, 1000 ) );
+
+        // two more slabs put the first in the older half
+        for (int i = 1; i < 7; i++)
+        {
+            Bytes other = Bytes.fromUTF8( "bob:" + i );
+            cache.put( other, cache.reserve( other ), columns( 4, 1000 ) );
+        }
+
+        assertEquals( 2, cache.m_iHead );
+        ConversationCache.Location loc = (ConversationCache.Location) cache.m_mapIndex.get( key );
+        int iWritten = cache.m_listWritten.get( cache.m_iHead ).size();
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals( 4, cache.get( key ).size() );
+        }
+
+        ConversationCache.Location moved = (ConversationCache.Location) cache.m_mapIndex.get( key );
+        assertNotSame( loc, moved );
+        assertEquals( cache.m_iHead, moved.m_iSlab );
+        assertEquals( iWritten + 1, cache.m_listWritten.get( cache.m_iHead ).size() );
+    }
+}
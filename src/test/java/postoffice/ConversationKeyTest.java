@@ -0,0 +1,123 @@
+package postoffice;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Unit test for the typed row keys.
+ */
+public class ConversationKeyTest 
+    extends TestCase
+{
+    public ConversationKeyTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ConversationKeyTest.class );
+    }
+
+    public void testRowKeyRoundTrip()
+    {
+        UUID thread = UUID.fromString( ConversationUtil.genId() );
+        ConversationKey key = new ConversationKey( "1501572", thread );
+
+        assertEquals( "1501572:" + thread, key.getId() );
+        assertSame( key.toRowKey(), key.toRowKey() );
+
+        ConversationKey decoded = ConversationKey.fromRowKey( key.toRowKey() );
+        assertEquals( key, decoded );
+        assertEquals( key.getId(), decoded.getId() );
+        assertEquals( key, ConversationKey.parse( key.getId() ) );
+        assertEquals( ConversationKey.toThreadKey( thread ), key.toThreadKey() );
+    }
+
+    protected void assertRoundTrip( boolean bBinary )
+    {
+        UUID thread = UUID.fromString( ConversationUtil.genId() );
+        ConversationKey key = ConversationKey.parse( "user:with:colons:" + thread, bBinary );
+        assertEquals( "user:with:colons", key.getOwner() );
+
+        ConversationKey decoded = ConversationKey.fromRowKey( Bytes.fromByteArray( key.toRowKey().toByteArray() ) );
+        assertEquals( key, decoded );
+        assertEquals( key.getId(), decoded.getId() );
+        assertEquals( key.toRowKey(), decoded.toRowKey() );
+        assertEquals( key.toThreadKey(), decoded.toThreadKey() );
+        assertEquals( ConversationKey.toThreadKey( thread, bBinary ), key.toThreadKey() );
+    }
+
+    public void testStringLayoutRoundTrip()
+    {
+        UUID thread = UUID.fromString( ConversationUtil.genId() );
+        ConversationKey key = new ConversationKey( "1501572", thread, false );
+        assertEquals( Bytes.fromUTF8( "1501572:" + thread ), key.toRowKey() );
+        assertEquals( Bytes.fromUTF8( thread.toString() ), key.toThreadKey() );
+
+        assertRoundTrip( false );
+    }
+
+    public void testBinaryLayoutRoundTrip()
+    {
+        UUID thread = UUID.fromString( ConversationUtil.genId() );
+        ConversationKey key = new ConversationKey( "1501572", thread, true );
+        assertEquals( "1501572".length() + 16, key.toRowKey().length() );
+        assertEquals( Bytes.fromUuid( thread ), key.toThreadKey() );
+
+        assertRoundTrip( true );
+    }
+
+    public void testMixedLayoutRead()
+    {
+        MemoryMessageStore store = new MemoryMessageStore();
+        ConversationKey text = new ConversationKey( "1501572", UUID.fromString( ConversationUtil.genId() ), false );
+        ConversationKey binary = new ConversationKey( "1501572", UUID.fromString( ConversationUtil.genId() ), true );
+        UUID column = UUID.fromString( MessageUtil.genId() );
+
+        MessageStore.Batch batch = store.createBatch();
+        batch.writeColumn( SummaryUtil.SUMMARIES, text.toRowKey(), column, StoreUtil.toBytes( "text" ) );
+        batch.writeColumn( SummaryUtil.SUMMARIES, binary.toRowKey(), column, StoreUtil.toBytes( "binary" ) );
+        batch.execute();
+
+        LinkedHashMap<Bytes, List<StoreColumn>> rows = store.getSlices( SummaryUtil.SUMMARIES, Arrays.asList( text.toRowKey(), binary.toRowKey() ), null, null, false, 10 );
+        assertEquals( 2, rows.size() );
+
+        // each row decodes to its own key, whatever the configured layout
+        for (Map.Entry<Bytes, List<StoreColumn>> e : rows.entrySet())
+        {
+            ConversationKey key = ConversationKey.fromRowKey( e.getKey() );
+            assertEquals( e.getKey(), key.toRowKey() );
+            assertEquals( key.m_bBinary ? "binary" : "text", e.getValue().get( 0 ).getStringValue() );
+            assertEquals( key.m_bBinary ? binary : text, key );
+            assertEquals( key.m_bBinary ? binary.toThreadKey() : text.toThreadKey(), key.toThreadKey() );
+        }
+    }
+
+    public void testParseRejectsBadIds()
+    {
+        try
+        {
+            ConversationKey.parse( "1501572" );
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    public void testFolderKeysEqualByFolder()
+    {
+        assertEquals( new Folder( "1501572", "inbox" ).getKey(), new Folder( "1501572", "inbox" ).getKey() );
+        assertEquals( FolderUtil.getId( new Folder( "1501572", "inbox" ) ), new Folder( "1501572", "inbox" ).getKey().toRowKey().toUTF8() );
+    }
+}
@@ -0,0 +1,244 @@
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the folder counters against the in-process store.
+ */
+public class CounterUtilTest 
+    extends TestCase
+{
+    /**
+     * Holds counter writes until released, and fails the ones to one row.
+     */
+    static class HoldingStore extends MemoryMessageStore
+    {
+        protected CountDownLatch m_written = new CountDownLatch( 1 );
+        protected CountDownLatch m_release = new CountDownLatch( 1 );
+        protected volatile Bytes m_failing;
+
+        @Override
+        public Batch createBatch()
+        {
+            return new MemoryBatch()
+            {
+                protected boolean m_bFail;
+
+                @Override
+                public Batch incrementCounter( String strFamily, Bytes rowKey, UUID name, long lDelta )
+                {
+                    m_bFail |= rowKey.equals( m_failing );
+                    return super.incrementCounter( strFamily, rowKey, name, lDelta );
+                }
+
+                @Override
+                public void execute()
+                {
+                    m_written.countDown();
+
+                    try
+                    {
+                        m_release.await( 5, TimeUnit.SECONDS );
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    if (m_bFail)
+                    {
+                        throw new RuntimeException( "unavailable" );
+                    }
+
+                    super.execute();
+                }
+            };
+        }
+    }
+
+    public CounterUtilTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CounterUtilTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+    }
+
+    public void testCountsSurviveFlush()
+    {
+        Folder f = new Folder( "1501572", "inbox" );
+
+        CounterUtil.messageAdded( f, true );
+        CounterUtil.messageAdded( f, true );
+        CounterUtil.messageAdded( f, false );
+        assertEquals( 2L, CounterUtil.get( f ).getUnread().longValue() );
+        assertEquals( 3L, CounterUtil.get( f ).getTotal().longValue() );
+
+        CounterUtil.flush();
+        assertEquals( 2L, CounterUtil.get( f ).getUnread().longValue() );
+        assertEquals( 3L, CounterUtil.get( f ).getTotal().longValue() );
+
+        CounterUtil.markRead( f );
+        CounterUtil.messageAdded( f, true );
+        CounterUtil.flush();
+        assertEquals( 1L, CounterUtil.get( f ).getUnread().longValue() );
+        assertEquals( 4L, CounterUtil.get( f ).getTotal().longValue() );
+    }
+
+    public void testSendCountsRecipientsOnly()
+    {
+        String strId = ConversationUtil.genId();
+        PostofficeUtil.sendMessageAsync( "alice", "bob", "hey", "body", strId ).join();
+
+        assertEquals( 1L, CounterUtil.get( new Folder( "bob", "inbox" ) ).getUnread().longValue() );
+        assertEquals( 0L, CounterUtil.get( new Folder( "alice", "sent" ) ).getUnread().longValue() );
+        assertEquals( 1L, CounterUtil.get( new Folder( "alice", "sent" ) ).getTotal().longValue() );
+    }
+
+    public void testReadDuringWriteCountsItOnce() throws Exception
+    {
+        HoldingStore store = new HoldingStore();
+        StoreUtil.setStore( store );
+        Folder f = new Folder( ConversationUtil.genId(), "inbox" );
+        Folder other = new Folder( ConversationUtil.genId(), "inbox" );
+        CounterUtil.messageAdded( f, true );
+        CounterUtil.messageAdded( f, true );
+
+        Thread flush = new Thread( () -> CounterUtil.flush() );
+        flush.start();
+        assertTrue( store.m_written.await( 5, TimeUnit.SECONDS ) );
+
+        // a folder with nothing being written is read at once
+        CounterUtil.messageAdded( other, true );
+        assertEquals( 1L, CounterUtil.get( other ).getUnread().longValue() );
+
+        // the stored counters may or may not hold the write, so the read waits for it
+        CompletableFuture<FolderCounts> counts = CounterUtil.getAsync( f );
+        Thread.sleep( 100 );
+        assertFalse( counts.isDone() );
+
+        store.m_release.countDown();
+        flush.join();
+        assertEquals( 2L, counts.get().getUnread().longValue() );
+        assertEquals( 2L, counts.get().getTotal().longValue() );
+        assertEquals( 2L, StoreUtil.getStore().getCounters( CounterUtil.COUNTERS, f.getKey().toRowKey() ).get( CounterUtil.TOTAL ).longValue() );
+    }
+
+    public void testCountsStayExactWhileFlushing() throws InterruptedException
+    {
+        final Folder f = new Folder( ConversationUtil.genId(), "inbox" );
+        final AtomicBoolean bDone = new AtomicBoolean();
+
+        Thread flusher = new Thread( () ->
+        {
+            while (!bDone.get())
+            {
+                CounterUtil.flush();
+            }
+        } );
+
+        flusher.start();
+
+        try
+        {
+            for (int i = 1; i <= 2000; i++)
+            {
+                CounterUtil.messageAdded( f, true );
+                assertEquals( i, CounterUtil.get( f ).getTotal().longValue() );
+
+                if (i % 10 == 0)
+                {
+                    CounterUtil.markRead( f );
+                    assertEquals( 0L, CounterUtil.get( f ).getUnread().longValue() );
+                }
+            }
+        }
+        finally
+        {
+            bDone.set( true );
+            flusher.join();
+        }
+
+        CounterUtil.flush();
+        Map<UUID, Long> mapStored = StoreUtil.getStore().getCounters( CounterUtil.COUNTERS, f.getKey().toRowKey() );
+        assertEquals( 0L, mapStored.get( CounterUtil.UNREAD ).longValue() );
+        assertEquals( 2000L, mapStored.get( CounterUtil.TOTAL ).longValue() );
+    }
+
+    public void testFailedWriteIsNotRetried()
+    {
+        HoldingStore store = new HoldingStore();
+        store.m_release.countDown();
+        StoreUtil.setStore( store );
+        Folder failing = new Folder( ConversationUtil.genId(), "inbox" );
+        Folder written = new Folder( ConversationUtil.genId(), "inbox" );
+        store.m_failing = failing.getKey().toRowKey();
+        CounterUtil.messageAdded( failing, true );
+        CounterUtil.messageAdded( written, true );
+
+        long lDropped = CounterUtil.dropped.sum();
+        CounterUtil.flush();
+        assertEquals( lDropped + 1, CounterUtil.dropped.sum() );
+
+        // a failed write may have been applied, sending it again could count twice
+        assertEquals( 0L, CounterUtil.get( failing ).getTotal().longValue() );
+        assertEquals( 1L, CounterUtil.get( written ).getTotal().longValue() );
+
+        store.m_failing = null;
+        CounterUtil.flush();
+        assertEquals( 0L, CounterUtil.get( failing ).getTotal().longValue() );
+        assertEquals( 1L, CounterUtil.get( written ).getTotal().longValue() );
+    }
+
+    public void testConcurrentMarkReadsTakeOffUnreadOnce() throws InterruptedException
+    {
+        Folder f = new Folder( ConversationUtil.genId(), "inbox" );
+
+        for (int i = 0; i < 5; i++)
+        {
+            CounterUtil.messageAdded( f, true );
+        }
+
+        CounterUtil.flush();
+        List<Thread> listThreads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++)
+        {
+            Thread t = new Thread( () -> CounterUtil.markRead( f ) );
+            listThreads.add( t );
+            t.start();
+        }
+
+        for (Thread t : listThreads)
+        {
+            t.join();
+        }
+
+        CounterUtil.flush();
+        assertEquals( 0L, StoreUtil.getStore().getCounters( CounterUtil.COUNTERS, f.getKey().toRowKey() ).get( CounterUtil.UNREAD ).longValue() );
+
+        CounterUtil.messageAdded( f, true );
+        assertEquals( 1L, CounterUtil.get( f ).getUnread().longValue() );
+    }
+}
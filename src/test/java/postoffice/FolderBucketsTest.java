@@ -0,0 +1,132 @@
+package postoffice;
+
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.scale7.cassandra.pelops.UuidHelper;
+
+/**
+ * Unit test for the folder rows split by month.
+ */
+public class FolderBucketsTest 
+    extends TestCase
+{
+    protected FolderKey m_key = new FolderKey( "bob", "inbox" );
+
+    public FolderBucketsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( FolderBucketsTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+    }
+
+    /**
+     * @return a column name iDay days into month iMonth
+     */
+    protected UUID position( int iMonth, int iDay )
+    {
+        long lStart = UuidHelper.millisFromTimeUuid( FolderBuckets.indexColumn( iMonth ) );
+        return UuidHelper.nonUniqueTimeUuidForDate( lStart + iDay * 86400000L );
+    }
+
+    protected void write( UUID position, String strValue )
+    {
+        FolderBuckets._write( StoreUtil.getStore().createBatch(), m_key, position, StoreUtil.toBytes( strValue ) ).execute();
+    }
+
+    protected List<StoreColumn> marks()
+    {
+        return StoreUtil.getStore().getSlice( FolderUtil.FOLDERS, FolderBuckets.markKey( m_key ), null, null, false, MessageStore.ALL );
+    }
+
+    public void testMarkingAMonthTwiceWritesOneMark()
+    {
+        write( position( 600, 1 ), "a" );
+        write( position( 600, 2 ), "b" );
+        FolderBuckets._delete( StoreUtil.getStore().createBatch(), m_key, position( 600, 1 ) ).execute();
+        FolderBuckets._delete( StoreUtil.getStore().createBatch(), m_key, position( 600, 2 ) ).execute();
+        assertEquals( 1, marks().size() );
+        assertEquals( 600, FolderBuckets.month( marks().get( 0 ).getName() ) );
+
+        // nothing of the current month is marked
+        write( UuidHelper.newTimeUuid(), "c" );
+        FolderBuckets._delete( StoreUtil.getStore().createBatch(), m_key, UuidHelper.newTimeUuid() ).execute();
+        assertEquals( 1, marks().size() );
+    }
+
+    public void testMonths()
+    {
+        int iMonth = FolderBuckets.month( System.currentTimeMillis() );
+        assertEquals( iMonth, FolderBuckets.month( FolderBuckets.indexColumn( iMonth ) ) );
+        assertEquals( 0, FolderBuckets.month( 0L ) );
+        assertEquals( 12, FolderBuckets.month( FolderBuckets.indexColumn( 12 ) ) );
+    }
+
+    public void testPagesWalkMonthsNewestFirst()
+    {
+        // more months than one index page, with a gap
+        for (int iMonth = 600; iMonth < 600 + FolderBuckets.INDEX_PAGE + 4; iMonth += 1 + iMonth % 2)
+        {
+            write( position( iMonth, 1 ), "a" + iMonth );
+            write( position( iMonth, 2 ), "b" + iMonth );
+        }
+
+        List<StoreColumn> listAll = FolderBuckets._getSliceAfter( m_key, null, MessageStore.ALL );
+
+        for (int i = 1; i < listAll.size(); i++)
+        {
+            assertTrue( TimeUuidComparator.INSTANCE.compare( listAll.get( i - 1 ).getName(), listAll.get( i ).getName() ) > 0 );
+        }
+
+        UUID cursor = null;
+        int iRead = 0;
+
+        for (List<StoreColumn> listPage; !(listPage = FolderBuckets._getSliceAfter( m_key, cursor, 3 )).isEmpty(); cursor = listPage.get( listPage.size() - 1 ).getName())
+        {
+            assertTrue( listPage.size() <= 3 );
+            assertEquals( listAll.get( iRead ).getName(), listPage.get( 0 ).getName() );
+            iRead += listPage.size();
+        }
+
+        assertEquals( listAll.size(), iRead );
+    }
+
+    public void testCompactorDropsEmptiedMonths()
+    {
+        UUID old = position( 600, 1 );
+        UUID kept = position( 601, 1 );
+        write( old, "old" );
+        write( kept, "kept" );
+        write( position( 601, 2 ), "newer" );
+
+        FolderBuckets._delete( StoreUtil.getStore().createBatch(), m_key, old ).execute();
+        FolderBuckets._delete( StoreUtil.getStore().createBatch(), m_key, kept ).execute();
+
+        // the marks are stored, whichever node runs the compactor finds them
+        assertEquals( 2, marks().size() );
+        assertEquals( m_key, FolderBuckets.fromMarkValue( marks().get( 0 ).getValue() ) );
+        FolderBuckets.compact();
+
+        List<StoreColumn> listMonths = StoreUtil.getStore().getSlice( FolderUtil.FOLDERS, FolderBuckets.indexKey( m_key ), null, null, true, MessageStore.ALL );
+        assertEquals( 1, listMonths.size() );
+        assertEquals( 601, FolderBuckets.month( listMonths.get( 0 ).getName() ) );
+        assertTrue( marks().isEmpty() );
+
+        List<StoreColumn> listAll = FolderBuckets._getSliceAfter( m_key, null, MessageStore.ALL );
+        assertEquals( 1, listAll.size() );
+        assertEquals( "newer", listAll.get( 0 ).getStringValue() );
+    }
+}
@@ -0,0 +1,139 @@
+package postoffice;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the first page folder cache.
+ */
+public class FolderCacheTest 
+    extends TestCase
+{
+    public FolderCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( FolderCacheTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+    }
+
+    public void testSendInvalidatesFirstPage()
+    {
+        Folder inbox = new Folder( "bob", "inbox" );
+        PostofficeUtil.startConversationAsync( "alice", "bob", "first", "body" ).join();
+        assertEquals( 1, FolderUtil.getSummaries( inbox, (UUID) null, 10 ).size() );
+
+        long lHits = FolderUtil.cache.m_hits.sum();
+        assertEquals( 1, FolderUtil.getSummaries( inbox, (UUID) null, 10 ).size() );
+        assertEquals( lHits + 1, FolderUtil.cache.m_hits.sum() );
+
+        PostofficeUtil.startConversationAsync( "carol", "bob", "second", "body" ).join();
+        List<ConversationSummary> listSummaries = FolderUtil.getSummaries( inbox, (UUID) null, 10 );
+        assertEquals( 2, listSummaries.size() );
+        assertEquals( "second", listSummaries.get( 0 ).getSubject() );
+        assertEquals( 2, FolderUtil.getConversations( inbox, (UUID) null, 10 ).size() );
+    }
+
+    public void testCursorIsCached()
+    {
+        Folder inbox = new Folder( "bob", "inbox" );
+
+        for (int i = 0; i < 3; i++)
+        {
+            PostofficeUtil.startConversationAsync( "alice", "bob", "hey " + i, "body" ).join();
+        }
+
+        FolderUtil.getSummaries( inbox, (UUID) null, 2 );
+        String strCursor = inbox.getCursor();
+        assertNotNull( strCursor );
+
+        Folder again = new Folder( "bob", "inbox" );
+        FolderUtil.getSummaries( again, (UUID) null, 2 );
+        assertEquals( strCursor, again.getCursor() );
+    }
+
+    public void testReadRacingWriteIsNotKept()
+    {
+        final FolderCache cache = new FolderCache( 1024 * 1024, 60000 );
+        final FolderKey key = new FolderKey( "bob", "inbox" );
+        final AtomicInteger iLoads = new AtomicInteger();
+
+        cache.get( key, 10, false, () -> 
+        {
+            iLoads.incrementAndGet();
+            cache.invalidate( key );
+            return new FolderCache.Page<String>( "stale", null );
+        } );
+
+        assertEquals( "fresh", cache.get( key, 10, false, () -> 
+        {
+            iLoads.incrementAndGet();
+            return new FolderCache.Page<String>( "fresh", null );
+        } ).getValue() );
+
+        assertEquals( 2, iLoads.get() );
+    }
+
+    public void testEvictsLeastRecentlyReadBySize()
+    {
+        // one folder's page fits a segment, two do not
+        FolderCache cache = new FolderCache( FolderCache.SEGMENTS * 3000L, 60000 );
+        final StringBuilder sb = new StringBuilder();
+
+        while (sb.length() < 600)
+        {
+            sb.append( "0123456789" );
+        }
+
+        FolderKey[] keys = new FolderKey[FolderCache.SEGMENTS * 4];
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = new FolderKey( "user" + i, "inbox" );
+            cache.get( keys[i], 10, false, () -> new FolderCache.Page<String>( sb.toString(), null ) );
+        }
+
+        assertTrue( cache.getBytes() <= FolderCache.SEGMENTS * 3000L );
+        assertTrue( cache.m_evictions.sum() > 0 );
+
+        // the newest folder of each segment is still there
+        long lHits = cache.m_hits.sum();
+        cache.get( keys[keys.length - 1], 10, false, () -> new FolderCache.Page<String>( "reread", null ) );
+        assertEquals( lHits + 1, cache.m_hits.sum() );
+    }
+
+    public void testPagesAreSizedByTheirStrings()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        while (sb.length() < 10000)
+        {
+            sb.append( "0123456789" );
+        }
+
+        Conversation c = new Conversation( "bob:" + ConversationUtil.genId() );
+        TreeSet<Message> setMessages = new TreeSet<Message>();
+        setMessages.add( new Message( MessageUtil.genId(), "alice", "hi", sb.toString() ) );
+        c.setMessages( setMessages );
+
+        long lBytes = FolderCache.estimate( Collections.singleton( c ) );
+        assertTrue( lBytes > 20000 );
+        assertTrue( lBytes < 21000 );
+        assertEquals( FolderCache.STRING_BYTES + 20, FolderCache.estimate( "0123456789" ) );
+    }
+}
@@ -0,0 +1,117 @@
+package postoffice;
+
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Unit test for the request router.
+ */
+public class HttpRouterTest 
+    extends TestCase
+{
+    static class NamedHandler implements HttpServer.AsyncRequestHandler
+    {
+        protected String m_strName;
+
+        public NamedHandler( String strName )
+        {
+            m_strName = strName;
+        }
+
+        @Override
+        public CompletableFuture<HttpServer.Response> handleAsync( HttpRequest request )
+        {
+            return CompletableFuture.completedFuture( HttpServer.Response.json( m_strName ) );
+        }
+    }
+
+    protected NamedHandler index = new NamedHandler( "index" );
+    protected NamedHandler folder = new NamedHandler( "folder" );
+    protected NamedHandler folderExact = new NamedHandler( "folderExact" );
+    protected NamedHandler conversation = new NamedHandler( "conversation" );
+
+    public HttpRouterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( HttpRouterTest.class );
+    }
+
+    protected HttpRouter newRouter()
+    {
+        HttpRouter router = new HttpRouter();
+
+        // root first on purpose, order must not matter
+        router.addPrefix( "/", index );
+        router.addPrefix( "/folder", folder );
+        router.addPrefix( "/conversation", conversation );
+        router.addExact( "/folder/exact", folderExact );
+        return router;
+    }
+
+    public void testLongestPrefixWins()
+    {
+        HttpRouter router = newRouter();
+
+        assertSame( folder, router.route( "/folder" ) );
+        assertSame( folder, router.route( "/folder/" ) );
+        assertSame( folder, router.route( "/folder/inbox/1501572" ) );
+        assertSame( conversation, router.route( "/conversation" ) );
+        assertSame( index, router.route( "/" ) );
+        assertSame( index, router.route( "/nothing/here" ) );
+    }
+
+    public void testMatchesWholeSegments()
+    {
+        assertSame( index, newRouter().route( "/folderx" ) );
+    }
+
+    public void testExactBeforePrefix()
+    {
+        HttpRouter router = newRouter();
+
+        assertSame( folderExact, router.route( "/folder/exact" ) );
+        assertSame( folderExact, router.route( "/folder/exact/" ) );
+        assertSame( folder, router.route( "/folder/exact/more" ) );
+    }
+
+    public void testNoMatch()
+    {
+        HttpRouter router = new HttpRouter();
+        router.addPrefix( "/folder", folder );
+
+        assertNull( router.route( "/" ) );
+        assertNull( router.route( "/reply" ) );
+    }
+
+    public void testDecodesEachSegment()
+    {
+        HttpRouter router = newRouter();
+        router.addExact( "/folder/in box", folderExact );
+
+        assertSame( folder, router.route( "/%66older/inbox" ) );
+        assertSame( folderExact, router.route( "/folder/in%20box" ) );
+        assertSame( conversation, router.route( "/conversation/caf%C3%A9" ) );
+
+        // an encoded slash stays inside its segment, a plus is not a space
+        assertSame( index, router.route( "/folder%2Fexact" ) );
+        assertSame( folder, router.route( "/folder/in+box" ) );
+    }
+
+    public void testRejectsBadEscapes()
+    {
+        HttpRouter router = newRouter();
+
+        assertNull( router.route( "/folder/%zz" ) );
+        assertNull( router.route( "/folder/%4" ) );
+        assertEquals( "caf\u00e9", HttpRouter.decodeComponent( "caf%c3%a9" ) );
+    }
+}
@@ -0,0 +1,191 @@
+package postoffice;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Unit test for node selection and hedged reads, with stand-in nodes that
+ * share one in-process store and answer reads after a delay.
+ */
+public class LatencyAwareMessageStoreTest 
+    extends TestCase
+{
+    /**
+     * A node whose reads take m_lDelayMs and are counted.
+     */
+    static class SlowNode implements MessageStore
+    {
+        protected MemoryMessageStore m_data;
+        protected volatile long m_lDelayMs;
+        protected int m_iReads;
+        protected volatile Thread m_lastThread;
+
+        public SlowNode( MemoryMessageStore data, long lDelayMs )
+        {
+            m_data = data;
+            m_lDelayMs = lDelayMs;
+        }
+
+        protected synchronized void count()
+        {
+            m_iReads++;
+        }
+
+        protected void sleep()
+        {
+            count();
+            m_lastThread = Thread.currentThread();
+
+            try
+            {
+                Thread.sleep( m_lDelayMs );
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public Batch createBatch()
+        {
+            return m_data.createBatch();
+        }
+
+        @Override
+        public List<StoreColumn> getSlice( String strFamily, Bytes rowKey, UUID start, UUID finish, boolean bReversed, int iCount )
+        {
+            sleep();
+            return m_data.getSlice( strFamily, rowKey, start, finish, bReversed, iCount );
+        }
+
+        @Override
+        public LinkedHashMap<Bytes, List<StoreColumn>> getSlices( String strFamily, List<Bytes> listRowKeys, UUID start, UUID finish, boolean bReversed, int iCount )
+        {
+            sleep();
+            return m_data.getSlices( strFamily, listRowKeys, start, finish, bReversed, iCount );
+        }
+
+        @Override
+        public List<StoreColumn> getColumns( String strFamily, Bytes rowKey, Collection<UUID> names )
+        {
+            sleep();
+            return m_data.getColumns( strFamily, rowKey, names );
+        }
+
+        @Override
+        public Map<UUID, Long> getCounters( String strFamily, Bytes rowKey )
+        {
+            sleep();
+            return m_data.getCounters( strFamily, rowKey );
+        }
+
+        @Override
+        public void shutdown()
+        {
+        }
+    }
+
+    public LatencyAwareMessageStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LatencyAwareMessageStoreTest.class );
+    }
+
+    protected Bytes m_rowKey = Bytes.fromUTF8( "inbox:1501572" );
+
+    protected MemoryMessageStore newData()
+    {
+        MemoryMessageStore data = new MemoryMessageStore();
+        data.createBatch().writeColumn( FolderUtil.FOLDERS, m_rowKey, UUID.fromString( MessageUtil.genId() ), StoreUtil.toBytes( "conv" ) ).execute();
+        return data;
+    }
+
+    public void testReadsAvoidSlowNode()
+    {
+        MemoryMessageStore data = newData();
+        SlowNode slow = new SlowNode( data, 20 );
+        SlowNode fast = new SlowNode( data, 0 );
+        Map<String, MessageStore> mapNodes = new LinkedHashMap<String, MessageStore>();
+        mapNodes.put( "slow", slow );
+        mapNodes.put( "fast", fast );
+
+        LatencyAwareMessageStore store = new LatencyAwareMessageStore( mapNodes, 0, 1, 1000 );
+
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals( 1, store.getSlice( FolderUtil.FOLDERS, m_rowKey, null, null, true, 10 ).size() );
+        }
+
+        // the slow node is only tried until its average catches up
+        assertTrue( "slow node read " + slow.m_iReads + " times", slow.m_iReads < 5 );
+    }
+
+    public void testSlowReadIsHedged() throws Exception
+    {
+        MemoryMessageStore data = newData();
+        SlowNode first = new SlowNode( data, 0 );
+        SlowNode second = new SlowNode( data, 2 );
+        Map<String, MessageStore> mapNodes = new LinkedHashMap<String, MessageStore>();
+        mapNodes.put( "first", first );
+        mapNodes.put( "second", second );
+
+        LatencyAwareMessageStore store = new LatencyAwareMessageStore( mapNodes, 0.9, 1, 50 );
+
+        // a window of reads sets the hedge threshold
+        for (int i = 0; i < 50; i++)
+        {
+            store.getSlice( FolderUtil.FOLDERS, m_rowKey, null, null, true, 10 );
+        }
+
+        Thread.sleep( 60 );
+        store.getSlice( FolderUtil.FOLDERS, m_rowKey, null, null, true, 10 );
+        assertTrue( store.m_lHedgeNanos < Long.MAX_VALUE );
+
+        long lHedged = store.m_hedged.sum();
+        first.m_lDelayMs = 1000;
+        long lStart = System.nanoTime();
+        assertEquals( 1, store.getSlice( FolderUtil.FOLDERS, m_rowKey, null, null, true, 10 ).size() );
+
+        assertTrue( System.nanoTime() - lStart < 500000000L );
+        assertEquals( lHedged + 1, store.m_hedged.sum() );
+    }
+
+    public void testReadsStayOnCallerUntilHedgingIsArmed()
+    {
+        MemoryMessageStore data = newData();
+        SlowNode a = new SlowNode( data, 0 );
+        SlowNode b = new SlowNode( data, 0 );
+        Map<String, MessageStore> mapNodes = new LinkedHashMap<String, MessageStore>();
+        mapNodes.put( "a", a );
+        mapNodes.put( "b", b );
+
+        LatencyAwareMessageStore store = new LatencyAwareMessageStore( mapNodes, 0.9, 1, 60000 );
+
+        // the window never closes, so no read is hedged
+        for (int i = 0; i < 10; i++)
+        {
+            a.m_lastThread = null;
+            b.m_lastThread = null;
+            store.getSlice( FolderUtil.FOLDERS, m_rowKey, null, null, true, 10 );
+            assertSame( Thread.currentThread(), a.m_lastThread != null ? a.m_lastThread : b.m_lastThread );
+        }
+
+        assertEquals( Long.MAX_VALUE, store.m_lHedgeNanos );
+        assertEquals( 0, ((ThreadPoolExecutor) store.m_hedgers).getLargestPoolSize() );
+    }
+}
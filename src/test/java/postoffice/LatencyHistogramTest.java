@@ -0,0 +1,78 @@
+package postoffice;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the latency histogram and its text exposition.
+ */
+public class LatencyHistogramTest 
+    extends TestCase
+{
+    public LatencyHistogramTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LatencyHistogramTest.class );
+    }
+
+    public void testQuantilesWithinBucketPrecision()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+
+        for (long l = 1; l <= 100000; l++)
+        {
+            h.record( l * 1000 );
+        }
+
+        assertEquals( 100000, h.getCount() );
+        assertEquals( 50000000, h.getQuantileNanos( 0.5 ), 50000000 / 8 );
+        assertEquals( 99000000, h.getQuantileNanos( 0.99 ), 99000000 / 8 );
+        assertTrue( h.getQuantileNanos( 0.999 ) >= 99900000 );
+        assertEquals( 0, new LatencyHistogram().getQuantileNanos( 0.5 ) );
+    }
+
+    public void testBucketsCoverEveryValue()
+    {
+        for (long l : new long[] { 0, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE } )
+        {
+            int i = LatencyHistogram.index( l );
+            assertTrue( LatencyHistogram.upperBound( i ) >= l );
+            assertTrue( i == 0 || LatencyHistogram.upperBound( i - 1 ) < l );
+        }
+    }
+
+    public void testWindowedQuantilesForgetOldCalls() throws InterruptedException
+    {
+        WindowedHistogram h = new WindowedHistogram( 200, 2 );
+        h.record( 50000000 );
+        assertEquals( 50000000, h.getQuantileNanos( 0.5 ), 50000000 / 8 );
+
+        Thread.sleep( 400 );
+        h.record( 1000 );
+        assertEquals( 1000, h.getQuantileNanos( 1 ), 1000 / 8 );
+
+        // count and sum still cover every call
+        assertEquals( 2, h.getCount() );
+        assertEquals( 50001000, h.getSumNanos() );
+
+        Thread.sleep( 400 );
+        assertEquals( 0, h.getQuantileNanos( 0.5 ) );
+    }
+
+    public void testPrometheusText()
+    {
+        MetricsUtil.histogram( "test_seconds", "route=\"/a\"", "Test latency." ).record( 2000000 );
+        MetricsUtil.counter( "test_total", null, "Test count." ).increment();
+
+        String strText = MetricsUtil.toPrometheus();
+        assertTrue( strText.contains( "# TYPE test_seconds summary\n" ) );
+        assertTrue( strText.contains( "test_seconds{route=\"/a\",quantile=\"0.5\"} 0.002" ) );
+        assertTrue( strText.contains( "test_seconds_count{route=\"/a\"} 1\n" ) );
+        assertTrue( strText.contains( "test_total 1\n" ) );
+    }
+}
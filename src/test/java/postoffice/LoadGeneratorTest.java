@@ -0,0 +1,62 @@
+package postoffice;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the load generator against the in-process store.
+ */
+public class LoadGeneratorTest 
+    extends TestCase
+{
+    public LoadGeneratorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LoadGeneratorTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+    }
+
+    public void testPopulateFillsEveryUser() throws Exception
+    {
+        LoadGenerator load = new LoadGenerator( new LoadGenerator.ApiTarget() );
+        load.setUsers( 10 );
+        load.setConversations( 5 );
+        load.setThreadLength( 1 );
+        load.setWorkers( 4 );
+        load.populate();
+
+        assertEquals( 0, load.getErrors() );
+        assertEquals( 50, load.getSends().getCount() );
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals( 5, FolderUtil.getSummaries( new Folder( LoadGenerator.user( i ), "sent" ), null, 100 ).size() );
+        }
+    }
+
+    public void testOpenLoopSendsEveryArrival() throws Exception
+    {
+        LoadGenerator load = new LoadGenerator( new LoadGenerator.ApiTarget() );
+        load.setUsers( 10 );
+        load.setReadRatio( 0.5 );
+        load.setRate( 200 );
+        load.setWorkers( 4 );
+        load.setSeconds( 1 );
+        load.run();
+
+        // arrivals are fixed in advance, none is skipped however slow the store is
+        assertEquals( 0, load.getErrors() );
+        assertEquals( 200, load.getReads().getCount() + load.getSends().getCount() );
+        assertTrue( load.getSends().getCount() > 0 );
+    }
+}
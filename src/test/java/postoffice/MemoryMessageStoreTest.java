@@ -0,0 +1,98 @@
+package postoffice;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.UuidHelper;
+
+/**
+ * Unit test for the in-process message store.
+ */
+public class MemoryMessageStoreTest 
+    extends TestCase
+{
+    protected static final String CF = "folders";
+    protected static final Bytes ROW = Bytes.fromUTF8("inbox:1501572");
+
+    public MemoryMessageStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MemoryMessageStoreTest.class );
+    }
+
+    protected UUID[] fill( MessageStore store, int iCount )
+    {
+        UUID[] ids = new UUID[iCount];
+        MessageStore.Batch batch = store.createBatch();
+
+        for (int i = 0; i < iCount; i++)
+        {
+            ids[i] = UuidHelper.newTimeUuid();
+            batch.writeColumn( CF, ROW, ids[i], StoreUtil.toBytes( "conv" + i ) );
+        }
+
+        batch.execute();
+        return ids;
+    }
+
+    public void testSliceOrderAndCount()
+    {
+        MessageStore store = new MemoryMessageStore();
+        UUID[] ids = fill( store, 5 );
+
+        List<StoreColumn> listCols = store.getSlice( CF, ROW, null, null, true, 3 );
+        assertEquals( 3, listCols.size() );
+        assertEquals( ids[4], listCols.get( 0 ).getName() );
+        assertEquals( ids[2], listCols.get( 2 ).getName() );
+
+        listCols = store.getSlice( CF, ROW, null, null, false, MessageStore.ALL );
+        assertEquals( 5, listCols.size() );
+        assertEquals( ids[0], listCols.get( 0 ).getName() );
+        assertEquals( "conv0", listCols.get( 0 ).getStringValue() );
+    }
+
+    public void testSliceBounds()
+    {
+        MessageStore store = new MemoryMessageStore();
+        UUID[] ids = fill( store, 5 );
+
+        List<StoreColumn> listCols = store.getSlice( CF, ROW, ids[3], null, true, MessageStore.ALL );
+        assertEquals( 4, listCols.size() );
+        assertEquals( ids[3], listCols.get( 0 ).getName() );
+
+        listCols = store.getSlice( CF, ROW, ids[1], ids[3], false, MessageStore.ALL );
+        assertEquals( 3, listCols.size() );
+        assertEquals( ids[1], listCols.get( 0 ).getName() );
+    }
+
+    public void testDeleteAndMissingRow()
+    {
+        MessageStore store = new MemoryMessageStore();
+        UUID[] ids = fill( store, 2 );
+
+        store.createBatch().deleteColumn( CF, ROW, ids[0] ).execute();
+        assertEquals( 1, store.getSlice( CF, ROW, null, null, false, MessageStore.ALL ).size() );
+        assertTrue( store.getSlice( CF, Bytes.fromUTF8( "nobody" ), null, null, false, 10 ).isEmpty() );
+    }
+
+    public void testGetColumns()
+    {
+        MessageStore store = new MemoryMessageStore();
+        UUID[] ids = fill( store, 4 );
+
+        List<StoreColumn> listCols = store.getColumns( CF, ROW, Arrays.asList( ids[3], UuidHelper.newTimeUuid(), ids[1] ) );
+        assertEquals( 2, listCols.size() );
+        assertEquals( ids[1], listCols.get( 0 ).getName() );
+        assertEquals( "conv3", listCols.get( 1 ).getStringValue() );
+    }
+}
@@ -0,0 +1,69 @@
+package postoffice;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the binary message column codec.
+ */
+public class MessageCodecTest 
+    extends TestCase
+{
+    public MessageCodecTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MessageCodecTest.class );
+    }
+
+    protected static void assertMessageEquals( Message expected, Message actual )
+    {
+        assertEquals( expected.getId(), actual.getId() );
+        assertEquals( expected.getSender(), actual.getSender() );
+        assertEquals( expected.getSubject(), actual.getSubject() );
+        assertEquals( expected.getBody(), actual.getBody() );
+    }
+
+    public void testRoundTrip()
+    {
+        Message m = new Message( MessageUtil.genId(), "1501571", "Postoffice été", "Hi 1501572!" );
+        byte[] value = MessageCodec.encode( m );
+
+        assertEquals( MessageCodec.VERSION_1, value[0] );
+        assertTrue( value.length < MessageUtil.toJson( m ).length() );
+        assertMessageEquals( m, MessageCodec.decode( value ) );
+    }
+
+    public void testNullsSurvive()
+    {
+        Message m = new Message( MessageUtil.genId(), "1501571", null, null );
+        assertMessageEquals( m, MessageCodec.decode( MessageCodec.encode( m ) ) );
+    }
+
+    public void testLargeBodyIsDeflated()
+    {
+        StringBuilder body = new StringBuilder();
+
+        for (int i = 0; i < 500; i++)
+        {
+            body.append( "postoffice is a messaging system using cassandra " );
+        }
+
+        Message m = new Message( MessageUtil.genId(), "1501571", "long", body.toString() );
+        byte[] value = MessageCodec.encode( m );
+
+        assertEquals( MessageCodec.FLAG_DEFLATED, value[1] & MessageCodec.FLAG_DEFLATED );
+        assertTrue( value.length < body.length() / 10 );
+        assertMessageEquals( m, MessageCodec.decode( value ) );
+    }
+
+    public void testReadsLegacyJson()
+    {
+        Message m = new Message( MessageUtil.genId(), "1501571", "old", "written as json" );
+        assertMessageEquals( m, MessageCodec.decode( StoreUtil.toBytes( MessageUtil.toJson( m ) ) ) );
+    }
+}
@@ -0,0 +1,80 @@
+package postoffice;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for folder subscriptions.
+ */
+public class NotificationUtilTest 
+    extends TestCase
+{
+    public NotificationUtilTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( NotificationUtilTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+    }
+
+    public void testSendWakesSubscriber()
+    {
+        Folder inbox = new Folder( "carol", "inbox" );
+        CompletableFuture<Notification> waiter = NotificationUtil.subscribe( inbox, null, 10000 );
+        assertFalse( waiter.isDone() );
+
+        String strId = ConversationUtil.genId();
+        PostofficeUtil.sendMessageAsync( "dave", "carol", "hey", "body", strId ).join();
+
+        Notification n = waiter.join();
+        assertEquals( "carol" + PostofficeUtil.DELIM + strId, n.getConvId() );
+
+        CompletableFuture<Notification> next = NotificationUtil.subscribe( inbox, UUID.fromString( n.getMessageId() ), 10000 );
+        assertFalse( next.isDone() );
+        PostofficeUtil.sendMessageAsync( "dave", "carol", "again", "body", strId ).join();
+        assertEquals( "again", next.join().m_strSubject );
+
+        // a message newer than since, sent between two polls, is answered at once
+        assertTrue( NotificationUtil.subscribe( inbox, UUID.fromString( n.getMessageId() ), 10000 ).isDone() );
+    }
+
+    public void testTimeout()
+    {
+        CompletableFuture<Notification> waiter = NotificationUtil.subscribe( new Folder( "erin", "inbox" ), null, 200 );
+        assertNull( waiter.join() );
+    }
+
+    public void testSweepKeepsWatchedFolders()
+    {
+        Folder inbox = new Folder( "frank", "inbox" );
+        CompletableFuture<Notification> waiter = NotificationUtil.subscribe( inbox, null, 10000 );
+
+        // a folder with a waiter is kept however old
+        NotificationUtil.sweep( Long.MAX_VALUE );
+        assertTrue( NotificationUtil.watches.containsKey( inbox.getKey() ) );
+
+        String strId = ConversationUtil.genId();
+        PostofficeUtil.sendMessageAsync( "gina", "frank", "hey", "body", strId ).join();
+        assertNotNull( waiter.join() );
+
+        NotificationUtil.sweep( Long.MAX_VALUE );
+        assertFalse( NotificationUtil.watches.containsKey( inbox.getKey() ) );
+
+        // a swept folder is watched again by the next subscriber
+        CompletableFuture<Notification> next = NotificationUtil.subscribe( inbox, null, 10000 );
+        PostofficeUtil.sendMessageAsync( "gina", "frank", "again", "body", strId ).join();
+        assertEquals( "again", next.join().m_strSubject );
+    }
+}
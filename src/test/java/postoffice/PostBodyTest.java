@@ -0,0 +1,220 @@
+package postoffice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import org.jboss.netty.util.CharsetUtil;
+import org.scale7.cassandra.pelops.Bytes;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Sends messages as POST bodies to a server on the in-process store.
+ */
+public class PostBodyTest 
+    extends TestCase
+{
+    protected HttpServer m_httpd;
+    protected int m_iPort;
+
+    public PostBodyTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PostBodyTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+
+        try (ServerSocket s = new ServerSocket( 0 ))
+        {
+            m_iPort = s.getLocalPort();
+        }
+
+        m_httpd = App.newWebInterface( m_iPort );
+        m_httpd.start();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        m_httpd.stop();
+    }
+
+    protected int post( String strUri, String strType, byte[] body, boolean bChunked ) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) new URL( "http://localhost:" + m_iPort + strUri ).openConnection();
+        conn.setRequestMethod( "POST" );
+        conn.setRequestProperty( "Content-Type", strType );
+        conn.setDoOutput( true );
+
+        if (bChunked)
+        {
+            conn.setChunkedStreamingMode( 4096 );
+        }
+
+        try (OutputStream out = conn.getOutputStream())
+        {
+            out.write( body );
+        }
+        catch (IOException e)
+        {
+            // the server may answer and close before the whole body is sent
+        }
+
+        int iStatus = conn.getResponseCode();
+        InputStream in = iStatus < 400 ? conn.getInputStream() : conn.getErrorStream();
+
+        if (in != null)
+        {
+            in.close();
+        }
+
+        return iStatus;
+    }
+
+    protected int get( String strUri ) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) new URL( "http://localhost:" + m_iPort + strUri ).openConnection();
+        int iStatus = conn.getResponseCode();
+        InputStream in = iStatus < 400 ? conn.getInputStream() : conn.getErrorStream();
+
+        if (in != null)
+        {
+            in.close();
+        }
+
+        return iStatus;
+    }
+
+    protected String newestBody( String strOwner )
+    {
+        List<ConversationSummary> listSummaries = FolderUtil.getSummaries( new Folder( strOwner, "inbox" ), (UUID) null, 1 );
+        return ConversationUtil.get( listSummaries.get( 0 ).getId() ).getMessages().first().getBody();
+    }
+
+    public void testJsonBody() throws IOException
+    {
+        String strJson = "{\"from\":\"alice\",\"to\":[\"bob\",\"carol\"],\"subject\":\"hi\",\"body\":\"a & b = c?\"}";
+        assertEquals( 200, post( "/new", "application/json", StoreUtil.toBytes( strJson ), false ) );
+        assertEquals( "a & b = c?", newestBody( "bob" ) );
+        assertEquals( "a & b = c?", newestBody( "carol" ) );
+    }
+
+    public void testChunkedRawBody() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+
+        while (sb.length() < 50000)
+        {
+            sb.append( "Hi bob, I just wanted to tell you about Postoffice! " );
+        }
+
+        assertEquals( 200, post( "/new?from=alice&to=bob&subject=hi", "text/plain; charset=UTF-8", StoreUtil.toBytes( sb.toString() ), true ) );
+        assertEquals( sb.toString(), newestBody( "bob" ) );
+    }
+
+    public void testBodyOverMaxIsRejected() throws IOException
+    {
+        byte[] body = new byte[HttpServer.MAX_BODY_BYTES + 1];
+        assertEquals( 413, post( "/new?from=alice&to=bob&subject=hi", "application/octet-stream", body, true ) );
+        assertEquals( 0, FolderUtil.getSummaries( new Folder( "bob", "inbox" ), (UUID) null, 1 ).size() );
+    }
+
+    public void testEncodedPathIsRouted() throws IOException
+    {
+        assertEquals( 200, post( "/%6Eew?from=alice&to=bob&subject=hi", "text/plain; charset=UTF-8", StoreUtil.toBytes( "encoded" ), false ) );
+        assertEquals( "encoded", newestBody( "bob" ) );
+    }
+
+    public void testBadJsonIsRejected() throws IOException
+    {
+        assertEquals( 400, post( "/new", "application/json", StoreUtil.toBytes( "{\"from\":\"alice\"," ), false ) );
+        assertEquals( 400, post( "/new", "application/json", StoreUtil.toBytes( "[\"alice\"]" ), false ) );
+        assertEquals( 400, post( "/new", "application/json", StoreUtil.toBytes( "{\"from\":\"alice\",\"to\":[{\"id\":\"bob\"}],\"subject\":\"hi\",\"body\":\"b\"}" ), false ) );
+        assertEquals( 0, FolderUtil.getSummaries( new Folder( "bob", "inbox" ), (UUID) null, 1 ).size() );
+    }
+
+    public void testBinaryBodyKeepsItsBytes() throws IOException
+    {
+        byte[] body = new byte[256];
+
+        for (int i = 0; i < body.length; i++)
+        {
+            body[i] = (byte) i;
+        }
+
+        assertEquals( 200, post( "/new?from=alice&to=bob&subject=hi", "application/octet-stream", body, false ) );
+        assertTrue( Arrays.equals( body, newestBody( "bob" ).getBytes( CharsetUtil.ISO_8859_1 ) ) );
+    }
+
+    public void testBadMessageIdIsRejected() throws IOException
+    {
+        String strConvId = "bob:" + ConversationUtil.genId();
+        String strMessageId = MessageUtil.genId();
+
+        assertEquals( 200, get( "/conversation?id=" + strConvId + "&cursor=" + strMessageId ) );
+        assertEquals( 400, get( "/conversation?id=" + strConvId + "&cursor=not-a-uuid" ) );
+        assertEquals( 400, get( "/conversation?id=" + strConvId + "&since=" + UUID.randomUUID() ) );
+        assertEquals( 400, get( "/conversation?id=bob" ) );
+        assertEquals( 400, get( "/conversation" ) );
+        assertEquals( 400, get( "/folder?owner=bob&folder=inbox&count=10&cursor=x" ) );
+        assertEquals( 400, get( "/subscribe?owner=bob&folder=inbox&since=x" ) );
+        assertEquals( 200, get( "/reply?from=alice&to=bob&subject=re&body=hi&id=" + ConversationUtil.genId() ) );
+        assertEquals( 400, get( "/reply?from=alice&to=bob&subject=re&body=hi&id=garbage" ) );
+        assertEquals( 400, get( "/reply?from=alice&to=bob&subject=re&body=hi&id=" + UUID.randomUUID() ) );
+        assertEquals( 400, get( "/reply?from=alice&to=bob&subject=re&body=hi" ) );
+    }
+
+    public void testFailedFolderReadIsAnError() throws IOException
+    {
+        StoreUtil.setStore( new MemoryMessageStore()
+        {
+            @Override
+            public List<StoreColumn> getSlice( String strFamily, Bytes rowKey, UUID start, UUID finish, boolean bReversed, int iCount )
+            {
+                throw new RuntimeException( "store is down" );
+            }
+
+            @Override
+            public LinkedHashMap<Bytes, List<StoreColumn>> getSlices( String strFamily, List<Bytes> listRowKeys, UUID start, UUID finish, boolean bReversed, int iCount )
+            {
+                throw new RuntimeException( "store is down" );
+            }
+        } );
+
+        String strOwner = ConversationUtil.genId();
+        assertEquals( 500, get( "/folder?owner=" + strOwner + "&folder=inbox&count=10" ) );
+        assertEquals( 500, get( "/folder?owner=" + strOwner + "&folder=inbox&count=10&full=1" ) );
+    }
+
+    public void testStopReleasesHandlerThreads() throws IOException
+    {
+        assertEquals( 200, post( "/new?from=alice&to=bob&subject=hi", "text/plain; charset=UTF-8", StoreUtil.toBytes( "hi" ), false ) );
+
+        HttpServer httpd = m_httpd;
+        httpd.stop();
+        assertTrue( ((ExecutorService) httpd.m_execution.getExecutor()).isShutdown() );
+
+        // tearDown stops a server of its own
+        m_httpd = App.newWebInterface( m_iPort );
+        m_httpd.start();
+    }
+}
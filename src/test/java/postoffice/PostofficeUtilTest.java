@@ -0,0 +1,210 @@
+package postoffice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.scale7.cassandra.pelops.UuidHelper;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for sending messages against the in-process store.
+ */
+public class PostofficeUtilTest 
+    extends TestCase
+{
+    public PostofficeUtilTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PostofficeUtilTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        StoreUtil.setStore( new MemoryMessageStore() );
+    }
+
+    public void testFanOutStoresBodyOnce()
+    {
+        List<String> listTo = new ArrayList<String>();
+
+        // more than one batch of recipients
+        for (int i = 0; i < PostofficeUtil.FANOUT_BATCH_SIZE * 2 + 1; i++)
+        {
+            listTo.add( "to" + i );
+        }
+
+        String strId = ConversationUtil.genId();
+        PostofficeUtil.sendMessageAsync( "from", listTo, "hey", "foobarbaz", strId ).join();
+        PostofficeUtil.sendMessageAsync( "to7", "from", "re: hey", "reply", strId ).join();
+
+        List<StoreColumn> listBodies = StoreUtil.getStore().getSlice( ConversationUtil.MESSAGES, ConversationKey.toThreadKey( UUID.fromString( strId ) ), null, null, false, MessageStore.ALL );
+        assertEquals( 2, listBodies.size() );
+
+        for (String strOwner : new String[] { "to0", "to" + PostofficeUtil.FANOUT_BATCH_SIZE * 2 } )
+        {
+            Conversation c = ConversationUtil.get( strOwner + PostofficeUtil.DELIM + strId );
+            assertEquals( "foobarbaz", c.getMessages().first().getBody() );
+        }
+
+        assertEquals( 2, ConversationUtil.get( "from" + PostofficeUtil.DELIM + strId ).getMessages().size() );
+
+        Folder inbox = new Folder( "to" + PostofficeUtil.FANOUT_BATCH_SIZE, "inbox" );
+        List<ConversationSummary> listSummaries = FolderUtil.getSummaries( inbox, (UUID) null, 10 );
+        assertEquals( 1, listSummaries.size() );
+        assertEquals( "from", listSummaries.get( 0 ).getLastSender() );
+    }
+
+    protected List<StoreColumn> folderRow( Folder f )
+    {
+        return FolderBuckets.getSliceAfter( f, null, MessageStore.ALL );
+    }
+
+    public void testReplyMovesConversationWithOneColumn()
+    {
+        String strFirst = ConversationUtil.genId();
+        String strSecond = ConversationUtil.genId();
+        PostofficeUtil.sendMessage( "alice", "bob", "first", "body", strFirst );
+        PostofficeUtil.sendMessage( "alice", "bob", "second", "body", strSecond );
+
+        // bob answers in between, his copy is in his inbox and sent folders
+        for (int i = 0; i < 5; i++)
+        {
+            PostofficeUtil.sendMessage( "alice", "bob", "re: first", "reply " + i, strFirst );
+            PostofficeUtil.sendMessage( "bob", "alice", "re: first", "answer " + i, strFirst );
+        }
+
+        Folder inbox = new Folder( "bob", "inbox" );
+        List<StoreColumn> listCols = folderRow( inbox );
+        assertEquals( 2, listCols.size() );
+        assertEquals( 1, folderRow( new Folder( "bob", "sent" ) ).size() );
+        assertEquals( 2, folderRow( new Folder( "alice", "sent" ) ).size() );
+
+        ConversationSummary summary = SummaryUtil.get( new ConversationKey( "bob", UUID.fromString( strFirst ) ).toRowKey() );
+        assertEquals( listCols.get( 0 ).getName(), summary.getPosition( inbox ) );
+        assertEquals( folderRow( new Folder( "bob", "sent" ) ).get( 0 ).getName(), summary.getPosition( new Folder( "bob", "sent" ) ) );
+        assertEquals( "re: first", FolderUtil.getSummaries( inbox, (UUID) null, 10 ).get( 0 ).getSubject() );
+    }
+
+    public void testReadsDropLegacyDuplicates() throws InterruptedException
+    {
+        String strId = ConversationUtil.genId();
+        PostofficeUtil.sendMessage( "alice", "bob", "hey", "body", strId );
+        Folder inbox = new Folder( "bob", "inbox" );
+        ConversationSummary summary = FolderUtil.getSummaries( inbox, (UUID) null, 10 ).get( 0 );
+
+        // listed again the way replies used to, without a position
+        for (int i = 0; i < 3; i++)
+        {
+            MessageStore.Batch batch = StoreUtil.getStore().createBatch();
+            FolderUtil._addConvToFolder( batch, inbox, UuidHelper.newTimeUuid(), summary );
+            batch.execute();
+        }
+
+        assertEquals( 4, folderRow( inbox ).size() );
+        assertEquals( 1, FolderUtil.getConversations( inbox, (UUID) null, 10 ).size() );
+
+        for (int i = 0; i < 100 && folderRow( inbox ).size() > 1; i++)
+        {
+            Thread.sleep( 10 );
+        }
+
+        assertEquals( 1, folderRow( inbox ).size() );
+    }
+
+    public void testConcurrentRepliesAreAllCounted()
+    {
+        String strId = ConversationUtil.genId();
+        PostofficeUtil.sendMessage( "alice", "bob", "hey", "first", strId );
+
+        List<CompletableFuture<Void>> listReplies = new ArrayList<CompletableFuture<Void>>();
+
+        for (int i = 0; i < 20; i++)
+        {
+            listReplies.add( PostofficeUtil.sendMessageAsync( "alice", "bob", "re: hey", "reply " + i, strId ) );
+        }
+
+        CompletableFuture.allOf( listReplies.toArray( new CompletableFuture<?>[listReplies.size()] ) ).join();
+
+        Message newest = null;
+
+        for (Message m : ConversationUtil.get( "bob" + PostofficeUtil.DELIM + strId ).getMessages())
+        {
+            if (newest == null || m.getUuid().timestamp() > newest.getUuid().timestamp())
+            {
+                newest = m;
+            }
+        }
+
+        List<ConversationSummary> listSummaries = FolderUtil.getSummaries( new Folder( "bob", "inbox" ), (UUID) null, 10 );
+        assertEquals( 1, listSummaries.size() );
+        assertEquals( 21, listSummaries.get( 0 ).getMessageCount().intValue() );
+        assertEquals( newest.getBody(), listSummaries.get( 0 ).getSnippet() );
+    }
+
+    public void testReplyUpdatesOtherListings()
+    {
+        String strId = ConversationUtil.genId();
+        PostofficeUtil.sendMessage( "alice", "bob", "hey", "question", strId );
+        PostofficeUtil.sendMessage( "bob", "alice", "re: hey", "answer", strId );
+
+        // bob's copy is moved in his sent folder and shown as it is in his inbox
+        for (String strFolder : new String[] { "inbox", "sent" } )
+        {
+            ConversationSummary summary = FolderUtil.getSummaries( new Folder( "bob", strFolder ), (UUID) null, 10 ).get( 0 );
+            assertEquals( "answer", summary.getSnippet() );
+            assertEquals( 2, summary.getMessageCount().intValue() );
+        }
+    }
+
+    public void testMessageToSelfIsCountedOnce()
+    {
+        String strId = ConversationUtil.genId();
+        List<String> listTo = new ArrayList<String>();
+        listTo.add( "alice" );
+        listTo.add( "bob" );
+        PostofficeUtil.sendMessageAsync( "alice", listTo, "note", "to self", strId ).join();
+
+        assertEquals( 1, ConversationUtil.get( "alice" + PostofficeUtil.DELIM + strId ).getMessages().size() );
+
+        for (String strFolder : new String[] { "inbox", "sent" } )
+        {
+            List<ConversationSummary> listSummaries = FolderUtil.getSummaries( new Folder( "alice", strFolder ), (UUID) null, 10 );
+            assertEquals( 1, listSummaries.size() );
+            assertEquals( 1, listSummaries.get( 0 ).getMessageCount().intValue() );
+        }
+    }
+
+    public void testReplyCountsLegacyMessages()
+    {
+        String strId = ConversationUtil.genId();
+        ConversationKey key = new ConversationKey( "bob", UUID.fromString( strId ) );
+
+        // stored whole in the conversation, before summaries and counters
+        MessageStore.Batch batch = StoreUtil.getStore().createBatch();
+
+        for (int i = 0; i < 3; i++)
+        {
+            Message msg = new Message( UuidHelper.newTimeUuid(), "alice", "old", "legacy " + i );
+            batch.writeColumn( ConversationUtil.CONVERSATIONS, key.toRowKey(), msg.getUuid(), MessageUtil.toBytes( msg ) );
+        }
+
+        batch.execute();
+
+        PostofficeUtil.sendMessage( "alice", "bob", "re: old", "new", strId );
+
+        ConversationSummary summary = FolderUtil.getSummaries( new Folder( "bob", "inbox" ), (UUID) null, 10 ).get( 0 );
+        assertEquals( 4, summary.getMessageCount().intValue() );
+        assertEquals( "new", summary.getSnippet() );
+        assertEquals( 4, ConversationUtil.get( key.getId() ).getMessages().size() );
+    }
+}
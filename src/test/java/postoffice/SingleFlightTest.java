@@ -0,0 +1,215 @@
+package postoffice;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the sharing of identical concurrent reads.
+ */
+public class SingleFlightTest 
+    extends TestCase
+{
+    protected ExecutorService m_executor = Executors.newCachedThreadPool();
+
+    public SingleFlightTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SingleFlightTest.class );
+    }
+
+    /**
+     * Starts a read that blocks until release counts down.
+     */
+    protected CompletableFuture<String> start( final SingleFlight<String> flights, final String strResult, final CountDownLatch started, final CountDownLatch release, final AtomicInteger iLoads )
+    {
+        return CompletableFuture.supplyAsync( () -> flights.run( "bob", "page", () -> 
+        {
+            iLoads.incrementAndGet();
+            started.countDown();
+
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return strResult;
+        } ), m_executor );
+    }
+
+    protected void awaitWaiting( SingleFlight<String> flights, int iWaiting ) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && flights.m_iWaiting.get() < iWaiting; i++)
+        {
+            Thread.sleep( 10 );
+        }
+
+        assertEquals( iWaiting, flights.m_iWaiting.get() );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        m_executor.shutdownNow();
+    }
+
+    public void testConcurrentReadsShareOneLoad() throws InterruptedException
+    {
+        SingleFlight<String> flights = new SingleFlight<String>( "test" );
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        AtomicInteger iLoads = new AtomicInteger();
+
+        CompletableFuture<String> leader = start( flights, "first", started, release, iLoads );
+        started.await();
+        CompletableFuture<String> waiter1 = start( flights, "second", new CountDownLatch( 1 ), release, iLoads );
+        CompletableFuture<String> waiter2 = start( flights, "third", new CountDownLatch( 1 ), release, iLoads );
+        awaitWaiting( flights, 2 );
+
+        release.countDown();
+        assertEquals( "first", leader.join() );
+        assertEquals( "first", waiter1.join() );
+        assertEquals( "first", waiter2.join() );
+        assertEquals( 1, iLoads.get() );
+
+        // nothing in flight any more, the next read loads again
+        assertEquals( "again", flights.run( "bob", "page", () -> "again" ) );
+        assertTrue( flights.m_mapFlights.isEmpty() );
+    }
+
+    public void testDetachedReadIsNotJoined() throws InterruptedException
+    {
+        SingleFlight<String> flights = new SingleFlight<String>( "test" );
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        AtomicInteger iLoads = new AtomicInteger();
+
+        CompletableFuture<String> before = start( flights, "before write", started, release, iLoads );
+        started.await();
+        flights.detach( "bob" );
+
+        assertEquals( "after write", flights.run( "bob", "page", () -> "after write" ) );
+        release.countDown();
+        assertEquals( "before write", before.join() );
+        assertTrue( flights.m_mapFlights.isEmpty() );
+    }
+
+    public void testFailureReachesWaiters() throws InterruptedException
+    {
+        final SingleFlight<String> flights = new SingleFlight<String>( "test" );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+
+        CompletableFuture<String> leader = CompletableFuture.supplyAsync( () -> flights.run( "bob", "page", () -> 
+        {
+            started.countDown();
+
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            throw new IllegalStateException( "store down" );
+        } ), m_executor );
+
+        started.await();
+        CompletableFuture<String> waiter = CompletableFuture.supplyAsync( () -> flights.run( "bob", "page", () -> "never" ), m_executor );
+        awaitWaiting( flights, 1 );
+        release.countDown();
+
+        try
+        {
+            waiter.join();
+            fail( "the waiter should see the leader's failure" );
+        }
+        catch (RuntimeException e)
+        {
+            assertTrue( e.getCause() instanceof IllegalStateException );
+        }
+
+        try
+        {
+            leader.join();
+            fail( "the leader should fail" );
+        }
+        catch (RuntimeException e)
+        {
+            assertTrue( e.getCause() instanceof IllegalStateException );
+        }
+    }
+
+    public void testErrorReachesWaiters() throws InterruptedException
+    {
+        final SingleFlight<String> flights = new SingleFlight<String>( "test" );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+
+        CompletableFuture.runAsync( () -> 
+        {
+            try
+            {
+                flights.run( "bob", "page", () -> 
+                {
+                    started.countDown();
+
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    throw new StackOverflowError();
+                } );
+            }
+            catch (StackOverflowError e)
+            {
+                // the leader sees it as thrown
+            }
+        }, m_executor );
+
+        started.await();
+        CompletableFuture<String> waiter = CompletableFuture.supplyAsync( () -> flights.run( "bob", "page", () -> "never" ), m_executor );
+        awaitWaiting( flights, 1 );
+        release.countDown();
+
+        try
+        {
+            waiter.get( 5, TimeUnit.SECONDS );
+            fail( "the waiter should see the leader's error" );
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue( e.getCause() instanceof StackOverflowError );
+        }
+        catch (TimeoutException e)
+        {
+            fail( "the waiter was left waiting" );
+        }
+
+        assertTrue( flights.m_mapFlights.isEmpty() );
+    }
+}